@@ -16,6 +16,7 @@ while [ $# -gt 0 ] ; do
 	case $1 in
 		-Xm*) JAVA_OPT="$JAVA_OPT $1" ;;
 		-D*)  JAVA_OPT="$JAVA_OPT $1" ;;
+		--add-modules=*) JAVA_OPT="$JAVA_OPT $1" ;;
 		*)    PROG_OPT="$PROG_OPT $1" ;;
 	esac
 	shift
@@ -0,0 +1,51 @@
+package pcap.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Aggregator} using SIMD instructions through the Vector API.<br/>
+ * It has to be compiled and run with {@code --add-modules jdk.incubator.vector} (Java 16+).
+ * 
+ * @author Matthieu Labas
+ */
+public class VectorAggregator extends Aggregator {
+	
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	
+	@Override
+	public void aggregate(int[] values, boolean[] flags, int n) {
+		IntVector vsum = IntVector.zero(SPECIES);
+		IntVector vmin = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+		IntVector vmax = IntVector.broadcast(SPECIES, Integer.MIN_VALUE);
+		int c = 0;
+		int i = 0;
+		for (int upper = SPECIES.loopBound(n); i < upper; i += SPECIES.length()) {
+			IntVector v = IntVector.fromArray(SPECIES, values, i);
+			vsum = vsum.add(v);
+			vmin = vmin.min(v);
+			vmax = vmax.max(v);
+			c += VectorMask.fromArray(SPECIES, flags, i).trueCount();
+		}
+		long s = vsum.reduceLanesToLong(VectorOperators.ADD);
+		int mn = vmin.reduceLanes(VectorOperators.MIN);
+		int mx = vmax.reduceLanes(VectorOperators.MAX);
+		for (; i < n; i++) { // Tail
+			int v = values[i];
+			if (v < mn)
+				mn = v;
+			if (v > mx)
+				mx = v;
+			s += v;
+			if (flags[i])
+				c++;
+		}
+		sum = s;
+		min = mn;
+		max = mx;
+		count = c;
+	}
+
+}
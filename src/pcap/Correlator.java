@@ -0,0 +1,320 @@
+package pcap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.util.Hash;
+import pcap.util.LogHistogram;
+import pcap.util.LongIntHashMap;
+
+/**
+ * Correlates two captures of the same traffic taken at two points (e.g. sender and receiver sides
+ * of a network) to measure the one-way delay of each packet and list packets lost, duplicated or
+ * reordered between both points. Both captures clocks are expected to be synchronized.<br/>
+ * Packets are identified by a fingerprint hashing their addresses, ports, protocol, IP ID, length
+ * and the first {@link PCAPAnalyzer#CORRELATE_PREFIX} bytes of their data, so fields modified on
+ * the way (TTL, checksums) do not matter. Both captures are read merged by packet time, destination
+ * packets being matched {@link PCAPAnalyzer#CORRELATE_WINDOW} ms late so that packets stamped
+ * before their source packet (clocks slightly off) are still matched. Source packets wait in a ring
+ * of {@link PCAPAnalyzer#CORRELATE_CAPACITY} entries to be matched by destination packets received
+ * within the window, after which they are reported as lost if they were not received. Memory does not depend on the captures size,
+ * only on the number of flows.
+ *
+ * @author Matthieu Labas
+ */
+public class Correlator {
+	
+	/** One-way delay histogram records up to 67 s (us). */
+	private static final int DELAY_BITS = 26;
+	
+	private final PCAPReader source;
+	private final PCAPReader destination;
+	
+	/** Selectors of the packets to correlate, or {@code null} to correlate all packets. */
+	private final List<Selector> selectors;
+	
+	private final boolean verbose;
+	
+	private final long windowMicros;
+	private final int prefix;
+	
+	/*
+	 * Ring of source packets waiting to be received, indexed by (sequence % capacity).
+	 */
+	private final long[] ringKeys;
+	private final long[] ringTimes;
+	private final int[] ringPacketNumbers;
+	private final int[] ringSrcIPs;
+	private final int[] ringDstIPs;
+	/** Source port << 16 | destination port. */
+	private final int[] ringPorts;
+	private final int[] ringLengths;
+	/** Index of the flow. */
+	private final int[] ringFlows;
+	/** Sequence number of the packet in its flow. */
+	private final long[] ringFlowSeqs;
+	/** Number of identical packets sent (same fingerprint within the window). */
+	private final int[] ringSent;
+	/** Number of identical packets received. */
+	private final int[] ringReceived;
+	
+	/** Sequence number of the oldest and next source packets. */
+	private long head, tail;
+	
+	/** Fingerprint to ring index of pending source packets. */
+	private final LongIntHashMap pending;
+	
+	/** Flow hash to flow index. */
+	private final LongIntHashMap flows;
+	/** Number of source packets of each flow. */
+	private long[] flowSent;
+	/** Highest sequence number of the packets received of each flow. */
+	private long[] flowMaxReceived;
+	private int nbFlows;
+	
+	/** One-way delays (us). */
+	protected final LogHistogram delays;
+	
+	protected long nbSource;
+	protected long nbDestination;
+	protected long nbReceived;
+	protected long nbLost;
+	protected long nbDuplicated;
+	protected long nbReordered;
+	/** Destination packets not matching any pending source packet. */
+	protected long nbUnknown;
+	/** Destination packets received before their source packet. */
+	protected long nbNegative;
+	/** Largest time (us) a destination packet was received before its source packet. */
+	protected long maxAdvance;
+	/** Source packets dropped from the ring before the end of the window because it was full. */
+	protected long nbOverflow;
+	
+	/**
+	 * @param source Reader of the capture where packets are sent.
+	 * @param destination Reader of the capture where packets are received.
+	 * @param selectors Selectors of the packets to correlate. All packets are correlated if empty or {@code null}.
+	 * @param verbose {@code true} to display the delay of each packet.
+	 */
+	public Correlator(PCAPReader source, PCAPReader destination, List<Selector> selectors, boolean verbose) {
+		this.source = source;
+		this.destination = destination;
+		this.selectors = (selectors == null || selectors.isEmpty() ? null : selectors);
+		this.verbose = verbose;
+		windowMicros = PCAPAnalyzer.CORRELATE_WINDOW * 1000l;
+		prefix = PCAPAnalyzer.CORRELATE_PREFIX;
+		int capacity = PCAPAnalyzer.CORRELATE_CAPACITY;
+		ringKeys = new long[capacity];
+		ringTimes = new long[capacity];
+		ringPacketNumbers = new int[capacity];
+		ringSrcIPs = new int[capacity];
+		ringDstIPs = new int[capacity];
+		ringPorts = new int[capacity];
+		ringLengths = new int[capacity];
+		ringFlows = new int[capacity];
+		ringFlowSeqs = new long[capacity];
+		ringSent = new int[capacity];
+		ringReceived = new int[capacity];
+		pending = new LongIntHashMap(capacity);
+		flows = new LongIntHashMap();
+		flowSent = new long[16];
+		flowMaxReceived = new long[16];
+		delays = new LogHistogram(DELAY_BITS, 4);
+	}
+	
+	private boolean accepts(Packet packet) {
+		if (selectors == null)
+			return true;
+		for (Selector selector : selectors)
+			if (selector.acceptsPacket(packet))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @return The next selected packet of a capture, or {@code null} at the end of the capture.
+	 */
+	private Packet next(PCAPReader reader) {
+		for (;;) {
+			Packet packet;
+			try {
+				packet = reader.readNextPacket();
+			} catch (EOFException e) {
+				return null;
+			} catch (IOException e) { // Packet cannot be decoded
+				continue;
+			}
+			if (packet == null)
+				return null;
+			if (accepts(packet))
+				return packet;
+		}
+	}
+	
+	private long fingerprint(Packet packet) {
+		long h = Hash.hashFlow(packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getSourcePort(), packet.getDestinationPort(), packet.getProtocol());
+		h = Hash.mix64(h ^ ((long)packet.getIPID() << 32 | packet.getTotalDataLength()));
+		byte[] data = packet.getAvailableData();
+		return Hash.hashBytes(data, 0, Math.min(prefix, data.length), h);
+	}
+	
+	/**
+	 * Reads both captures until their end, displaying lost, duplicated and reordered packets as they
+	 * are detected.<br/>
+	 * A destination packet is matched once source packets sent up to the window after it have been
+	 * read, so it can match a source packet stamped after it. Source packets are expired once no
+	 * destination packet still to be read can match them.
+	 */
+	public void run() {
+		Packet src = next(source), dst = next(destination);
+		while (src != null || dst != null) {
+			if (dst == null || (src != null && src.getPacketTimeMicros() <= dst.getPacketTimeMicros() + windowMicros)) {
+				expire(Math.min(src.getPacketTimeMicros(), dst == null ? Long.MAX_VALUE : dst.getPacketTimeMicros()) - windowMicros);
+				sent(src);
+				src = next(source);
+			} else {
+				expire(dst.getPacketTimeMicros() - windowMicros);
+				received(dst);
+				dst = next(destination);
+			}
+		}
+		expire(Long.MAX_VALUE);
+	}
+	
+	private int flow(long flowHash) {
+		int s = flows.find(flowHash);
+		if (s >= 0)
+			return flows.valueAt(s);
+		if (nbFlows == flowSent.length) {
+			flowSent = Arrays.copyOf(flowSent, 2 * nbFlows);
+			flowMaxReceived = Arrays.copyOf(flowMaxReceived, 2 * nbFlows);
+		}
+		int f = nbFlows++;
+		flows.put(flowHash, f);
+		flowSent[f] = 0;
+		flowMaxReceived[f] = -1;
+		return f;
+	}
+	
+	private void sent(Packet packet) {
+		nbSource++;
+		long key = fingerprint(packet);
+		int s = pending.find(key);
+		if (s >= 0) { // Identical packet still pending: expect one more
+			ringSent[pending.valueAt(s)]++;
+			return;
+		}
+		if (tail - head == ringKeys.length) { // Ring full
+			nbOverflow += Math.max(0, ringSent[(int)(head % ringKeys.length)] - ringReceived[(int)(head % ringKeys.length)]);
+			pop(false);
+		}
+		int i = (int)(tail++ % ringKeys.length);
+		int f = flow(packet.getFlowHash());
+		ringKeys[i] = key;
+		ringTimes[i] = packet.getPacketTimeMicros();
+		ringPacketNumbers[i] = packet.getPacketNumber();
+		ringSrcIPs[i] = packet.getSourceIPInt();
+		ringDstIPs[i] = packet.getDestinationIPInt();
+		ringPorts[i] = packet.getSourcePort() << 16 | packet.getDestinationPort();
+		ringLengths[i] = packet.getTotalDataLength();
+		ringFlows[i] = f;
+		ringFlowSeqs[i] = flowSent[f]++;
+		ringSent[i] = 1;
+		ringReceived[i] = 0;
+		pending.put(key, i);
+	}
+	
+	private void received(Packet packet) {
+		nbDestination++;
+		int s = pending.find(fingerprint(packet));
+		if (s < 0) {
+			nbUnknown++;
+			if (verbose)
+				System.out.println(String.format("Unknown: destination #%d %s", packet.getPacketNumber(), describe(packet.getSourceIPInt(), packet.getDestinationIPInt(),
+						packet.getSourcePort() << 16 | packet.getDestinationPort(), packet.getTotalDataLength())));
+			return;
+		}
+		int i = pending.valueAt(s);
+		if (ringReceived[i]++ >= ringSent[i]) {
+			nbDuplicated++;
+			System.out.println(String.format("Duplicated: source #%d received again as destination #%d %s", ringPacketNumbers[i], packet.getPacketNumber(), describe(i)));
+			return;
+		}
+		
+		nbReceived++;
+		long delay = packet.getPacketTimeMicros() - ringTimes[i];
+		if (delay < 0) {
+			nbNegative++;
+			maxAdvance = Math.max(maxAdvance, -delay);
+		}
+		delays.record(delay);
+		if (verbose)
+			System.out.println(String.format("Received: source #%d as destination #%d after %.3f ms", ringPacketNumbers[i], packet.getPacketNumber(), delay / 1000.0));
+		
+		int f = ringFlows[i];
+		if (ringFlowSeqs[i] < flowMaxReceived[f]) {
+			nbReordered++;
+			System.out.println(String.format("Reordered: source #%d received as destination #%d, %d packets late %s", ringPacketNumbers[i], packet.getPacketNumber(),
+					flowMaxReceived[f] - ringFlowSeqs[i], describe(i)));
+		} else {
+			flowMaxReceived[f] = ringFlowSeqs[i];
+		}
+	}
+	
+	/**
+	 * Removes source packets sent before a given time from the ring, reporting those not received.
+	 * @param us Time (us).
+	 */
+	private void expire(long us) {
+		while (head < tail && ringTimes[(int)(head % ringKeys.length)] < us)
+			pop(true);
+	}
+	
+	/**
+	 * Removes the oldest source packet from the ring.
+	 * @param report {@code true} to report it as lost if it was not received.
+	 */
+	private void pop(boolean report) {
+		int i = (int)(head++ % ringKeys.length);
+		int s = pending.find(ringKeys[i]);
+		if (s >= 0 && pending.valueAt(s) == i)
+			pending.removeAt(s);
+		int lost = ringSent[i] - ringReceived[i];
+		if (report && lost > 0) {
+			nbLost += lost;
+			System.out.println(String.format("Lost: source #%d %s%s", ringPacketNumbers[i], describe(i), ringSent[i] > 1 ? String.format(" (%d of %d identical packets)", lost, ringSent[i]) : ""));
+		}
+	}
+	
+	private String describe(int i) {
+		return describe(ringSrcIPs[i], ringDstIPs[i], ringPorts[i], ringLengths[i]);
+	}
+	
+	private static String describe(int srcIP, int dstIP, int ports, int length) {
+		return String.format("%s:%d > %s:%d (%d bytes)", IPv4Frame.toString(srcIP), ports >>> 16, IPv4Frame.toString(dstIP), ports & 0xffff, length);
+	}
+	
+	/**
+	 * @return The summary of the correlation.
+	 */
+	public String generateStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Correlated %d source and %d destination packets: %d received (%6.3f%%), %d lost, %d duplicated, %d reordered, %d unknown",
+				nbSource, nbDestination, nbReceived, nbSource == 0 ? 0.0 : 100.0 * nbReceived / nbSource, nbLost, nbDuplicated, nbReordered, nbUnknown));
+		if (delays.getCount() > 0) {
+			sb.append(String.format("\nOne-way delay (ms): min %.3f", delays.getMin() / 1000.0));
+			for (double p : PCAPAnalyzer.PERCENTILES)
+				sb.append(String.format(" p%s %.3f", p == Math.rint(p) ? String.valueOf((long)p) : String.valueOf(p), delays.getValueAtPercentile(p) / 1000.0));
+			sb.append(String.format(" max %.3f", delays.getMax() / 1000.0));
+		}
+		if (nbNegative > 0)
+			sb.append(String.format("\n%d packets received before being sent (up to %.3f ms): are both captures clocks synchronized?", nbNegative, maxAdvance / 1000.0));
+		if (nbOverflow > 0)
+			sb.append(String.format("\n%d packets not correlated because more than %d packets were pending (see -D%s)", nbOverflow, ringKeys.length, PCAPAnalyzer.CORRELATE_CAPACITY_PROP));
+		return sb.toString();
+	}
+
+}
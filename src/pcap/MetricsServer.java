@@ -0,0 +1,125 @@
+package pcap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import pcap.filters.PrometheusMetricsSink;
+
+/**
+ * Minimal HTTP server answering {@code GET /metrics} on localhost with the last snapshot of a
+ * {@link PrometheusMetricsSink}, so that Prometheus can scrape Filters metrics during live
+ * captures. Requests are served one at a time by a daemon thread, which only reads the published
+ * snapshot: scrapes never block the packet processing threads.
+ *
+ * @author Matthieu Labas
+ */
+public class MetricsServer implements Runnable {
+	
+	/** Time (ms) a client has to send its request. */
+	private static final int READ_TIMEOUT = 5000;
+	
+	private final ServerSocket server;
+	
+	private final PrometheusMetricsSink sink;
+	
+	private final Thread thread;
+	
+	private volatile boolean closed;
+	
+	/**
+	 * Starts the server.
+	 * @param port The TCP port to listen to, on the loopback interface.
+	 * @param sink The sink whose snapshots are served.
+	 * @throws IOException if the port cannot be listened to.
+	 */
+	public MetricsServer(int port, PrometheusMetricsSink sink) throws IOException {
+		this.sink = sink;
+		server = new ServerSocket(port, 16, InetAddress.getByName(null));
+		thread = new Thread(this, "MetricsServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void run() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if (closed)
+					break;
+				continue;
+			}
+			try {
+				serve(socket);
+			} catch (IOException e) { // Client went away: serve the next one
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+	
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(READ_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		String request = in.readLine();
+		if (request == null)
+			return;
+		String header;
+		do { // Headers are ignored
+			header = in.readLine();
+		} while (header != null && !header.isEmpty());
+		
+		String[] parts = request.split(" ");
+		String method = parts[0];
+		String path = (parts.length > 1 ? parts[1] : "");
+		int ich = path.indexOf('?');
+		if (ich >= 0)
+			path = path.substring(0, ich);
+		OutputStream out = socket.getOutputStream();
+		if (!method.equals("GET") && !method.equals("HEAD")) {
+			respond(out, "405 Method Not Allowed", null, false);
+		} else if (!path.equals("/metrics") && !path.equals("/")) {
+			respond(out, "404 Not Found", null, false);
+		} else {
+			respond(out, "200 OK", sink.getSnapshot(), method.equals("HEAD"));
+		}
+	}
+	
+	private static void respond(OutputStream out, String status, byte[] body, boolean headOnly) throws IOException {
+		if (body == null)
+			body = (status + "\n").getBytes("ISO-8859-1");
+		String headers = String.format("HTTP/1.1 %s\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: %d\r\nConnection: close\r\n\r\n",
+				status, body.length);
+		out.write(headers.getBytes("ISO-8859-1"));
+		if (!headOnly)
+			out.write(body);
+		out.flush();
+	}
+	
+	/**
+	 * @return The port the server listens to.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Stops the server.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) { }
+	}
+
+}
@@ -101,6 +101,10 @@ public abstract class NetworkFrame {
 		public int checksum;
 		public Inet4Address srcIP;
 		public Inet4Address dstIP;
+		/** Source IP address as a 32-bits integer (network order). */
+		public int srcAddress;
+		/** Destination IP address as a 32-bits integer (network order). */
+		public int dstAddress;
 		public byte[] options;
 		
 		public IPv4Frame(ByteBuffer buf) throws IOException {
@@ -123,8 +127,10 @@ public abstract class NetworkFrame {
 				try {
 					buf.get(ip);
 					srcIP = (Inet4Address)InetAddress.getByAddress(ip);
+					srcAddress = toInt(ip);
 					buf.get(ip);
 					dstIP = (Inet4Address)InetAddress.getByAddress(ip);
+					dstAddress = toInt(ip);
 				} catch (UnknownHostException e) {
 					throw new IOException(e.getMessage());
 				}
@@ -137,6 +143,18 @@ public abstract class NetworkFrame {
 			}
 		}
 		
+		private static int toInt(byte[] ip) {
+			return (ip[0] & 0xff) << 24 | (ip[1] & 0xff) << 16 | (ip[2] & 0xff) << 8 | (ip[3] & 0xff);
+		}
+		
+		/**
+		 * @param address An IP address as a 32-bits integer (network order).
+		 * @return The dotted representation of the address (e.g. {@code "10.0.0.1"}).
+		 */
+		public static String toString(int address) {
+			return (address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff) + "." + (address & 0xff);
+		}
+		
 		@Override
 		public int getHeaderSize() {
 			return 4 * ihl;
@@ -157,6 +175,12 @@ public abstract class NetworkFrame {
 	}
 	
 	public static class TCPFrame extends NetworkFrame {
+		public final static int FLAG_FIN = 0x01;
+		public final static int FLAG_SYN = 0x02;
+		public final static int FLAG_RST = 0x04;
+		public final static int FLAG_PSH = 0x08;
+		public final static int FLAG_ACK = 0x10;
+		
 		public int src_port;
 		public int dstPort;
 		public int seqnum;
@@ -1,10 +1,14 @@
 package pcap;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.URL;
@@ -20,14 +24,33 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import pcap.filters.AsyncFilterPrinter;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.FileMetricsSink;
 import pcap.filters.FilterPrinter;
 import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.filters.PrometheusMetricsSink;
+import pcap.filters.TimedFilter;
+import pcap.filters.impl.Burst;
+import pcap.filters.impl.Distinct;
+import pcap.filters.impl.Duplicate;
 import pcap.filters.impl.Empty;
+import pcap.filters.impl.Gap;
+import pcap.filters.impl.MPEGTS;
 import pcap.filters.impl.PrintAll;
 import pcap.filters.impl.RTP;
+import pcap.filters.impl.RTT;
+import pcap.filters.impl.Rate;
+import pcap.filters.impl.Search;
+import pcap.filters.impl.Sequence;
 import pcap.filters.impl.Stat;
 import pcap.filters.impl.StatDest;
 import pcap.filters.impl.StatSource;
+import pcap.filters.impl.TCPHealth;
+import pcap.filters.impl.TopDest;
+import pcap.filters.impl.TopFlow;
+import pcap.filters.impl.TopSource;
 
 /**
  * Main class performing PCAP stream analysis.
@@ -98,6 +121,354 @@ public class PCAPAnalyzer implements FilterPrinter {
 		} catch (NumberFormatException e) { }
 	}
 	
+	/**
+	 * Property names controlling the bounds of the reordering/duplication FIFO size, when it adapts
+	 * to the observed reordering depth.
+	 * @see #REORDUPL_WINDOW_MIN
+	 * @see #REORDUPL_WINDOW_MAX
+	 */
+	public static final String REORDUPL_MIN_PROP = "reordupl.min";
+	public static final String REORDUPL_MAX_PROP = "reordupl.max";
+	
+	/**
+	 * Bounds of the reordering/duplication FIFO size. When they differ, Counter Filters start with
+	 * {@link #DEFAULT_REORDUPL_WINDOW} and adapt their FIFO size between both bounds according to
+	 * the reordering depth they observe ({@code java -Dreordupl.min=10 -Dreordupl.max=10000 ...}).
+	 * By default, both are equal to {@link #DEFAULT_REORDUPL_WINDOW} (fixed FIFO size).
+	 */
+	public static int REORDUPL_WINDOW_MIN = DEFAULT_REORDUPL_WINDOW;
+	public static int REORDUPL_WINDOW_MAX = DEFAULT_REORDUPL_WINDOW;
+	static {
+		try {
+			REORDUPL_WINDOW_MIN = Integer.parseInt(System.getProperty(REORDUPL_MIN_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			REORDUPL_WINDOW_MAX = Integer.parseInt(System.getProperty(REORDUPL_MAX_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property name controlling the maximum time packets can stay in reordering/duplication FIFO.
+	 * @see #REORDUPL_DEADLINE
+	 */
+	public static final String REORDUPL_DEADLINE_PROP = "reordupl.deadline";
+	
+	/**
+	 * Maximum time (ms, in packet time) a packet can stay in a Counter Filter reordering/duplication
+	 * FIFO before being released to count losses, whatever the FIFO size. 0 to disable (default).<br/>
+	 * This value can be set through the {@code "reordupl.deadline"} System property
+	 * ({@code java -Dreordupl.deadline=200 ...}).
+	 */
+	public static int REORDUPL_DEADLINE = 0;
+	static {
+		try {
+			REORDUPL_DEADLINE = Integer.parseInt(System.getProperty(REORDUPL_DEADLINE_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property name controlling the histograms of statistics Filters.
+	 * @see #HISTOGRAMS
+	 */
+	public static final String HISTOGRAMS_PROP = "histograms";
+	
+	/**
+	 * {@code true} if statistics Filters keep histograms of packet sizes and inter-arrival gaps to
+	 * display their percentiles ({@code java -Dhistograms=true ...}). They are disabled by default as
+	 * they are recorded packet by packet, which prevents batches from being aggregated with SIMD
+	 * instructions.
+	 */
+	public static boolean HISTOGRAMS = Boolean.getBoolean(HISTOGRAMS_PROP);
+	
+	/**
+	 * Property name controlling the percentiles displayed by statistics Filters.
+	 * @see #PERCENTILES
+	 */
+	public static final String PERCENTILES_PROP = "percentiles";
+	
+	/**
+	 * Percentiles of packet size and inter-arrival gap displayed by statistics Filters. They can
+	 * be set through the {@code "percentiles"} System property ({@code java -Dpercentiles=50,99,99.9 ...}).
+	 */
+	public static double[] PERCENTILES = { 50, 90, 99 };
+	static {
+		String prop = System.getProperty(PERCENTILES_PROP);
+		if (prop != null) {
+			try {
+				String[] values = prop.split(",");
+				double[] percentiles = new double[values.length];
+				for (int i = 0; i < values.length; i++)
+					percentiles[i] = Double.parseDouble(values[i]);
+				PERCENTILES = percentiles;
+			} catch (NumberFormatException e) {
+				System.err.println(String.format("Invalid %s '%s': %s", PERCENTILES_PROP, prop, e.getMessage()));
+			}
+		}
+	}
+	
+	/**
+	 * Property name controlling the RTP clock rate of dynamic payload types.
+	 * @see #RTP_CLOCK
+	 */
+	public static final String RTP_CLOCK_PROP = "rtp.clock";
+	
+	/**
+	 * RTP clock rate (Hz) used to compute the jitter of streams with dynamic payload types (static
+	 * ones use their RFC 3551 rate). It can be set through the {@code "rtp.clock"} System property
+	 * ({@code java -Drtp.clock=90000 ...}).
+	 */
+	public static int RTP_CLOCK = 8000;
+	static {
+		try {
+			RTP_CLOCK = Integer.parseInt(System.getProperty(RTP_CLOCK_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling top-K Filters ({@code TOPSRC}, {@code TOPDST}, {@code TOPFLOW}).
+	 * @see #TOP_K
+	 * @see #TOP_COUNTERS
+	 * @see #TOP_BYTES
+	 */
+	public static final String TOP_K_PROP = "top";
+	public static final String TOP_COUNTERS_PROP = "top.counters";
+	public static final String TOP_BYTES_PROP = "top.bytes";
+	
+	/** Number of heaviest keys displayed by top-K Filters ({@code java -Dtop=20 ...}). */
+	public static int TOP_K = 10;
+	
+	/**
+	 * Number of counters kept by top-K Filters ({@code java -Dtop.counters=10000 ...}). More
+	 * counters give smaller errors, whatever the number of distinct keys.
+	 */
+	public static int TOP_COUNTERS = 1000;
+	
+	/** {@code true} if top-K Filters rank keys by bytes rather than packets ({@code java -Dtop.bytes=true ...}). */
+	public static boolean TOP_BYTES = Boolean.getBoolean(TOP_BYTES_PROP);
+	static {
+		try {
+			TOP_K = Integer.parseInt(System.getProperty(TOP_K_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			TOP_COUNTERS = Integer.parseInt(System.getProperty(TOP_COUNTERS_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling the rolling rates of statistics Filters.
+	 * @see #RATE
+	 * @see #RATE_BUCKET
+	 * @see #RATE_WINDOWS
+	 */
+	public static final String RATE_PROP = "rate";
+	public static final String RATE_BUCKET_PROP = "rate.bucket";
+	public static final String RATE_WINDOWS_PROP = "rate.windows";
+	
+	/**
+	 * {@code true} if all statistics Filters display rolling rates, not only the {@code RATE}
+	 * Filter ({@code java -Drate=true ...}). Counter Filters and {@code RTP} then also display
+	 * rolling losses.
+	 */
+	public static boolean RATE = Boolean.getBoolean(RATE_PROP);
+	
+	/** Duration (ms, in packet time) of the time buckets of rolling rates ({@code java -Drate.bucket=100 ...}). */
+	public static int RATE_BUCKET = 100;
+	
+	/** Durations (s) of the sliding windows of rolling rates ({@code java -Drate.windows=1,10,60 ...}). */
+	public static int[] RATE_WINDOWS = { 1, 10, 60 };
+	static {
+		try {
+			RATE_BUCKET = Integer.parseInt(System.getProperty(RATE_BUCKET_PROP));
+		} catch (NumberFormatException e) { }
+		String prop = System.getProperty(RATE_WINDOWS_PROP);
+		if (prop != null) {
+			try {
+				String[] values = prop.split(",");
+				int[] windows = new int[values.length];
+				for (int i = 0; i < values.length; i++)
+					windows[i] = Integer.parseInt(values[i]);
+				RATE_WINDOWS = windows;
+			} catch (NumberFormatException e) {
+				System.err.println(String.format("Invalid %s '%s': %s", RATE_WINDOWS_PROP, prop, e.getMessage()));
+			}
+		}
+	}
+	
+	/**
+	 * Property name controlling the reordering delay of the {@code TCP} Filter.
+	 * @see #TCP_REORDER
+	 */
+	public static final String TCP_REORDER_PROP = "tcp.reorder";
+	
+	/**
+	 * Delay (ms) within which a segment filling a sequence hole is considered out-of-order rather
+	 * than retransmitted ({@code java -Dtcp.reorder=3 ...}).
+	 */
+	public static int TCP_REORDER = 3;
+	
+	/** Property name controlling the idle timeout of flows of the {@code TCP} Filter. */
+	public static final String TCP_TIMEOUT_PROP = "tcp.timeout";
+	
+	/**
+	 * Delay (ms, in packet time) after which flows without segments are forgotten by the {@code TCP}
+	 * Filter, their counters being kept in totals ({@code java -Dtcp.timeout=60000 ...}).
+	 */
+	public static int TCP_TIMEOUT = 60000;
+	static {
+		try {
+			TCP_REORDER = Integer.parseInt(System.getProperty(TCP_REORDER_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			TCP_TIMEOUT = Integer.parseInt(System.getProperty(TCP_TIMEOUT_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling the {@code RTT} Filter.
+	 * @see #RTT_PENDING
+	 * @see #RTT_TIMEOUT
+	 * @see #RTT_SERVERS
+	 */
+	public static final String RTT_PENDING_PROP = "rtt.pending";
+	public static final String RTT_TIMEOUT_PROP = "rtt.timeout";
+	public static final String RTT_SERVERS_PROP = "rtt.servers";
+	
+	/**
+	 * Number of segments waiting for their ACK kept by the {@code RTT} Filter
+	 * ({@code java -Drtt.pending=65536 ...}). Memory does not grow beyond it, whatever the traffic.
+	 */
+	public static int RTT_PENDING = 65536;
+	
+	/** Delay (ms) after which a segment is no longer expected to be ACKed ({@code java -Drtt.timeout=3000 ...}). */
+	public static int RTT_TIMEOUT = 3000;
+	
+	/** Maximum number of hosts the {@code RTT} Filter keeps a histogram for ({@code java -Drtt.servers=256 ...}). */
+	public static int RTT_SERVERS = 256;
+	static {
+		try {
+			RTT_PENDING = Integer.parseInt(System.getProperty(RTT_PENDING_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			RTT_TIMEOUT = Integer.parseInt(System.getProperty(RTT_TIMEOUT_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			RTT_SERVERS = Integer.parseInt(System.getProperty(RTT_SERVERS_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling the {@code DUP} Filter.
+	 * @see #DUP_WINDOW
+	 * @see #DUP_SIZE
+	 */
+	public static final String DUP_WINDOW_PROP = "dup.window";
+	public static final String DUP_SIZE_PROP = "dup.size";
+	
+	/** Delay (ms) during which a packet can be duplicated ({@code java -Ddup.window=100 ...}). */
+	public static int DUP_WINDOW = 100;
+	
+	/**
+	 * Number of packets remembered by the {@code DUP} Filter ({@code java -Ddup.size=65536 ...}).
+	 * Memory does not grow beyond it, whatever the traffic.
+	 */
+	public static int DUP_SIZE = 65536;
+	static {
+		try {
+			DUP_WINDOW = Integer.parseInt(System.getProperty(DUP_WINDOW_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			DUP_SIZE = Integer.parseInt(System.getProperty(DUP_SIZE_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling the correlation of two captures ({@code -correlate} option).
+	 * @see #CORRELATE_WINDOW
+	 * @see #CORRELATE_PREFIX
+	 * @see #CORRELATE_CAPACITY
+	 * @see Correlator
+	 */
+	public static final String CORRELATE_WINDOW_PROP = "correlate.window";
+	public static final String CORRELATE_PREFIX_PROP = "correlate.prefix";
+	public static final String CORRELATE_CAPACITY_PROP = "correlate.capacity";
+	
+	/** Delay (ms) after which a packet not received is lost ({@code java -Dcorrelate.window=1000 ...}). */
+	public static int CORRELATE_WINDOW = 1000;
+	
+	/** Number of data bytes used to identify packets ({@code java -Dcorrelate.prefix=64 ...}). */
+	public static int CORRELATE_PREFIX = 64;
+	
+	/**
+	 * Maximum number of packets waiting to be received ({@code java -Dcorrelate.capacity=262144 ...}).
+	 * Memory does not grow beyond it, whatever the captures size.
+	 */
+	public static int CORRELATE_CAPACITY = 262144;
+	static {
+		try {
+			CORRELATE_WINDOW = Integer.parseInt(System.getProperty(CORRELATE_WINDOW_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			CORRELATE_PREFIX = Integer.parseInt(System.getProperty(CORRELATE_PREFIX_PROP));
+		} catch (NumberFormatException e) { }
+		try {
+			CORRELATE_CAPACITY = Integer.parseInt(System.getProperty(CORRELATE_CAPACITY_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property name controlling the period at which metrics served by {@code -http} are updated.
+	 * @see #HTTP_PERIOD
+	 */
+	public static final String HTTP_PERIOD_PROP = "http.period";
+	
+	/**
+	 * Period (ms, in packet time) at which Filters metrics served by {@code -http} are updated
+	 * ({@code java -Dhttp.period=5000 ...}).
+	 */
+	public static int HTTP_PERIOD = 1000;
+	static {
+		try {
+			HTTP_PERIOD = Integer.parseInt(System.getProperty(HTTP_PERIOD_PROP));
+		} catch (NumberFormatException e) { }
+	}
+	
+	/**
+	 * Property names controlling the asynchronous display of Filters messages.
+	 * @see #PRINT_QUEUE
+	 * @see #PRINT_POLICY
+	 * @see AsyncFilterPrinter
+	 */
+	public static final String PRINT_QUEUE_PROP = "print.queue";
+	public static final String PRINT_POLICY_PROP = "print.policy";
+	
+	/**
+	 * Number of Filters messages waiting to be displayed by a separate thread
+	 * ({@code java -Dprint.queue=4096 ...}). Messages are displayed by packet processing threads if 0.
+	 */
+	public static int PRINT_QUEUE = 0;
+	
+	/**
+	 * What to do with Filters messages when {@link #PRINT_QUEUE} messages are waiting
+	 * ({@code java -Dprint.policy=block|drop|drop_verbose ...}).
+	 */
+	public static AsyncFilterPrinter.Policy PRINT_POLICY = AsyncFilterPrinter.Policy.DROP_VERBOSE;
+	static {
+		try {
+			PRINT_QUEUE = Integer.parseInt(System.getProperty(PRINT_QUEUE_PROP));
+		} catch (NumberFormatException e) { }
+		String policy = System.getProperty(PRINT_POLICY_PROP);
+		if (policy != null) {
+			try {
+				PRINT_POLICY = AsyncFilterPrinter.Policy.valueOf(policy.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.err.println(String.format("Unknown %s '%s'. Ignored.", PRINT_POLICY_PROP, policy));
+			}
+		}
+	}
+	
+	/** Period (ms, in packet time) at which {@link TimedFilter Timed Filters} are notified. */
+	public static final int TICK_PERIOD = 100;
+	
 	static {
 		// TODO: Register all built-in Filters here
 		registerBuiltinFilter(Empty.class, Empty.DESCRIPTION);
@@ -106,6 +477,19 @@ public class PCAPAnalyzer implements FilterPrinter {
 		registerBuiltinFilter(RTP.class, RTP.DESCRIPTION);
 		registerBuiltinFilter(StatSource.class, "STATSRC", StatSource.DESCRIPTION);
 		registerBuiltinFilter(StatDest.class, "STATDST", StatDest.DESCRIPTION);
+		registerBuiltinFilter(TopSource.class, "TOPSRC", TopSource.DESCRIPTION);
+		registerBuiltinFilter(TopDest.class, "TOPDST", TopDest.DESCRIPTION);
+		registerBuiltinFilter(TopFlow.class, "TOPFLOW", TopFlow.DESCRIPTION);
+		registerBuiltinFilter(Distinct.class, Distinct.DESCRIPTION);
+		registerBuiltinFilter(Rate.class, Rate.DESCRIPTION);
+		registerBuiltinFilter(MPEGTS.class, "TS", MPEGTS.DESCRIPTION);
+		registerBuiltinFilter(TCPHealth.class, "TCP", TCPHealth.DESCRIPTION);
+		registerBuiltinFilter(RTT.class, RTT.DESCRIPTION);
+		registerBuiltinFilter(Sequence.class, "SEQ", Sequence.DESCRIPTION);
+		registerBuiltinFilter(Search.class, Search.DESCRIPTION);
+		registerBuiltinFilter(Duplicate.class, "DUP", Duplicate.DESCRIPTION);
+		registerBuiltinFilter(Burst.class, Burst.DESCRIPTION);
+		registerBuiltinFilter(Gap.class, Gap.DESCRIPTION);
 	}
 	
 	public static boolean registerBuiltinFilter(Class<?> filterClass, String code, String description) {
@@ -132,7 +516,56 @@ public class PCAPAnalyzer implements FilterPrinter {
 		return registerBuiltinFilter(filterClass, null, description);
 	}
 	
+	/**
+	 * @param filter A Filter instance.
+	 * @return The code of the Filter, or its alternate code if its class is not registered.
+	 */
+	public static String getFilterCode(MessageFilter filter) {
+		String code = filtersCodes.get(filter.getClass());
+		return (code == null ? filter.getAlternateCode() : code);
+	}
+	
+	/**
+	 * Splits a comma-separated list of Filter descriptions, ignoring commas between parentheses
+	 * (Filter parameters).
+	 * @param filterList The Filter list (e.g. {@code "SEQ(offset=4,width=32):Feed,STAT"}).
+	 * @return The Filter descriptions.
+	 */
+	public static List<String> splitFilterList(String filterList) {
+		List<String> list = new LinkedList<String>();
+		int depth = 0, start = 0;
+		for (int i = 0; i < filterList.length(); i++) {
+			char c = filterList.charAt(i);
+			if (c == '(')
+				depth++;
+			else if (c == ')' && depth > 0)
+				depth--;
+			else if (c == ',' && depth == 0) {
+				list.add(filterList.substring(start, i));
+				start = i + 1;
+			}
+		}
+		list.add(filterList.substring(start));
+		return list;
+	}
+	
+	/**
+	 * Instantiates a Filter from its description {@code CODE[(parameters)][:name]}.
+	 * @param codeAndName The Filter description.
+	 * @return The Filter, or {@code null} if it cannot be instantiated.
+	 */
 	public static MessageFilter createFilterIntance(String codeAndName) {
+		String parameters = null;
+		int par = codeAndName.indexOf('(');
+		if (par >= 0 && par < (codeAndName.indexOf(':') < 0 ? codeAndName.length() : codeAndName.indexOf(':'))) {
+			int end = codeAndName.lastIndexOf(')');
+			if (end < par || (end + 1 < codeAndName.length() && codeAndName.charAt(end + 1) != ':')) {
+				System.err.println(String.format("Filter '%s' parameters are not closed!", codeAndName));
+				return null;
+			}
+			parameters = codeAndName.substring(par + 1, end);
+			codeAndName = codeAndName.substring(0, par) + codeAndName.substring(end + 1);
+		}
 		String[] codeName = codeAndName.split(":", 2);
 		String code = codeName[0].toUpperCase();
 		String name = (codeName.length == 2 ? codeName[1] : null);
@@ -169,6 +602,24 @@ public class PCAPAnalyzer implements FilterPrinter {
 			return null;
 		}
 		
+		if (parameters != null && !(filter instanceof ConfigurableFilter)) {
+			System.err.println(String.format("Filter '%s' does not take parameters!", code));
+			return null;
+		}
+		if (filter instanceof ConfigurableFilter) {
+			if (parameters == null) // Checks mandatory parameters
+				parameters = "";
+			try {
+				((ConfigurableFilter)filter).configure(parameters);
+			} catch (IllegalArgumentException e) {
+				if (parameters.length() == 0)
+					System.err.println(String.format("Filter '%s': %s", code, e.getMessage()));
+				else
+					System.err.println(String.format("Filter '%s' parameters '%s': %s", code, parameters, e.getMessage()));
+				return null;
+			}
+		}
+		
 		// Finally, sets the logical name of the Filter
 		filter.setName(name);
 		
@@ -181,6 +632,21 @@ public class PCAPAnalyzer implements FilterPrinter {
 	/** {@code true} if Filters are allowed to be verbose (print information on-the-fly). */
 	private boolean printVerbose;
 	
+	/** Output of Filters messages. */
+	private PrintStream out;
+	
+	/** The printer displaying Filters messages in a separate thread, or {@code null}. */
+	private AsyncFilterPrinter asyncPrinter;
+	
+	/** The sink receiving Filters metrics, or {@code null}. */
+	private MetricsSink metricsSink;
+	
+	/** The sink publishing Filters metrics served by {@link #metricsServer}, or {@code null}. */
+	private PrometheusMetricsSink liveMetrics;
+	
+	/** The HTTP server serving Filters metrics, or {@code null}. */
+	private MetricsServer metricsServer;
+	
 	/** The PCAP decoder. */
 	private PCAPReader reader;
 	
@@ -210,6 +676,33 @@ public class PCAPAnalyzer implements FilterPrinter {
 		fragFIFO = new LinkedList<Packet>();
 		nFragmentsLost = 0;
 		nUnfinishedPackets = 0;
+		out = System.out;
+	}
+	
+	/**
+	 * Displays Filters messages in a separate thread, so that formatting and output do not slow
+	 * packet processing down. Filters should then print through {@link #getFilterPrinter()}.<br/>
+	 * Standard output is replaced by a single buffered stream shared by the writer thread and
+	 * {@code System.out} users, so that their lines cannot interleave. It is flushed when the writer
+	 * is idle, on {@link #watch()} and on {@link #finish()}.
+	 * @param capacity The number of messages that can wait to be displayed.
+	 * @param policy What to do with messages when {@code capacity} messages are waiting.
+	 */
+	public void enableAsyncPrinter(int capacity, AsyncFilterPrinter.Policy policy) {
+		if (asyncPrinter != null)
+			return;
+		System.out.flush();
+		out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), false);
+		System.setOut(out);
+		asyncPrinter = new AsyncFilterPrinter(this, out, capacity, policy);
+		asyncPrinter.setFilterVerbose(printVerbose);
+	}
+	
+	/**
+	 * @return The printer Filters should use to display their messages.
+	 */
+	public FilterPrinter getFilterPrinter() {
+		return (asyncPrinter == null ? this : asyncPrinter);
 	}
 	
 	/**
@@ -288,6 +781,12 @@ public class PCAPAnalyzer implements FilterPrinter {
 		// Call finish() on all Filters of all Selectors
 		for (Selector selector : selectors)
 			selector.finish();
+		if (metricsSink != null)
+			metricsSink.close();
+		if (metricsServer != null)
+			metricsServer.close();
+		if (asyncPrinter != null)
+			asyncPrinter.close();
 		
 		t0 = System.currentTimeMillis() - t0;
 		
@@ -298,6 +797,7 @@ public class PCAPAnalyzer implements FilterPrinter {
 		if (lastPacket >= 0)
 			System.out.println(String.format("[Processed %d packets in %.3f s (%.3f packets/s)].",
 					getLastPacketNumber(), t0 / 1000.0, 1000.0 * getLastPacketNumber() / t0));
+		out.flush();
 	}
 	
 	/**
@@ -405,6 +905,81 @@ public class PCAPAnalyzer implements FilterPrinter {
 		return nSelProcess;
 	}
 	
+	/**
+	 * Notifies Timed Filters of all Selectors of the current packet time.
+	 * @param timeMillis The current packet time (ms).
+	 * @see Selector#tick(long)
+	 */
+	public void tick(long timeMillis) {
+		for (Selector selector : selectors)
+			selector.tick(timeMillis);
+	}
+	
+	/**
+	 * Shards Filters of all Selectors over several threads.
+	 * @param nShards The number of shards (threads) per Filter.
+	 * @see Selector#shardFilters(int)
+	 */
+	public void shardFilters(int nShards) {
+		for (Selector selector : selectors)
+			selector.shardFilters(nShards);
+	}
+	
+	/**
+	 * Sets the size of packet batches sent to Filters of all Selectors.
+	 * @param size The number of packets per batch.
+	 * @see Selector#setBatchSize(int)
+	 */
+	public void setBatchSize(int size) {
+		for (Selector selector : selectors)
+			selector.setBatchSize(size);
+	}
+	
+	/**
+	 * Sets the sink receiving the metrics of Filters of all Selectors, in addition to their
+	 * statistics displayed on watch and finish. The sink is flushed after every watch and closed
+	 * on {@link #finish()}.
+	 * @param sink The metrics sink.
+	 * @see Selector#setMetricsSink(MetricsSink)
+	 */
+	public void setMetricsSink(MetricsSink sink) {
+		metricsSink = sink;
+		for (Selector selector : selectors)
+			selector.setMetricsSink(sink);
+	}
+	
+	/**
+	 * Serves the metrics of Filters of all Selectors in Prometheus text format on
+	 * {@code http://localhost:<port>/metrics}. Metrics are updated by {@link #publishMetrics()}.
+	 * @param port The TCP port to listen to.
+	 * @throws IOException if the port cannot be listened to.
+	 * @see MetricsServer
+	 */
+	public void enableMetricsServer(int port) throws IOException {
+		if (metricsServer != null)
+			return;
+		liveMetrics = new PrometheusMetricsSink();
+		metricsServer = new MetricsServer(port, liveMetrics);
+	}
+	
+	/**
+	 * Publishes the current live metrics (counters) of Filters of all Selectors to the HTTP server,
+	 * if enabled. Metrics are only read by the server once published, so scrapes do not slow packet
+	 * processing down, and sharded Filters publish their own metrics so that the calling thread
+	 * never waits for them (see {@link pcap.filters.LiveMetricsFilter}).<br/>
+	 * As it is called when packets are processed, the time of publication is published too, so that
+	 * stale metrics can be detected when no packets are received (see
+	 * {@link PrometheusMetricsSink}).
+	 * @see Selector#writeLiveMetrics(MetricsSink)
+	 */
+	public void publishMetrics() {
+		if (liveMetrics == null)
+			return;
+		for (Selector selector : selectors)
+			selector.writeLiveMetrics(liveMetrics);
+		liveMetrics.flush();
+	}
+	
 	/**
 	 * Enable watch on all Selectors.
 	 * @see Selector#enableWatch()
@@ -420,27 +995,31 @@ public class PCAPAnalyzer implements FilterPrinter {
 	public void watch() {
 		for (Selector selector : selectors)
 			selector.watch();
+		if (metricsSink != null)
+			metricsSink.flush();
+		out.flush();
 	}
 	
 	@Override
 	public void setFilterVerbose(boolean verbose) {
 		printVerbose = verbose;
+		if (asyncPrinter != null)
+			asyncPrinter.setFilterVerbose(verbose);
+		for (Selector selector : selectors)
+			selector.setFilterVerbose(verbose);
 	}
 	
 	@Override
 	public void filterPrint(MessageFilter filter, String format, Object... args) {
 		String name = filter.getName();
 		name = (name == null ? "" : ":"+name);
-		String code = filtersCodes.get(filter.getClass());
-		if (code == null)
-			code = filter.getAlternateCode();
-		String head = String.format("[%s%s]: ", code, name);
+		String head = String.format("[%s%s]: ", getFilterCode(filter), name);
 		String sep = String.format("%"+head.length()+"s", " ");
 		String str = String.format(format, args); // format.replace("%", "%%")
 		String[] tab = str.split("\n");
-		System.out.println(head+tab[0]);
+		out.println(head+tab[0]);
 		for (int i = 1; i < tab.length; i++)
-			System.out.println(sep+tab[i]);
+			out.println(sep+tab[i]);
 	}
 	
 	@Override
@@ -459,17 +1038,24 @@ public class PCAPAnalyzer implements FilterPrinter {
 		System.out.println("    [-join <multicast address>]                 Register on a multicast address (can have several)");
 		System.out.println("    [-select <sel param> <filter[:name][,...]>] Add Selector (can have several)");
 		System.out.println("    [-watch <s>]                                Specify Selectors watch period (s, default: 0(none))");
+		System.out.println("    [-batch <n>]                                Send packets to Filters by batches of n packets");
+		System.out.println("    [-shards <n>]                               Spread packets of statistics Filters over n threads by flow");
 		System.out.println("    [pcap file] (default: stdin)                PCAP file to parse");
 		System.out.println("    [-dump <pcap file>]                         Dump PCAP data read to a file");
 		System.out.println("    [-dumprot <size[:number]>]                  Max dump file size (MB) and number of rotating dump files");
+		System.out.println("    [-metrics <file>]                           Write Filters metrics on watch and finish to a CSV (or JSON lines if .json) file");
+		System.out.println("    [-metricsrot <size[:number]>]               Max metrics file size (MB) and number of rotating metrics files");
+		System.out.println("    [-http <port>]                              Serve Filters metrics to Prometheus on http://localhost:<port>/metrics");
 		System.out.println("    [-timespan <[start]:end>]                   Specify capture start/end time in format YYYY-MM-DD-HH-mm-ss");
+		System.out.println("    [-correlate <pcap file>]                    Correlate packets of the PCAP file (sent) with those of another capture (received)");
 		System.out.println("---");
 		System.out.println("\"sel param\" is a string like \"[<TCP|UDP>$][srcIP|ANY][:port]=[dstIP|ANY][:port]\"");
 		System.out.println("    e.g.: \"=230.116.1.1\" to receive packet sent to multicast address \"230.116.1.1\"");
 		System.out.println("    e.g.: \"UDP$10.116.4.41=\" to process UDP packets sent by IP \"10.116.4.41\"");
 		System.out.println("    e.g.: \"10.116.4.41\" to process any packets sent by or to IP \"10.116.4.41\"");
-		System.out.println("\"filter list\" is comma-separated list of registered Filters, with optional name (after ':')");
+		System.out.println("\"filter list\" is comma-separated list of registered Filters, with optional parameters (between parentheses) and name (after ':')");
 		System.out.println("    e.g.: \"RTP:Cam1,STAT\"");
+		System.out.println("    e.g.: \"SEQ(offset=4,width=32,le):Feed\"");
 		System.out.println("---");
 		System.out.println("Examples:");
 		System.out.println("\""+prog+" -select 230.115.1.1 RAWVID:C8 -select 230.116.1.1 RAWVID:C9\"");
@@ -502,15 +1088,44 @@ public class PCAPAnalyzer implements FilterPrinter {
 		}
 	}
 	
+	/**
+	 * Correlates packets read by {@code pcapan} with those of another capture and displays the result.
+	 * Packets are selected by Selectors, whose Filters are not used.
+	 * @see Correlator
+	 */
+	private static void correlate(PCAPAnalyzer pcapan, String filename) {
+		System.out.println("Correlating with "+filename);
+		PCAPReader destination = null;
+		try {
+			destination = new PCAPReader(new FileInputStream(filename));
+		} catch (IOException e) {
+			System.err.println(String.format("Unable to read from '%s': %s", filename, e.getMessage()));
+			System.exit(1);
+		}
+		Correlator correlator = new Correlator(pcapan.reader, destination, pcapan.getSelectors(), pcapan.printVerbose);
+		correlator.run();
+		destination.close();
+		System.out.println(correlator.generateStats());
+	}
+	
 	public static void main(String[] args) {
 		PCAPAnalyzer pcapan = new PCAPAnalyzer();
 		PCAPDump dump = null;
 		String filenameIn = null;
+		String filenameCorrelate = null;
+		FileMetricsSink metrics = null;
+		int httpPort = 0;
+		long metricsMaxSize = 0;
+		int metricsMaxNum = 0;
 		int watch = 0;
+		int nShards = 0;
+		int batchSize = 0;
 		long timeStart = -1l;
 		long timeEnd = -1l;
 		
 		Runtime.getRuntime().addShutdownHook(pcapan.getShutdownHook());
+		if (PRINT_QUEUE > 0)
+			pcapan.enableAsyncPrinter(PRINT_QUEUE, PRINT_POLICY);
 		
 		int nSelectors = 0;
 		for (int i = 0; i < args.length; i++) {
@@ -544,13 +1159,13 @@ public class PCAPAnalyzer implements FilterPrinter {
 				pcapan.addSelector(selector);
 				
 				MessageFilter filter;
-				for (String fil : args[++i].split(",")) {
+				for (String fil : splitFilterList(args[++i])) {
 					filter = createFilterIntance(fil);
 					if (filter == null) {
 						System.err.println(String.format("Wrong Filter description '%s'", fil));
 						continue;
 					}
-					filter.setPrinter(pcapan);
+					filter.setPrinter(pcapan.getFilterPrinter());
 					selector.addFilter(filter);
 				}
 				continue;
@@ -566,6 +1181,30 @@ public class PCAPAnalyzer implements FilterPrinter {
 				continue;
 			}
 			
+			if (args[i].equalsIgnoreCase("-shards")) {
+				try {
+					nShards = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					System.err.println(String.format("'%s %s' is not a number!", args[i-1], args[i]));
+					nShards = 0;
+				}
+				continue;
+			}
+			
+			if (args[i].equalsIgnoreCase("-batch")) {
+				try {
+					batchSize = Integer.parseInt(args[++i]);
+					if (batchSize > PacketBatch.MAX_CAPACITY) {
+						System.err.println(String.format("Batch size %d reduced to %d", batchSize, PacketBatch.MAX_CAPACITY));
+						batchSize = PacketBatch.MAX_CAPACITY;
+					}
+				} catch (NumberFormatException e) {
+					System.err.println(String.format("'%s %s' is not a number!", args[i-1], args[i]));
+					batchSize = 0;
+				}
+				continue;
+			}
+			
 			// Filter verbosity
 			if (args[i].equalsIgnoreCase("-v")) {
 				pcapan.setFilterVerbose(true);
@@ -595,6 +1234,37 @@ public class PCAPAnalyzer implements FilterPrinter {
 				continue;
 			}
 			
+			// Filters metrics file
+			if (args[i].equalsIgnoreCase("-metrics")) {
+				String filename = args[++i];
+				metrics = new FileMetricsSink(filename, FileMetricsSink.getFormat(filename));
+				continue;
+			}
+			
+			// Filters metrics file rotation
+			if (args[i].equalsIgnoreCase("-metricsrot")) {
+				String[] param = args[++i].split(":");
+				try {
+					metricsMaxSize = Long.parseLong(param[0]) * 1024l*1024l;
+					if (param.length > 1)
+						metricsMaxNum = Integer.parseInt(param[1]);
+				} catch (NumberFormatException e) {
+					System.err.println(String.format("Wrong %s option: %s", args[i-1], args[i]));
+				}
+				continue;
+			}
+			
+			// Filters metrics HTTP server
+			if (args[i].equalsIgnoreCase("-http")) {
+				try {
+					httpPort = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					System.err.println(String.format("'%s %s' is not a number!", args[i-1], args[i]));
+					httpPort = 0;
+				}
+				continue;
+			}
+			
 			// Capture start/end time
 			if (args[i].equalsIgnoreCase("-timespan")) {
 				DateFormat df = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
@@ -613,15 +1283,43 @@ public class PCAPAnalyzer implements FilterPrinter {
 				continue;
 			}
 			
+			// Capture to correlate with
+			if (args[i].equalsIgnoreCase("-correlate")) {
+				filenameCorrelate = args[++i];
+				continue;
+			}
+			
 			// Input stream
 			if (filenameIn != null)
 				System.out.println(String.format("File '%s' was already specified, it will be replace by '%s'.", filenameIn, args[i]));
 			filenameIn = args[i];
 		}
 		
+		pcapan.setFilterVerbose(pcapan.printVerbose); // Filters may have been created before '-v'
+		
+		if (nShards > 1)
+			pcapan.shardFilters(nShards);
+		
 		if (watch > 0)
 			pcapan.enableWatch();
 		
+		if (batchSize > 1)
+			pcapan.setBatchSize(batchSize);
+		
+		if (metrics != null) {
+			metrics.setRotation(metricsMaxSize, metricsMaxNum);
+			pcapan.setMetricsSink(metrics);
+		}
+		
+		if (httpPort > 0) {
+			try {
+				pcapan.enableMetricsServer(httpPort);
+			} catch (IOException e) {
+				System.err.println(String.format("Unable to serve metrics on port %d: %s", httpPort, e.getMessage()));
+				System.exit(1);
+			}
+		}
+		
 		InputStream is = System.in;
 		if (filenameIn != null) {
 			System.out.println("Analyzing "+filenameIn);
@@ -640,7 +1338,14 @@ public class PCAPAnalyzer implements FilterPrinter {
 			System.exit(1);
 		}
 		
+		if (filenameCorrelate != null) {
+			correlate(pcapan, filenameCorrelate);
+			return;
+		}
+		
 		long lastWatch = 0;
+		long lastTick = 0;
+		long lastPublish = 0;
 		long packetTimestamp;
 		
 		nSelectors = pcapan.getSelectors().size();
@@ -672,6 +1377,16 @@ public class PCAPAnalyzer implements FilterPrinter {
 			else {
 				// Send packet to Selectors and Filters
 				pcapan.processPacket(packet);
+				// Send time to Timed Filters
+				if (packetTimestamp - lastTick >= TICK_PERIOD) {
+					pcapan.tick(packetTimestamp);
+					lastTick = packetTimestamp;
+				}
+				// Publish metrics served over HTTP
+				if (httpPort > 0 && packetTimestamp - lastPublish >= HTTP_PERIOD) {
+					pcapan.publishMetrics();
+					lastPublish = packetTimestamp;
+				}
 				// Send watch events according to packet timestamp
 				if (watch > 0) {
 					if (lastWatch == 0) {
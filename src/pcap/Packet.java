@@ -8,6 +8,7 @@ import pcap.NetworkFrame.IPv4Frame;
 import pcap.NetworkFrame.TCPFrame;
 import pcap.NetworkFrame.UDPFrame;
 import pcap.PCAPReader.PCAPPacketHeader;
+import pcap.util.Hash;
 
 public class Packet {
 	
@@ -47,7 +48,7 @@ public class Packet {
 		this.data = data;
 		this.totalDatalen = totalDatalen;
 		nbFragments = 1;
-		moreFragments = ip4.isFragmented();
+		moreFragments = isFragmented();
 	}
 	
 	public Packet(Packet o, byte[] data) {
@@ -58,14 +59,14 @@ public class Packet {
 	 * @return {@code true} if packet is fragmented ('fragmentation' bit set in IP header).
 	 */
 	public boolean isFragmented() {
-		return ip4.isFragmented();
+		return ip4 != null && ip4.isFragmented();
 	}
 	
 	/**
 	 * @return {@code true} if packet is a fragment ('fragment offset' > 0 in IP header).
 	 */
 	public boolean isFragment() {
-		return ip4.isFragment();
+		return ip4 != null && ip4.isFragment();
 	}
 	
 	/**
@@ -117,6 +118,23 @@ public class Packet {
 		return Math.round(pcapHeader.ts_sec * 1000.0 + pcapHeader.ts_usec * .001);
 	}
 	
+	/**
+	 * @return The packet timestamp with the full PCAP precision (us), or -1 if unknown.
+	 */
+	public long getPacketTimeMicros() {
+		if (pcapHeader == null)
+			return -1;
+		return (pcapHeader.ts_sec & 0xffffffffl) * 1000000l + pcapHeader.ts_usec;
+	}
+	
+	/**
+	 * @param micros A timestamp (us), as returned by {@link #getPacketTimeMicros()}.
+	 * @return The timestamp rounded to the closest millisecond, as returned by {@link #getPacketTimeMillis()}.
+	 */
+	public static long microsToMillis(long micros) {
+		return micros < 0 ? -1 : (micros + 500) / 1000;
+	}
+	
 	public Date getPacketDate() {
 		return new Date(getPacketTimeMillis());
 	}
@@ -141,6 +159,51 @@ public class Packet {
 		return ip4.dstIP;
 	}
 	
+	/**
+	 * @return The source IP address as a 32-bits integer (network order).
+	 */
+	public int getSourceIPInt() {
+		return ip4.srcAddress;
+	}
+	
+	/**
+	 * @return The destination IP address as a 32-bits integer (network order).
+	 */
+	public int getDestinationIPInt() {
+		return ip4.dstAddress;
+	}
+	
+	/**
+	 * @return A 64-bits hash of the packet 5-tuple (protocol, source/destination IP and port).
+	 */
+	public long getFlowHash() {
+		return Hash.hashFlow(ip4.srcAddress, ip4.dstAddress, getSourcePort(), getDestinationPort(), getProtocol());
+	}
+	
+	/**
+	 * @return A 64-bits hash of the packet 5-tuple, identical for both directions of a connection.
+	 */
+	public long getConnectionHash() {
+		return Hash.hashConnection(ip4.srcAddress, ip4.dstAddress, getSourcePort(), getDestinationPort(), getProtocol());
+	}
+	
+	/**
+	 * @return The TCP header, or {@code null} if the packet is not TCP.
+	 */
+	public TCPFrame getTCPFrame() {
+		return tcpFrame;
+	}
+	
+	/**
+	 * @return The length of the TCP payload according to the IP header (i.e. without Ethernet
+	 *     padding), or 0 if the packet is not TCP.
+	 */
+	public int getTCPSegmentLength() {
+		if (tcpFrame == null)
+			return 0;
+		return Math.max(0, ip4.totalLen - ip4.getHeaderSize() - tcpFrame.getHeaderSize());
+	}
+	
 	public int getProtocol() {
 		if (udpFrame != null)
 			return NetworkFrame.PROTOCOL_UDP;
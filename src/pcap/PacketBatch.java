@@ -0,0 +1,219 @@
+package pcap;
+
+/**
+ * A batch of packets stored as primitive columns, so that Filters can process several packets
+ * in tight loops instead of one virtual call per packet.<br/>
+ * All column arrays are only valid for the first {@link #size()} entries and are reused once the
+ * batch is {@link #clear() cleared}. Available data of all packets are copied in a shared buffer
+ * ({@link #getData()}), at offset {@link #getDataOffsets()}{@code [i]}. The copy is only made the
+ * first time one of the data columns is requested, so that batches only read by Filters working on
+ * headers do not copy payloads.
+ *
+ * @author Matthieu Labas
+ */
+public class PacketBatch {
+	
+	/** Default number of packets in a batch. */
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	/** Maximum number of packets in a batch (keeps 32-bits sums of packet lengths from overflowing). */
+	public static final int MAX_CAPACITY = 32768;
+	
+	private final Packet[] packets;
+	private final long[] timesMillis;
+	private final long[] timesMicros;
+	private final int[] lengths;
+	private final int[] srcIPs;
+	private final int[] dstIPs;
+	private final int[] srcPorts;
+	private final int[] dstPorts;
+	private final int[] protocols;
+	private final boolean[] fragmented;
+	private final int[] packetNumbers;
+	private final int[] dataOffsets;
+	private final int[] dataLengths;
+	private byte[] data;
+	
+	/** Number of packets in the batch. */
+	private int size;
+	
+	/** Number of bytes used in {@link #data}. */
+	private int dataSize;
+	
+	/** Whether packets available data have been copied to {@link #data}. */
+	private boolean dataCopied;
+	
+	public PacketBatch(int capacity) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY)
+			throw new IllegalArgumentException(String.format("Batch capacity %d should be between 1 and %d!", capacity, MAX_CAPACITY));
+		packets = new Packet[capacity];
+		timesMillis = new long[capacity];
+		timesMicros = new long[capacity];
+		lengths = new int[capacity];
+		srcIPs = new int[capacity];
+		dstIPs = new int[capacity];
+		srcPorts = new int[capacity];
+		dstPorts = new int[capacity];
+		protocols = new int[capacity];
+		fragmented = new boolean[capacity];
+		packetNumbers = new int[capacity];
+		dataOffsets = new int[capacity];
+		dataLengths = new int[capacity];
+		data = new byte[0];
+		size = 0;
+		dataSize = 0;
+		dataCopied = false;
+	}
+	
+	public PacketBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Adds a packet to the batch.
+	 * @param packet The packet to add.
+	 * @return {@code false} if the batch is full and the packet was not added.
+	 */
+	public boolean add(Packet packet) {
+		if (size == packets.length)
+			return false;
+		int i = size++;
+		packets[i] = packet;
+		timesMicros[i] = packet.getPacketTimeMicros();
+		timesMillis[i] = Packet.microsToMillis(timesMicros[i]);
+		lengths[i] = packet.getTotalDataLength();
+		srcIPs[i] = packet.getSourceIPInt();
+		dstIPs[i] = packet.getDestinationIPInt();
+		srcPorts[i] = packet.getSourcePort();
+		dstPorts[i] = packet.getDestinationPort();
+		protocols[i] = packet.getProtocol();
+		fragmented[i] = packet.isFragmented();
+		packetNumbers[i] = packet.getPacketNumber();
+		return true;
+	}
+	
+	/**
+	 * Copies available data of all packets in the shared buffer, if not already done.
+	 */
+	private void copyData() {
+		if (dataCopied)
+			return;
+		for (int i = 0; i < size; i++) {
+			byte[] pdata = packets[i].getAvailableData();
+			if (dataSize + pdata.length > data.length) {
+				byte[] newData = new byte[Math.max(Math.max(2 * data.length, packets.length * 256), dataSize + pdata.length)];
+				System.arraycopy(data, 0, newData, 0, dataSize);
+				data = newData;
+			}
+			System.arraycopy(pdata, 0, data, dataSize, pdata.length);
+			dataOffsets[i] = dataSize;
+			dataLengths[i] = pdata.length;
+			dataSize += pdata.length;
+		}
+		dataCopied = true;
+	}
+	
+	/**
+	 * Empties the batch. Packet references are released.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			packets[i] = null;
+		size = 0;
+		dataSize = 0;
+		dataCopied = false;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return packets.length;
+	}
+	
+	public boolean isFull() {
+		return size == packets.length;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * @param i Index of the packet in the batch.
+	 * @return The original packet, for Filters that do not process columns.
+	 */
+	public Packet getPacket(int i) {
+		return packets[i];
+	}
+	
+	/** @return Packets timestamps (ms). */
+	public long[] getTimesMillis() {
+		return timesMillis;
+	}
+	
+	/** @return Packets timestamps (us). */
+	public long[] getTimesMicros() {
+		return timesMicros;
+	}
+	
+	/** @return Packets total data length. */
+	public int[] getLengths() {
+		return lengths;
+	}
+	
+	/** @return Packets source IP addresses. */
+	public int[] getSourceIPs() {
+		return srcIPs;
+	}
+	
+	/** @return Packets destination IP addresses. */
+	public int[] getDestinationIPs() {
+		return dstIPs;
+	}
+	
+	/** @return Packets source ports. */
+	public int[] getSourcePorts() {
+		return srcPorts;
+	}
+	
+	/** @return Packets destination ports. */
+	public int[] getDestinationPorts() {
+		return dstPorts;
+	}
+	
+	/** @return Packets IP protocol. */
+	public int[] getProtocols() {
+		return protocols;
+	}
+	
+	/** @return {@code true} for fragmented packets. */
+	public boolean[] getFragmented() {
+		return fragmented;
+	}
+	
+	/** @return Packets numbers in the stream. */
+	public int[] getPacketNumbers() {
+		return packetNumbers;
+	}
+	
+	/** @return The shared buffer holding the available data of all packets. */
+	public byte[] getData() {
+		copyData();
+		return data;
+	}
+	
+	/** @return Offset of packets available data in {@link #getData()}. */
+	public int[] getDataOffsets() {
+		copyData();
+		return dataOffsets;
+	}
+	
+	/** @return Length of packets available data in {@link #getData()}. */
+	public int[] getDataLengths() {
+		copyData();
+		return dataLengths;
+	}
+
+}
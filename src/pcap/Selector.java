@@ -3,15 +3,30 @@ package pcap;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
+import pcap.filters.AbstractMessageFilter;
+import pcap.filters.AlertFilter;
+import pcap.filters.BatchFilter;
+import pcap.filters.CombinableFilter;
+import pcap.filters.LiveMetricsFilter;
 import pcap.filters.MessageFilter;
+import pcap.filters.MetricsFilter;
+import pcap.filters.MetricsSink;
+import pcap.filters.ShardedFilter;
+import pcap.filters.TimedFilter;
 
 public class Selector {
 	
 	private static InetAddress INADDR_ANY;
 	
+	/** Cache of Filter classes which can safely receive packets through {@link BatchFilter#processBatch(PacketBatch)}. */
+	private static Map<Class<?>,Boolean> batchCapable = new HashMap<Class<?>,Boolean>();
+	
 	static {
 		try {
 			INADDR_ANY = InetAddress.getByAddress(new byte[]{0, 0, 0, 0});
@@ -30,8 +45,21 @@ public class Selector {
 	/**Additional Filters to handle watch events.*/
 	private List<MessageFilter> watchFilters;
 	
+	/**Batch of packets waiting to be sent to Filters, or {@code null} if packets are sent one by one.*/
+	private PacketBatch batch;
+	
+	/**The Selector description, as given on the command line.*/
+	private String description;
+	
+	/**Sink receiving the metrics of Filters on watch and finish, or {@code null}.*/
+	private MetricsSink metricsSink;
+	
+	/**Packet time of the last tick (ms).*/
+	private long timeMillis;
+	
 	public Selector() {
 		filters = new LinkedList<MessageFilter>();
+		description = "";
 	}
 	
 	/**
@@ -39,6 +67,7 @@ public class Selector {
 	 */
 	public Selector(String descr) {
 		this();
+		description = descr;
 		int ich = descr.indexOf('$');
 		if (ich >= 0) {
 			String prot = descr.substring(0, ich);
@@ -97,17 +126,81 @@ public class Selector {
 		return new InetSocketAddress(addr, port);
 	}
 	
+	/**
+	 * @return The Selector description, as given on the command line.
+	 */
+	public String getDescription() {
+		return description;
+	}
+	
+	/**
+	 * Sets the sink receiving the metrics of Filters implementing {@link MetricsFilter} after
+	 * they display their statistics, on watch and finish.
+	 * @param sink The metrics sink, or {@code null} to disable metrics.
+	 */
+	public void setMetricsSink(MetricsSink sink) {
+		metricsSink = sink;
+	}
+	
 	public void addFilter(MessageFilter filter) {
 		filters.add(filter);
 	}
 	
+	/**
+	 * Replaces every {@link CombinableFilter} by a {@link ShardedFilter} spreading its packets
+	 * over {@code nShards} threads. Other Filters are left untouched.<br/>
+	 * N.B. that this method should be called before {@link #enableWatch()}.
+	 * @param nShards The number of shards (threads) per Filter.
+	 */
+	public void shardFilters(int nShards) {
+		if (nShards < 2)
+			return;
+		for (ListIterator<MessageFilter> iter = filters.listIterator(); iter.hasNext();) {
+			MessageFilter filter = iter.next();
+			if (filter instanceof CombinableFilter)
+				iter.set(new ShardedFilter((CombinableFilter)filter, nShards));
+		}
+	}
+	
+	/**
+	 * Sets whether the Filters send verbose information to their printer.
+	 * @param verbose {@code false} to discard verbose information in Filters.
+	 * @see AbstractMessageFilter#setFilterVerbose(boolean)
+	 */
+	public void setFilterVerbose(boolean verbose) {
+		setFilterVerbose(filters, verbose);
+		if (watchFilters != null)
+			setFilterVerbose(watchFilters, verbose);
+	}
+	
+	private static void setFilterVerbose(List<MessageFilter> filters, boolean verbose) {
+		for (MessageFilter filter : filters) {
+			if (filter instanceof AbstractMessageFilter)
+				((AbstractMessageFilter)filter).setFilterVerbose(verbose);
+			else if (filter instanceof ShardedFilter)
+				((ShardedFilter)filter).setFilterVerbose(verbose);
+		}
+	}
+	
 	public void enableWatch() {
 		watchFilters = new LinkedList<MessageFilter>();
 		for (MessageFilter filter : filters) {
-			watchFilters.add(filter.duplicate());
+			MessageFilter watchFilter = filter.duplicate();
+			if (watchFilter instanceof AlertFilter) // Alerts are printed by the Filter itself
+				((AlertFilter)watchFilter).setAlerts(false);
+			watchFilters.add(watchFilter);
 		}
 	}
 	
+	/**
+	 * Sets the number of packets accumulated before being sent to Filters as a {@link PacketBatch}.
+	 * @param size The number of packets in a batch. Packets are sent one by one if it is less than 2.
+	 */
+	public void setBatchSize(int size) {
+		flushBatch();
+		batch = (size > 1 ? new PacketBatch(size) : null);
+	}
+	
 	public boolean acceptsPacket(Packet packet) {
 		// Check protocol
 		if (protocol != 0 && packet.getProtocol() != protocol)
@@ -142,12 +235,19 @@ public class Selector {
 	 * Sends the packet to all Filters and returns the number of Filters which were able to process
 	 * it.
 	 * @param packet The packet to send through the Filters.
-	 * @return The number of Filters which understood the packet.
+	 * @return The number of Filters which understood the packet. When packets are batched, it is
+	 *     the number of Filters which understood at least one packet of the batch when it is full, and
+	 *     0 otherwise. {@link ShardedFilter}s are not counted as they process packets asynchronously.
 	 */
 	public int process(Packet packet) {
+		if (batch != null) {
+			batch.add(packet);
+			return batch.isFull() ? flushBatch() : 0;
+		}
+		
 		int nFiltersOK = 0;
 		for (MessageFilter filter : filters)
-			if (filter.process(packet))
+			if (filter.process(packet) && !(filter instanceof ShardedFilter))
 				nFiltersOK++;
 		
 		// Send the packet to Watch Filters
@@ -159,14 +259,93 @@ public class Selector {
 		return nFiltersOK;
 	}
 	
+	/**
+	 * Sends the pending batch of packets to all Filters.
+	 * @return The number of Filters which understood at least one packet of the batch, not counting
+	 *     {@link ShardedFilter}s.
+	 */
+	public int flushBatch() {
+		if (batch == null || batch.isEmpty())
+			return 0;
+		
+		int nFiltersOK = 0;
+		for (MessageFilter filter : filters)
+			if (processBatch(filter, batch) > 0 && !(filter instanceof ShardedFilter))
+				nFiltersOK++;
+		
+		if (watchFilters != null) {
+			for (MessageFilter filter : watchFilters)
+				processBatch(filter, batch);
+		}
+		
+		batch.clear();
+		return nFiltersOK;
+	}
+	
+	/**
+	 * Sends a batch to a Filter, packet by packet if it does not implement {@link BatchFilter}.
+	 * @return The number of packets of the batch matching the Filter.
+	 */
+	private static int processBatch(MessageFilter filter, PacketBatch batch) {
+		if (filter instanceof BatchFilter && isBatchCapable(filter.getClass()))
+			return ((BatchFilter)filter).processBatch(batch);
+		
+		int nOK = 0;
+		for (int i = 0; i < batch.size(); i++)
+			if (filter.process(batch.getPacket(i)))
+				nOK++;
+		return nOK;
+	}
+	
+	/**
+	 * A sub-class overriding {@link MessageFilter#process(Packet)} without overriding
+	 * {@link BatchFilter#processBatch(PacketBatch)} would see its {@code process()} bypassed by the
+	 * inherited batch implementation: it then has to receive packets one by one.
+	 * @return {@code true} if {@code processBatch()} is defined at the same level or below {@code process()}.
+	 */
+	private static boolean isBatchCapable(Class<?> cls) {
+		Boolean capable = batchCapable.get(cls);
+		if (capable == null) {
+			try {
+				Class<?> clsProcess = cls.getMethod("process", Packet.class).getDeclaringClass();
+				Class<?> clsBatch = cls.getMethod("processBatch", PacketBatch.class).getDeclaringClass();
+				capable = clsProcess.isAssignableFrom(clsBatch);
+			} catch (NoSuchMethodException e) {
+				capable = false;
+			}
+			batchCapable.put(cls, capable);
+		}
+		return capable;
+	}
+	
+	/**
+	 * Sends the pending batch of packets to all Filters, then calls {@link TimedFilter#tick(long)}
+	 * on all Filters and Watch Filters implementing it.
+	 * @param timeMillis The current packet time (ms).
+	 */
+	public void tick(long timeMillis) {
+		this.timeMillis = timeMillis;
+		flushBatch();
+		for (MessageFilter filter : filters)
+			if (filter instanceof TimedFilter)
+				((TimedFilter)filter).tick(timeMillis);
+		if (watchFilters != null) {
+			for (MessageFilter filter : watchFilters)
+				if (filter instanceof TimedFilter)
+					((TimedFilter)filter).tick(timeMillis);
+		}
+	}
+	
 	/**
 	 * Calls the {@link MessageFilter#watch()} on all Watch Filters and
 	 * {@link MessageFilter#reset()} them.
 	 */
 	public void watch() {
+		flushBatch();
 		if (watchFilters != null) {
 			for (MessageFilter filter : watchFilters) {
 				filter.watch();
+				writeMetrics(filter, "watch");
 				filter.reset();
 			}
 		}
@@ -177,11 +356,76 @@ public class Selector {
 	 * @return The number of Filters which finished correctly.
 	 */
 	public int finish() {
+		flushBatch();
 		int nFiltersOK = 0;
-		for (MessageFilter filter : filters)
+		for (MessageFilter filter : filters) {
 			if (filter.finish())
 				nFiltersOK++;
+			writeMetrics(filter, "finish");
+		}
 		return nFiltersOK;
 	}
 	
+	/**
+	 * Writes the current metrics of all Filters (not Watch Filters) to a sink, without displaying
+	 * them. Shards of sharded Filters are combined first, which waits for them to process their
+	 * queued packets (see {@link ShardedFilter#combine()}).
+	 * @param sink The metrics sink.
+	 * @param event What triggered the records.
+	 */
+	public void writeMetrics(MetricsSink sink, String event) {
+		flushBatch();
+		for (MessageFilter filter : filters) {
+			if (filter instanceof ShardedFilter)
+				((ShardedFilter)filter).combine();
+			writeMetrics(sink, filter, event);
+		}
+	}
+	
+	/**
+	 * Writes the live metrics of all Filters (not Watch Filters) implementing
+	 * {@link LiveMetricsFilter} to a sink, without waiting for sharded Filters (see
+	 * {@link ShardedFilter#writeLiveMetrics(MetricsSink)}).
+	 * @param sink The metrics sink.
+	 */
+	public void writeLiveMetrics(MetricsSink sink) {
+		flushBatch();
+		for (MessageFilter filter : filters) {
+			MessageFilter f = (filter instanceof ShardedFilter ? ((ShardedFilter)filter).getFilter() : filter);
+			if (!(f instanceof LiveMetricsFilter))
+				continue;
+			sink.beginRecord(timeMillis, "live", description, PCAPAnalyzer.getFilterCode(f), f.getName());
+			if (filter instanceof ShardedFilter)
+				((ShardedFilter)filter).writeLiveMetrics(sink);
+			else
+				((LiveMetricsFilter)f).writeLiveMetrics(sink);
+			sink.endRecord();
+		}
+	}
+	
+	/**
+	 * Writes the metrics of a Filter to {@link #metricsSink}, if any.
+	 */
+	private void writeMetrics(MessageFilter filter, String event) {
+		if (metricsSink != null)
+			writeMetrics(metricsSink, filter, event);
+	}
+	
+	/**
+	 * Writes the metrics of a Filter to a sink. Sharded Filters write the metrics of the Filter
+	 * combining their shards.
+	 * @param sink The metrics sink.
+	 * @param filter The Filter.
+	 * @param event What triggered the record.
+	 */
+	private void writeMetrics(MetricsSink sink, MessageFilter filter, String event) {
+		if (filter instanceof ShardedFilter)
+			filter = ((ShardedFilter)filter).getFilter();
+		if (!(filter instanceof MetricsFilter))
+			return;
+		sink.beginRecord(timeMillis, event, description, PCAPAnalyzer.getFilterCode(filter), filter.getName());
+		((MetricsFilter)filter).writeMetrics(sink);
+		sink.endRecord();
+	}
+	
 }
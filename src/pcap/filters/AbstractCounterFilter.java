@@ -1,18 +1,17 @@
 package pcap.filters;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 import pcap.PCAPAnalyzer;
 import pcap.Packet;
+import pcap.PacketBatch;
 import pcap.filters.impl.Stat;
+import pcap.util.LongIntHashMap;
 
 /**
  * Filter able to retrieve a counter from a Packet and count packet losses.
  * 
  * @author Matthieu Labas
  */
-public abstract class AbstractCounterFilter extends Stat {
+public abstract class AbstractCounterFilter extends Stat implements TimedFilter {
 	
 	/** Counter position in data stream got from {@link Packet#getAvailableData()}. */
 	protected int counterPos;
@@ -46,23 +45,186 @@ public abstract class AbstractCounterFilter extends Stat {
 	/** Maximum number of position to correct order. */
 	protected int nbPacketsUnorderedMax;
 	
-	/** FIFO of last received packets, to check for reordering and duplication. */
-	protected LinkedList<Packet> packetsFIFO;
+	/**
+	 * Largest counter space for which presence of counters in the FIFO is kept in a bitmap
+	 * (2 MB). Larger counters (e.g. 32-bits) use a hash set.
+	 */
+	private static final long MAX_BITMAP_COUNTERS = 1l << 24;
+	
+	/*
+	 * FIFO of last received packets, to check for reordering and duplication. It is a ring of
+	 * primitive columns so that no Packet (and its data) is retained.
+	 */
+	/** Counter values of packets in the FIFO. */
+	protected long[] fifoCounters;
+	/** Packet numbers of packets in the FIFO. */
+	protected int[] fifoPacketNums;
+	/** Total data length of packets in the FIFO. */
+	protected int[] fifoLengths;
+	/** Timestamps (us) of packets in the FIFO. */
+	protected long[] fifoTimes;
+	/** Fragmentation of packets in the FIFO. */
+	protected boolean[] fifoFragmented;
+	/** Ring index of the oldest packet in the FIFO. */
+	protected int fifoHead;
+	/** Number of packets in the FIFO. */
+	protected int fifoSize;
+	
+	/** Bitmap of counter values present in the FIFO, or {@code null} if {@link #fifoSet} is used. */
+	private long[] fifoBitmap;
+	
+	/** Set of counter values present in the FIFO, when the counter space is too large for a bitmap. */
+	private LongIntHashMap fifoSet;
 	
 	/** Number of packets to keep in reordering FIFO. */
 	protected int szReorder;
 	
-	public AbstractCounterFilter(int counterPos, int szReorder) {
+	/**
+	 * Whether the counter value is stored in {@link Packet#counter}. Shards of a
+	 * {@link ShardedFilter} do not, as the same Packet can be processed concurrently by other Filters.
+	 */
+	private boolean storeCounter = true;
+	
+	/** Minimum size of the reordering FIFO when it adapts to the observed reordering. */
+	protected int szReorderMin;
+	
+	/** Maximum size of the reordering FIFO when it adapts to the observed reordering. */
+	protected int szReorderMax;
+	
+	/**
+	 * Maximum time (ms, in packet time) a packet can stay in the FIFO, or 0 if packets only leave
+	 * it when the FIFO is full.
+	 */
+	protected long reorderDeadline;
+	
+	/**
+	 * Number of packets (in multiples of the FIFO size) without deep reordering after which the
+	 * FIFO is shrunk.
+	 */
+	private static final int ADAPT_PERIOD = 16;
+	
+	/** Maximum reordering depth observed since the last FIFO size adaptation. */
+	private int reorderDepthRecent;
+	
+	/** Number of packets processed since the last FIFO size adaptation. */
+	private int nbPacketsAdapt;
+	
+	/**
+	 * @param counterPos Counter position in data stream.
+	 * @param szReorder Initial size of the reordering FIFO.
+	 * @param szReorderMin Minimum size of the reordering FIFO.
+	 * @param szReorderMax Maximum size of the reordering FIFO. The size is fixed if it is equal to
+	 *     {@code szReorderMin}.
+	 */
+	public AbstractCounterFilter(int counterPos, int szReorder, int szReorderMin, int szReorderMax) {
 		super();
 		this.counterPos = counterPos;
-		this.szReorder = szReorder;
-		packetsFIFO = new LinkedList<Packet>();
+		this.szReorderMin = Math.max(1, Math.min(szReorderMin, szReorderMax));
+		this.szReorderMax = Math.max(szReorderMin, szReorderMax);
+		this.szReorder = Math.max(this.szReorderMin, Math.min(szReorder, this.szReorderMax));
+		if (szReorderMin == szReorderMax) // Fixed size
+			this.szReorder = this.szReorderMin = this.szReorderMax = szReorder;
+		reorderDeadline = PCAPAnalyzer.REORDUPL_DEADLINE;
 		maxCounterValue = getNbPositionsLost(-1, 0);
 		reorderThreshold = maxCounterValue - maxCounterValue / 10;
+		int capacity = Math.max(1, this.szReorder);
+		fifoCounters = new long[capacity];
+		fifoPacketNums = new int[capacity];
+		fifoLengths = new int[capacity];
+		fifoTimes = new long[capacity];
+		fifoFragmented = new boolean[capacity];
+		fifoHead = fifoSize = 0;
+		if (maxCounterValue + 2 <= MAX_BITMAP_COUNTERS) // maxCounterValue + 2 is the number of counter values
+			fifoBitmap = new long[(int)((maxCounterValue + 2 + 63) / 64)];
+		else
+			fifoSet = new LongIntHashMap(capacity);
+	}
+	
+	public AbstractCounterFilter(int counterPos, int szReorder) {
+		this(counterPos, szReorder, szReorder, szReorder);
 	}
 	
 	public AbstractCounterFilter(int counterPos) {
-		this(counterPos, PCAPAnalyzer.DEFAULT_REORDUPL_WINDOW);
+		this(counterPos, PCAPAnalyzer.DEFAULT_REORDUPL_WINDOW, PCAPAnalyzer.REORDUPL_WINDOW_MIN, PCAPAnalyzer.REORDUPL_WINDOW_MAX);
+	}
+	
+	/**
+	 * @return The current size of the reordering FIFO.
+	 */
+	public int getReorderWindow() {
+		return szReorder;
+	}
+	
+	/**
+	 * Sets the maximum time a packet can stay in the reordering FIFO before being released to
+	 * count losses. It bounds loss detection latency on low-rate streams, at the expense of
+	 * reordering detection for packets arriving later than the deadline.
+	 * @param deadline The maximum time (ms, in packet time), or 0 to disable it.
+	 */
+	public void setReorderDeadline(long deadline) {
+		reorderDeadline = deadline;
+	}
+	
+	/**
+	 * @return {@code true} if the reordering FIFO size adapts to the observed reordering.
+	 */
+	public boolean isReorderWindowAdaptive() {
+		return szReorderMin < szReorderMax;
+	}
+	
+	/**
+	 * Changes the size of the reordering FIFO, within its bounds. If the FIFO holds more packets
+	 * than its new size, the oldest ones will be released on next packets.
+	 * @param size The new FIFO size.
+	 */
+	protected void setReorderWindow(int size) {
+		size = Math.max(szReorderMin, Math.min(size, szReorderMax));
+		if (size == szReorder)
+			return;
+		if (size > fifoCounters.length) { // Grow the ring, keeping packets in order
+			int capacity = Math.min(szReorderMax, Math.max(size, 2 * fifoCounters.length));
+			long[] counters = new long[capacity];
+			int[] packetNums = new int[capacity];
+			int[] lengths = new int[capacity];
+			long[] times = new long[capacity];
+			boolean[] fragmented = new boolean[capacity];
+			for (int i = 0; i < fifoSize; i++) {
+				int idx = fifoIndex(i);
+				counters[i] = fifoCounters[idx];
+				packetNums[i] = fifoPacketNums[idx];
+				lengths[i] = fifoLengths[idx];
+				times[i] = fifoTimes[idx];
+				fragmented[i] = fifoFragmented[idx];
+			}
+			fifoCounters = counters;
+			fifoPacketNums = packetNums;
+			fifoLengths = lengths;
+			fifoTimes = times;
+			fifoFragmented = fragmented;
+			fifoHead = 0;
+		}
+		printVerbose("Reordering window %d > %d", szReorder, size);
+		szReorder = size;
+		reorderDepthRecent = 0;
+		nbPacketsAdapt = 0;
+	}
+	
+	/**
+	 * Adapts the FIFO size to the reordering observed: it grows when reordered packets get close
+	 * to the FIFO size, and shrinks when reordering stayed shallow for a while.
+	 * @param depth The reordering depth of the last reordered packet, or 0.
+	 */
+	private void adaptReorderWindow(int depth) {
+		if (depth > reorderDepthRecent)
+			reorderDepthRecent = depth;
+		if (2 * depth > szReorder) {
+			setReorderWindow(Math.max(2 * szReorder, 2 * depth));
+		} else if (++nbPacketsAdapt >= ADAPT_PERIOD * szReorder) {
+			if (4 * reorderDepthRecent < szReorder)
+				setReorderWindow(Math.max(szReorder / 2, 2 * reorderDepthRecent));
+			reorderDepthRecent = 0;
+			nbPacketsAdapt = 0;
+		}
 	}
 	
 	@Override
@@ -74,62 +236,188 @@ public abstract class AbstractCounterFilter extends Stat {
 		nbPacketsDuplicated = 0;
 	}
 	
+	/**
+	 * Called by {@link ShardedFilter} on its shards, which must not write to the shared Packets.
+	 */
+	void setSharded() {
+		storeCounter = false;
+	}
+	
 	protected abstract long getCounterValue(Packet packet);
 	
 	protected abstract long getNextCounterValue(long lastCounterValue);
 	
 	protected abstract long getNbPositionsLost(long counter, long counter2);
 	
+	/**
+	 * @param i Logical index in the FIFO (0 is the oldest packet).
+	 * @return The ring index of the packet.
+	 */
+	private int fifoIndex(int i) {
+		i += fifoHead;
+		return i < fifoCounters.length ? i : i - fifoCounters.length;
+	}
+	
+	private boolean fifoContains(long counter) {
+		if (fifoBitmap != null)
+			return (fifoBitmap[(int)(counter >>> 6)] & (1l << counter)) != 0;
+		return fifoSet.containsKey(counter);
+	}
+	
+	private void fifoMark(long counter, boolean present) {
+		if (fifoBitmap != null) {
+			if (present)
+				fifoBitmap[(int)(counter >>> 6)] |= 1l << counter;
+			else
+				fifoBitmap[(int)(counter >>> 6)] &= ~(1l << counter);
+		} else if (present) {
+			fifoSet.put(counter, 0);
+		} else {
+			fifoSet.remove(counter);
+		}
+	}
+	
+	/**
+	 * Inserts a packet in the FIFO at a logical index, shifting newer packets.
+	 */
+	private void fifoInsert(int iInsert, long counter, int packetNum, int length, long ts, boolean fragmented) {
+		for (int i = fifoSize; i > iInsert; i--) {
+			int dst = fifoIndex(i), src = fifoIndex(i-1);
+			fifoCounters[dst] = fifoCounters[src];
+			fifoPacketNums[dst] = fifoPacketNums[src];
+			fifoLengths[dst] = fifoLengths[src];
+			fifoTimes[dst] = fifoTimes[src];
+			fifoFragmented[dst] = fifoFragmented[src];
+		}
+		int idx = fifoIndex(iInsert);
+		fifoCounters[idx] = counter;
+		fifoPacketNums[idx] = packetNum;
+		fifoLengths[idx] = length;
+		fifoTimes[idx] = ts;
+		fifoFragmented[idx] = fragmented;
+		fifoSize++;
+		fifoMark(counter, true);
+	}
+	
+	/**
+	 * Removes the oldest packet from the FIFO and processes it.
+	 */
+	private boolean fifoPop() {
+		int idx = fifoHead;
+		fifoHead = fifoIndex(1);
+		fifoSize--;
+		long counter = fifoCounters[idx];
+		fifoMark(counter, false);
+		return processPacketFIFO(counter, fifoPacketNums[idx], fifoLengths[idx], fifoTimes[idx], fifoFragmented[idx]);
+	}
+	
 	@Override
 	public boolean process(Packet packet) {
 		long counter = getCounterValue(packet);
-		packet.counter = counter;
+		if (storeCounter)
+			packet.counter = counter;
 		
-		Iterator<Packet> iter;
-		Packet p;
-		
-		// Search the previous packets for possible duplicates
-		for (iter = packetsFIFO.iterator(); iter.hasNext();) {
-			p = iter.next();
-			if (p.counter == counter) { // Duplicated packet is discarded
-				nbPacketsDuplicated++;
-				printVerbose("#%d duplicate of #%d (counter %d)", packet.getPacketNumber(), p.getPacketNumber(), counter);
-				return true;
+		// Look for a duplicate in the FIFO
+		if (fifoContains(counter)) { // Duplicated packet is discarded
+			nbPacketsDuplicated++;
+			if (isVerbose()) {
+				int i = 0;
+				while (i < fifoSize && fifoCounters[fifoIndex(i)] != counter)
+					i++;
+				printVerbose("#%d duplicate of #%d (counter %d)", packet.getPacketNumber(), fifoPacketNums[fifoIndex(i)], counter);
 			}
+			return true;
 		}
 		
-		// Search the previous packets for possible duplicates
-		int iInsert = -1;
-		iter = packetsFIFO.descendingIterator();
-		if (iter.hasNext()) { // If we don't detect reordering on the last packet, there is no point in checking for earlier packets
-			p = iter.next();
-			if (getNbPositionsLost(counter, p.counter) >= reorderThreshold) { // More than 'reorderThreshold' packets lost: probable reordering
+		// Check for reordering
+		int iInsert = fifoSize;
+		int npos = 0;
+		if (fifoSize > 0) { // If we don't detect reordering on the last packet, there is no point in checking for earlier packets
+			if (getNbPositionsLost(counter, fifoCounters[fifoIndex(fifoSize-1)]) >= reorderThreshold) { // More than 'reorderThreshold' packets lost: probable reordering
 				nbPacketsUnordered++;
-				iInsert = packetsFIFO.size() - 1;
-				while (iter.hasNext() && iter.next().counter > counter) // Search for the appropriate insertion
+				iInsert = fifoSize - 1;
+				for (int i = fifoSize - 2; i >= 0 && fifoCounters[fifoIndex(i)] > counter; i--) // Search for the appropriate insertion
 					iInsert--;
-				int npos = packetsFIFO.size() - iInsert + 1;
+				npos = fifoSize - iInsert + 1;
 				if (npos > nbPacketsUnorderedMax)
 					nbPacketsUnorderedMax = npos;
 				printVerbose("#%d reordered by %d positions", packet.getPacketNumber(), npos);
 			}
 		}
-		if (iInsert >= 0)
-			packetsFIFO.add(iInsert, packet);
-		else
-			packetsFIFO.offer(packet);
+		fifoInsert(iInsert, counter, packet.getPacketNumber(), packet.getTotalDataLength(), packet.getPacketTimeMicros(), packet.isFragmented());
 		
-		if (packetsFIFO.size() < szReorder)
-			return true;
+		if (isReorderWindowAdaptive())
+			adaptReorderWindow(npos);
 		
-		return processPacketFIFO(packetsFIFO.pop());
+		boolean ok = true;
+		while (fifoSize >= szReorder) // Several packets are released when the FIFO has shrunk
+			ok = fifoPop();
+		if (reorderDeadline > 0)
+			releaseOlderThan(packet.getPacketTimeMillis() - reorderDeadline);
+		return ok;
+	}
+	
+	/**
+	 * Releases packets that stayed in the FIFO past the deadline, and moves rolling rates forward.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		if (series != null)
+			series.advance(1000l * timeMillis);
+		if (reorderDeadline > 0)
+			releaseOlderThan(timeMillis - reorderDeadline);
 	}
 	
-	protected boolean processPacketFIFO(Packet packet) {
-		if (!super.process(packet))
-			return false;
+	/**
+	 * Processes the oldest packets of the FIFO as long as their timestamp is before a given time.
+	 * @param timeMillis The time (ms) before which packets are released.
+	 */
+	protected void releaseOlderThan(long timeMillis) {
+		long us = 1000l * timeMillis;
+		while (fifoSize > 0 && fifoTimes[fifoHead] < us)
+			fifoPop();
+	}
+	
+	/**
+	 * Packets go through the reordering FIFO one by one.
+	 */
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int nOK = 0;
+		for (int i = 0; i < batch.size(); i++)
+			if (process(batch.getPacket(i)))
+				nOK++;
+		return nOK;
+	}
+	
+	/**
+	 * Former entry point of packets getting out of the reordering FIFO. The FIFO now holds primitive
+	 * columns and calls {@link #processPacketFIFO(long, int, int, long, boolean)} instead.<br/>
+	 * It is {@code final} so that sub-classes still overriding it fail to compile, rather than
+	 * silently stop counting losses: they should override the primitive method, whose arguments
+	 * are the counter value, number, total data length, time and fragmentation of the packet.
+	 * @param packet The packet.
+	 * @return {@code true} if the packet was processed.
+	 * @deprecated Override {@link #processPacketFIFO(long, int, int, long, boolean)}.
+	 */
+	@Deprecated
+	protected final boolean processPacketFIFO(Packet packet) {
+		return processPacketFIFO(getCounterValue(packet), packet.getPacketNumber(), packet.getTotalDataLength(),
+				packet.getPacketTimeMicros(), packet.isFragmented());
+	}
+	
+	/**
+	 * Processes a packet getting out of the reordering FIFO, to count losses.
+	 * @param counter The packet counter value.
+	 * @param packetNum The packet number.
+	 * @param length The packet total data length.
+	 * @param ts The packet timestamp (us).
+	 * @param fragmented {@code true} if the packet is fragmented.
+	 * @return {@code true} if the packet was processed.
+	 */
+	protected boolean processPacketFIFO(long counter, int packetNum, int length, long ts, boolean fragmented) {
+		update(ts, length, fragmented);
 		
-		long counter = packet.counter;
 		if (nbPackets > 1) {
 			long next = getNextCounterValue(lastCounterValue);
 			if (counter != next) {
@@ -137,15 +425,37 @@ public abstract class AbstractCounterFilter extends Stat {
 				if (nLost > nbPacketsLostMax)
 					nbPacketsLostMax = nLost;
 				nbPacketsLost += nLost;
-				printVerbose("#%d: %d packets lost (jump %d > %d)", packet.getPacketNumber(),
+				recordLoss(ts, nLost);
+				printVerbose("#%d: %d packets lost (jump %d > %d)", packetNum,
 						nLost, lastCounterValue, counter);
+				if (nLost >= reorderThreshold && isReorderWindowAdaptive()) // Packet probably arrived after leaving the FIFO
+					setReorderWindow(2 * szReorder);
 			}
 		}
-		lastCounterValue = packet.counter;
+		lastCounterValue = counter;
 		
 		return true;
 	}
 	
+	@Override
+	public void flush() {
+		while (fifoSize > 0)
+			fifoPop();
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		AbstractCounterFilter o = (AbstractCounterFilter)other;
+		nbPacketsLost += o.nbPacketsLost;
+		nbPacketsLostMax = Math.max(nbPacketsLostMax, o.nbPacketsLostMax);
+		nbPacketsDuplicated += o.nbPacketsDuplicated;
+		nbPacketsUnordered += o.nbPacketsUnordered;
+		nbPacketsUnorderedMax = Math.max(nbPacketsUnorderedMax, o.nbPacketsUnorderedMax);
+		if (o.szReorder > szReorder) // Only displayed: the combined Filter does not process packets
+			szReorder = o.szReorder;
+	}
+	
 	@Override
 	public String generateStats() {
 		double duration = (msLast - ms0) / 1000.0;
@@ -153,19 +463,37 @@ public abstract class AbstractCounterFilter extends Stat {
 		if (nbPacketsTot == 0)
 			return super.generateStats();
 		else
-			return String.format("In %6.3f s: %5d packets, %3d duplicated (%6.3f%%%%), %3d unordered (%6.3f%%%%, %2d max positions), %4d lost (%6.3f%%%%, %2d max in a row), %4d fragmented (%6.3f%%%%), %8.3f packets/s, length: moy %6.1f min %4d max %4d, %6.3f kB/s",
+			return String.format("In %6.3f s: %5d packets, %3d duplicated (%6.3f%%%%), %3d unordered (%6.3f%%%%, %2d max positions), %4d lost (%6.3f%%%%, %2d max in a row), %4d fragmented (%6.3f%%%%), %8.3f packets/s, length: moy %6.1f min %4d max %4d, %6.3f kB/s, window %d",
 					duration, nbPacketsTot, nbPacketsDuplicated, 100.0*nbPacketsDuplicated/nbPackets,
 					nbPacketsUnordered, 100.0*nbPacketsUnordered/nbPackets, nbPacketsUnorderedMax,
 					nbPacketsLost, 100.0*nbPacketsLost/nbPacketsTot, nbPacketsLostMax,
 					nbFragmentsPackets, 100.0*nbFragmentsPackets/nbPacketsTot, (double)nbPacketsTot/duration,
-					(double)szTot/nbPacketsTot, szMin, szMax, szTot/(1024.0*duration));
+					(double)szTot/nbPacketsTot, szMin, szMax, szTot/(1024.0*duration), szReorder) + generateHistogramStats() + generateRateStats();
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		sink.metric("lost", nbPacketsLost);
+		sink.metric("lost_max", nbPacketsLostMax);
+		sink.metric("duplicated", nbPacketsDuplicated);
+		sink.metric("reordered", nbPacketsUnordered);
+		sink.metric("reordered_max", nbPacketsUnorderedMax);
+		sink.metric("window", szReorder);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		sink.metric("lost", nbPacketsLost);
+		sink.metric("duplicated", nbPacketsDuplicated);
+		sink.metric("reordered", nbPacketsUnordered);
 	}
 	
 	@Override
 	public boolean finish() {
 		// Empty packet FIFO
-		for (Packet packet = packetsFIFO.pop(); packet != null; packet = packetsFIFO.poll())
-			processPacketFIFO(packet);
+		flush();
 		return super.finish();
 	}
 
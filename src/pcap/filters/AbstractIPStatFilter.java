@@ -0,0 +1,289 @@
+package pcap.filters;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.impl.Stat;
+import pcap.util.LongIntHashMap;
+
+/**
+ * Filter keeping statistics for every IP address (source or destination) of the packets it
+ * receives, in addition to the overall statistics of {@link Stat}.<br/>
+ * Per-IP statistics are primitive slots indexed through an open-addressing map keyed by the
+ * 32-bits address, so that accounting for a packet neither allocates nor compares addresses.
+ * Addresses are only sorted when statistics are generated, into a reused report buffer.
+ *
+ * @author Matthieu Labas
+ */
+public abstract class AbstractIPStatFilter extends Stat {
+	
+	/** IP address (as an unsigned integer) to slot index. */
+	private final LongIntHashMap slots;
+	
+	/*
+	 * Per-IP statistics, indexed by slot.
+	 */
+	/** IP address of the slot. */
+	protected int[] ipAddresses;
+	/** Timestamp of first received packet (ms). */
+	protected long[] ipMs0;
+	/** Timestamp of last received packet (ms). */
+	protected long[] ipMsLast;
+	/** Number of packets received. */
+	protected int[] ipNbPackets;
+	/** Number of fragmented packets. */
+	protected int[] ipNbFragments;
+	/** Total number of bytes received. */
+	protected long[] ipSzTot;
+	/** Minimum packet size. */
+	protected long[] ipSzMin;
+	/** Maximum packet size. */
+	protected long[] ipSzMax;
+	
+	/** Number of slots used. */
+	protected int nbIPs;
+	
+	/** Buffer used to sort slots by address when generating statistics. */
+	private long[] sortBuffer;
+	
+	/** Buffer the statistics report is generated into, reused between watches. */
+	private final StringBuilder report;
+	
+	private final Formatter reportFormatter;
+	
+	public AbstractIPStatFilter() {
+		super();
+		slots = new LongIntHashMap(256);
+		allocate(256);
+		nbIPs = 0;
+		report = new StringBuilder();
+		reportFormatter = new Formatter(report);
+	}
+	
+	private void allocate(int capacity) {
+		if (ipAddresses == null) {
+			ipAddresses = new int[capacity];
+			ipMs0 = new long[capacity];
+			ipMsLast = new long[capacity];
+			ipNbPackets = new int[capacity];
+			ipNbFragments = new int[capacity];
+			ipSzTot = new long[capacity];
+			ipSzMin = new long[capacity];
+			ipSzMax = new long[capacity];
+		} else {
+			ipAddresses = Arrays.copyOf(ipAddresses, capacity);
+			ipMs0 = Arrays.copyOf(ipMs0, capacity);
+			ipMsLast = Arrays.copyOf(ipMsLast, capacity);
+			ipNbPackets = Arrays.copyOf(ipNbPackets, capacity);
+			ipNbFragments = Arrays.copyOf(ipNbFragments, capacity);
+			ipSzTot = Arrays.copyOf(ipSzTot, capacity);
+			ipSzMin = Arrays.copyOf(ipSzMin, capacity);
+			ipSzMax = Arrays.copyOf(ipSzMax, capacity);
+		}
+	}
+	
+	/**
+	 * @param packet The packet.
+	 * @return The IP address statistics are kept for (as a 32-bits integer).
+	 */
+	protected abstract int getAddress(Packet packet);
+	
+	/**
+	 * @param batch The batch of packets.
+	 * @return The column of IP addresses statistics are kept for.
+	 */
+	protected abstract int[] getAddresses(PacketBatch batch);
+	
+	/**
+	 * @param address The IP address.
+	 * @return The slot of the address, created if needed.
+	 */
+	protected int slot(int address) {
+		long key = address & 0xffffffffl;
+		int s = slots.find(key);
+		if (s >= 0)
+			return slots.valueAt(s);
+		if (nbIPs == ipAddresses.length)
+			allocate(2 * nbIPs);
+		int i = nbIPs++;
+		slots.put(key, i);
+		ipAddresses[i] = address;
+		ipNbPackets[i] = ipNbFragments[i] = 0;
+		ipSzTot[i] = 0;
+		ipSzMin[i] = ipSzMax[i] = -1;
+		return i;
+	}
+	
+	/**
+	 * Accounts for one packet in a slot.
+	 */
+	private void updateSlot(int i, long ms, int sz, boolean fragmented) {
+		if (ipNbPackets[i] == 0) {
+			ipMs0[i] = ms;
+			ipSzMin[i] = ipSzMax[i] = sz;
+		}
+		ipMsLast[i] = ms;
+		ipNbPackets[i]++;
+		if (fragmented)
+			ipNbFragments[i]++;
+		if (sz < ipSzMin[i])
+			ipSzMin[i] = sz;
+		if (sz > ipSzMax[i])
+			ipSzMax[i] = sz;
+		ipSzTot[i] += sz;
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (!super.process(packet))
+			return false;
+		
+		updateSlot(slot(getAddress(packet)), Packet.microsToMillis(packet.getPacketTimeMicros()), packet.getTotalDataLength(), packet.isFragmented());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = super.processBatch(batch);
+		int[] addresses = getAddresses(batch);
+		long[] ts = batch.getTimesMillis();
+		int[] lengths = batch.getLengths();
+		boolean[] fragmented = batch.getFragmented();
+		for (int i = 0; i < n; i++)
+			updateSlot(slot(addresses[i]), ts[i], lengths[i], fragmented[i]);
+		return n;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		slots.clear();
+		nbIPs = 0;
+	}
+	
+	/**
+	 * @return The number of IP addresses statistics are kept for.
+	 */
+	public int getNbAddresses() {
+		return nbIPs;
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		AbstractIPStatFilter o = (AbstractIPStatFilter)other;
+		for (int j = 0; j < o.nbIPs; j++) {
+			if (o.ipNbPackets[j] == 0)
+				continue;
+			int i = slot(o.ipAddresses[j]);
+			if (ipNbPackets[i] == 0) {
+				ipMs0[i] = o.ipMs0[j];
+				ipMsLast[i] = o.ipMsLast[j];
+				ipSzMin[i] = o.ipSzMin[j];
+				ipSzMax[i] = o.ipSzMax[j];
+			} else {
+				ipMs0[i] = Math.min(ipMs0[i], o.ipMs0[j]);
+				ipMsLast[i] = Math.max(ipMsLast[i], o.ipMsLast[j]);
+				ipSzMin[i] = Math.min(ipSzMin[i], o.ipSzMin[j]);
+				ipSzMax[i] = Math.max(ipSzMax[i], o.ipSzMax[j]);
+			}
+			ipNbPackets[i] += o.ipNbPackets[j];
+			ipNbFragments[i] += o.ipNbFragments[j];
+			ipSzTot[i] += o.ipSzTot[j];
+		}
+	}
+	
+	/**
+	 * Writes the number of IP addresses, then the packets, fragmented packets, bytes and sizes of
+	 * every IP address, as items.
+	 */
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		sink.metric("addresses", nbIPs);
+		for (int i = 0; i < nbIPs; i++) {
+			if (ipNbPackets[i] == 0)
+				continue;
+			String address = IPv4Frame.toString(ipAddresses[i]);
+			sink.metric("ip_packets", address, ipNbPackets[i]);
+			sink.metric("ip_fragmented", address, ipNbFragments[i]);
+			sink.metric("ip_bytes", address, ipSzTot[i]);
+			sink.metric("ip_size_min", address, ipSzMin[i]);
+			sink.metric("ip_size_max", address, ipSzMax[i]);
+		}
+	}
+	
+	/**
+	 * Sorts slots by address into {@link #sortBuffer}: (unsigned address << 32 | slot) keys sort as
+	 * addresses.
+	 */
+	private void sortAddresses() {
+		if (sortBuffer == null || sortBuffer.length < nbIPs)
+			sortBuffer = new long[ipAddresses.length];
+		for (int i = 0; i < nbIPs; i++)
+			sortBuffer[i] = (ipAddresses[i] & 0xffffffffl) << 32 | i;
+		Arrays.sort(sortBuffer, 0, nbIPs);
+	}
+	
+	/**
+	 * Appends the statistics of an IP address to the report buffer.
+	 * @param k The rank of the address in {@link #sortBuffer}.
+	 */
+	private void appendAddressStats(int k) {
+		int i = (int)sortBuffer[k];
+		report.append("--");
+		reportFormatter.format("%15s: ", IPv4Frame.toString(ipAddresses[i]));
+		if (ipNbPackets[i] == 0)
+			report.append("No packets received.");
+		else
+			formatStats(reportFormatter, ipMs0[i], ipMsLast[i], ipNbPackets[i], ipNbFragments[i], ipSzTot[i], ipSzMin[i], ipSzMax[i]);
+	}
+	
+	/**
+	 * Prints overall statistics, then the statistics of every IP address (by increasing address)
+	 * one line at a time through the reused report buffer, so that the whole report is never built
+	 * nor split by the printer.
+	 * @param header Text printed before overall statistics (e.g. the watch number).
+	 */
+	protected void printStats(String header) {
+		print(header + super.generateStats());
+		sortAddresses();
+		for (int k = 0; k < nbIPs; k++) {
+			report.setLength(0);
+			appendAddressStats(k);
+			print(report.toString());
+		}
+	}
+	
+	@Override
+	public void watch() {
+		printStats(String.format("(watch %4d) - ", ++nWatch));
+	}
+	
+	@Override
+	public boolean finish() {
+		printStats("");
+		return true;
+	}
+	
+	/**
+	 * Overall statistics, followed by the statistics of every IP address, by increasing address,
+	 * on separate lines. Statistics are printed by {@link #printStats(String)} without building
+	 * this String.
+	 */
+	@Override
+	public String generateStats() {
+		report.setLength(0);
+		report.append(super.generateStats());
+		sortAddresses();
+		for (int k = 0; k < nbIPs; k++) {
+			report.append('\n');
+			appendAddressStats(k);
+		}
+		return report.toString();
+	}
+
+}
@@ -22,13 +22,22 @@ public abstract class AbstractMessageFilter implements MessageFilter {
 	
 	protected FilterPrinter printer;
 	
+	/**
+	 * Whether verbose information is sent to the printer, which can still discard it.
+	 */
+	protected boolean verbose = true;
+	
 	@Override
 	public MessageFilter duplicate() {
 		try {
 			MessageFilter filter = getClass().newInstance();
+			if (this instanceof ConfigurableFilter && ((ConfigurableFilter)this).getParameters() != null)
+				((ConfigurableFilter)filter).configure(((ConfigurableFilter)this).getParameters());
 			filter.setName(name);
 			filter.setAlternateCode(altCode);
 			filter.setPrinter(printer);
+			if (filter instanceof AbstractMessageFilter)
+				((AbstractMessageFilter)filter).setFilterVerbose(verbose);
 			return filter;
 		} catch (InstantiationException e) {
 			return null;
@@ -73,17 +82,62 @@ public abstract class AbstractMessageFilter implements MessageFilter {
 			printer.filterPrint(this, format, args);
 	}
 
+	/**
+	 * Sets whether verbose information is sent to the printer (default: {@code true}, the printer
+	 * deciding what is displayed).
+	 * @param verbose {@code false} to discard verbose information before it is even formatted.
+	 */
+	public void setFilterVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * @return {@code true} if verbose (packet-level) information is sent to the printer. Filters
+	 *     should check it before building verbose messages with arguments other than integers, so
+	 *     that nothing is computed nor allocated when it is not displayed.
+	 */
+	public boolean isVerbose() {
+		return printer != null && verbose;
+	}
+	
 	/**
 	 * Helper method for Filters to print verbose (packet-level) information.
 	 * @param format The format String to print.
 	 * @param args The arguments to fill in {@code format}.
 	 * @see String#format(String, Object...)
+	 * @see #isVerbose()
 	 */
 	public void printVerbose(String format, Object ... args) {
-		if (printer != null)
+		if (isVerbose())
 			printer.filterPrintVerbose(this, format, args);
 	}
 	
+	/*
+	 * Verbose information with integer arguments: arguments are only boxed when information is
+	 * displayed. N.B. that {@code int} arguments are widened to {@code long}, so negative values
+	 * display as 64 bits with {@code %x}.
+	 */
+	
+	public void printVerbose(String format, long arg) {
+		if (isVerbose())
+			printer.filterPrintVerbose(this, format, arg);
+	}
+	
+	public void printVerbose(String format, long arg1, long arg2) {
+		if (isVerbose())
+			printer.filterPrintVerbose(this, format, arg1, arg2);
+	}
+	
+	public void printVerbose(String format, long arg1, long arg2, long arg3) {
+		if (isVerbose())
+			printer.filterPrintVerbose(this, format, arg1, arg2, arg3);
+	}
+	
+	public void printVerbose(String format, long arg1, long arg2, long arg3, long arg4) {
+		if (isVerbose())
+			printer.filterPrintVerbose(this, format, arg1, arg2, arg3, arg4);
+	}
+	
 	@Override
 	public void reset() { }
 	
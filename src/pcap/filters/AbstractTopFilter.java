@@ -0,0 +1,145 @@
+package pcap.filters;
+
+import java.util.Formatter;
+
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.impl.Stat;
+import pcap.util.SpaceSaving;
+
+/**
+ * Filter keeping the heaviest keys (e.g. source IP addresses) of the packets it receives, by
+ * packets or bytes, in addition to the overall statistics of {@link Stat}.<br/>
+ * Keys are counted with a {@link SpaceSaving} summary: memory is fixed
+ * ({@link PCAPAnalyzer#TOP_COUNTERS} counters) whatever the number of distinct keys, and each
+ * reported count comes with the maximum over-estimation it can carry.
+ *
+ * @author Matthieu Labas
+ */
+public abstract class AbstractTopFilter extends Stat {
+	
+	/** Heaviest keys. */
+	protected SpaceSaving top;
+	
+	/** {@code true} to rank keys by bytes rather than packets. */
+	protected boolean byBytes;
+	
+	/** Number of keys displayed. */
+	protected int nbTop;
+	
+	/** Number of {@code long} values attached to each key. */
+	private final int attachmentWidth;
+	
+	/**
+	 * @param attachmentWidth Number of {@code long} values attached to each key to display it.
+	 */
+	public AbstractTopFilter(int attachmentWidth) {
+		super();
+		top = new SpaceSaving(PCAPAnalyzer.TOP_COUNTERS, attachmentWidth);
+		byBytes = PCAPAnalyzer.TOP_BYTES;
+		nbTop = PCAPAnalyzer.TOP_K;
+		this.attachmentWidth = attachmentWidth;
+	}
+	
+	/**
+	 * @return The key of a packet.
+	 */
+	protected abstract long getKey(Packet packet);
+	
+	/**
+	 * @return The key of the packet {@code i} of a batch.
+	 */
+	protected abstract long getKey(PacketBatch batch, int i);
+	
+	/**
+	 * Sets the values attached to a key to display it. Does nothing by default.
+	 * @param attachments The attachments of all keys.
+	 * @param offset Offset of the attachments of the key of {@code packet}.
+	 */
+	protected void attach(Packet packet, long[] attachments, int offset) {
+	}
+	
+	/**
+	 * Sets the values attached to a key to display it. Does nothing by default.
+	 * @param attachments The attachments of all keys.
+	 * @param offset Offset of the attachments of the key of the packet {@code i}.
+	 */
+	protected void attach(PacketBatch batch, int i, long[] attachments, int offset) {
+	}
+	
+	/**
+	 * @param slot The slot of the key in {@link #top}.
+	 * @return A displayable representation of the key.
+	 */
+	protected abstract String formatKey(int slot);
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (!super.process(packet))
+			return false;
+		
+		int s = top.add(getKey(packet), byBytes ? packet.getTotalDataLength() : 1);
+		attach(packet, top.getAttachments(), s * attachmentWidth);
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = super.processBatch(batch);
+		int[] lengths = batch.getLengths();
+		long[] attachments = top.getAttachments();
+		for (int i = 0; i < n; i++) {
+			int s = top.add(getKey(batch, i), byBytes ? lengths[i] : 1);
+			attach(batch, i, attachments, s * attachmentWidth);
+		}
+		return n;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		top.clear();
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		top.merge(((AbstractTopFilter)other).top);
+	}
+	
+	/**
+	 * Writes the number of keys counted and the maximum over-estimation of counts, then the count
+	 * ({@code top_packets} or {@code top_bytes}) and error of the heaviest keys, as items.
+	 */
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		sink.metric("top_keys", top.size());
+		sink.metric("top_error_max", top.getMinCount());
+		String key = (byBytes ? "top_bytes" : "top_packets");
+		for (int s : top.top(nbTop)) {
+			String item = formatKey(s).trim().replaceAll(" +", " ");
+			sink.metric(key, item, top.getCount(s));
+			sink.metric("top_error", item, top.getError(s));
+		}
+	}
+	
+	@Override
+	public String generateStats() {
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		if (top.size() == 0)
+			return sb.toString();
+		Formatter f = new Formatter(sb);
+		String unit = (byBytes ? "bytes" : "packets");
+		f.format(", top %d by %s (%d counters, error <= %d)", Math.min(nbTop, top.size()), unit, top.capacity(), top.getMinCount());
+		int[] slots = top.top(nbTop);
+		for (int k = 0; k < slots.length; k++) {
+			int s = slots[k];
+			f.format("\n--%2d. %s: %10d %s (%6.3f%%%%), error %d", k + 1, formatKey(s), top.getCount(s), unit,
+					100.0*top.getCount(s)/top.getTotal(), top.getError(s));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,20 @@
+package pcap.filters;
+
+/**
+ * Optional interface for Filters printing alerts as soon as events are detected (e.g. stalled
+ * streams), rather than at every watch.<br/>
+ * Watch copies of a Filter process the same packets as the Filter itself, so their alerts are
+ * disabled to have them printed once.
+ * 
+ * @author Matthieu Labas
+ */
+public interface AlertFilter extends MessageFilter {
+	
+	/**
+	 * Enables or disables alerts. Events are still counted and displayed on {@link #watch()} and
+	 * {@link #finish()}.
+	 * @param alerts {@code true} to print alerts (default).
+	 */
+	void setAlerts(boolean alerts);
+
+}
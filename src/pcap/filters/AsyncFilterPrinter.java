@@ -0,0 +1,220 @@
+package pcap.filters;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * {@link FilterPrinter} moving formatting and output off the packet processing threads: messages
+ * are stored in a preallocated ring and printed by another {@link FilterPrinter} in a writer
+ * thread, which flushes the output when no more messages are waiting so that writes are batched.<br/>
+ * What happens when the ring is full is given by a {@link Policy}: blocking keeps all messages but
+ * slows packet processing down to the output speed, while dropping messages (counted in
+ * {@link #getDropped()}) lets packet processing go on. N.B. that arguments are formatted later, so
+ * they should not be modified once printed.
+ *
+ * @author Matthieu Labas
+ */
+public class AsyncFilterPrinter implements FilterPrinter {
+	
+	/** What to do with messages printed when the ring is full. */
+	public static enum Policy {
+		/** Wait for the writer to make room. */
+		BLOCK,
+		/** Drop the message. */
+		DROP,
+		/** Drop verbose messages, wait for the writer for other messages. */
+		DROP_VERBOSE
+	}
+	
+	/** The printer formatting and writing messages. */
+	private final FilterPrinter printer;
+	
+	/** The output flushed when no messages are waiting, or {@code null}. */
+	private final Flushable output;
+	
+	private final Policy policy;
+	
+	/*
+	 * Ring of messages, indexed by (sequence % capacity).
+	 */
+	private final MessageFilter[] filters;
+	private final String[] formats;
+	private final Object[][] args;
+	
+	/** Sequence number of the next message to print and of the next message to store. */
+	private long head, tail;
+	
+	private volatile boolean verbose;
+	
+	private boolean closed;
+	
+	/** Whether the writer waits for messages, i.e. has to be notified of a new message. */
+	private boolean writerWaiting;
+	
+	/** Number of threads waiting for the writer to make room in the ring. */
+	private int producersWaiting;
+	
+	/** Number of dropped messages. */
+	private long dropped;
+	
+	private final Thread writer;
+	
+	/**
+	 * Creates the printer and starts its writer thread.
+	 * @param printer The printer formatting and writing messages.
+	 * @param output The output flushed when no messages are waiting, or {@code null}.
+	 * @param capacity The number of messages that can wait to be printed.
+	 * @param policy What to do with messages printed when {@code capacity} messages are waiting.
+	 */
+	public AsyncFilterPrinter(FilterPrinter printer, Flushable output, int capacity, Policy policy) {
+		this.printer = printer;
+		this.output = output;
+		this.policy = policy;
+		filters = new MessageFilter[capacity];
+		formats = new String[capacity];
+		args = new Object[capacity][];
+		writer = new Thread("FilterPrinter") {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	@Override
+	public void setFilterVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
+	@Override
+	public void filterPrint(MessageFilter filter, String format, Object... args) {
+		enqueue(filter, format, args, false);
+	}
+	
+	/**
+	 * Verbose messages are discarded right away when verbose display is disabled.
+	 */
+	@Override
+	public void filterPrintVerbose(MessageFilter filter, String format, Object... args) {
+		if (!verbose)
+			return;
+		enqueue(filter, format, args, true);
+	}
+	
+	private synchronized void enqueue(MessageFilter filter, String format, Object[] args, boolean isVerbose) {
+		if (closed) {
+			dropped++;
+			return;
+		}
+		while (tail - head == filters.length) {
+			if (policy == Policy.DROP || (policy == Policy.DROP_VERBOSE && isVerbose)) {
+				dropped++;
+				return;
+			}
+			producersWaiting++;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped++;
+				return;
+			} finally {
+				producersWaiting--;
+			}
+		}
+		int i = (int)(tail++ % filters.length);
+		filters[i] = filter;
+		formats[i] = format;
+		this.args[i] = args;
+		if (writerWaiting) // The writer only waits on an empty ring, so no producer waits with it
+			notify();
+	}
+	
+	/**
+	 * Writer thread loop: prints messages until the printer is closed and all messages are printed.
+	 */
+	private void write() {
+		for (;;) {
+			MessageFilter filter = null;
+			String format = null;
+			Object[] arguments = null;
+			boolean idle = false;
+			synchronized (this) {
+				if (head == tail) {
+					if (closed)
+						break;
+					idle = true;
+				} else {
+					int i = (int)(head % filters.length);
+					filter = filters[i];
+					format = formats[i];
+					arguments = args[i];
+					filters[i] = null;
+					formats[i] = null;
+					args[i] = null;
+					head++;
+					if (producersWaiting > 0)
+						notifyAll();
+				}
+			}
+			if (idle) { // Output is flushed outside of the lock, then messages are waited for
+				flush();
+				synchronized (this) {
+					while (head == tail && !closed) {
+						writerWaiting = true;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+						} finally {
+							writerWaiting = false;
+						}
+					}
+				}
+				continue;
+			}
+			try {
+				printer.filterPrint(filter, format, arguments);
+			} catch (RuntimeException e) { // Bad format: keep on printing other messages
+				System.err.println(String.format("Cannot print '%s': %s", format, e.getMessage()));
+			}
+		}
+		flush();
+	}
+	
+	private void flush() {
+		if (output == null)
+			return;
+		try {
+			output.flush();
+		} catch (IOException e) { }
+	}
+	
+	/**
+	 * Prints the messages waiting, then stops the writer thread. Messages printed afterwards are
+	 * dropped.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long n = getDropped();
+		if (n > 0)
+			System.err.println(String.format("%d Filter messages dropped (output too slow)", n));
+	}
+	
+	/**
+	 * @return The number of messages dropped because the ring was full.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+}
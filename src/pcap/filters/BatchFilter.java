@@ -0,0 +1,22 @@
+package pcap.filters;
+
+import pcap.PacketBatch;
+
+/**
+ * Optional interface for Filters able to process a whole {@link PacketBatch} at once.<br/>
+ * Filters which do not implement it still receive packets one by one through
+ * {@link MessageFilter#process(pcap.Packet)}.
+ *
+ * @author Matthieu Labas
+ */
+public interface BatchFilter extends MessageFilter {
+	
+	/**
+	 * Method called to process a batch of packets. It should be equivalent to calling
+	 * {@link MessageFilter#process(pcap.Packet)} on every packet of the batch, in order.
+	 * @param batch The batch of packets.
+	 * @return The number of packets matching the Filter.
+	 */
+	int processBatch(PacketBatch batch);
+
+}
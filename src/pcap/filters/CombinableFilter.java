@@ -0,0 +1,25 @@
+package pcap.filters;
+
+/**
+ * Optional interface for Filters whose state can be merged with the state of other instances of
+ * the same Filter class.<br/>
+ * It enables a Filter to be run as several independent shards (e.g. one per thread, see
+ * {@link ShardedFilter}) whose results are combined before being displayed.
+ * 
+ * @author Matthieu Labas
+ */
+public interface CombinableFilter extends MessageFilter {
+	
+	/**
+	 * Processes any packet the Filter still holds (e.g. in a reordering FIFO) without printing
+	 * anything, so that its state is complete before being combined.
+	 */
+	void flush();
+	
+	/**
+	 * Adds the state of another Filter into this Filter.
+	 * @param other A Filter of the same class as this Filter. Its state is not modified.
+	 */
+	void combine(MessageFilter other);
+
+}
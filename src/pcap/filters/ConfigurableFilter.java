@@ -0,0 +1,26 @@
+package pcap.filters;
+
+/**
+ * Optional interface for Filters taking parameters from their description, between parentheses
+ * after their code (e.g. {@code "SEQ(offset=4,width=32,le):Feed"}).<br/>
+ * Parameters are kept so that duplicates of the Filter (e.g. watch or shard instances) are
+ * configured the same way.
+ *
+ * @author Matthieu Labas
+ */
+public interface ConfigurableFilter extends MessageFilter {
+	
+	/**
+	 * Configures the Filter. It is called once, right after the Filter is instantiated, with an
+	 * empty String when no parameters are given so that missing mandatory parameters are reported.
+	 * @param parameters The parameters, as given between parentheses (e.g. {@code "offset=4,width=32,le"}).
+	 * @throws IllegalArgumentException If parameters are invalid.
+	 */
+	void configure(String parameters) throws IllegalArgumentException;
+	
+	/**
+	 * @return The parameters given to {@link #configure(String)}, or {@code null}.
+	 */
+	String getParameters();
+
+}
@@ -0,0 +1,323 @@
+package pcap.filters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * {@link MetricsSink} writing records to files, either as CSV or as JSON lines:
+ * <ul>
+ * <li>CSV files hold one line per metric ({@code time,event,selector,filter,name,key,value}), so
+ * that their columns do not depend on Filters,</li>
+ * <li>JSON files hold one object per record, e.g.
+ * {@code {"time":1380000000000,"event":"watch","selector":"=239.1.1.1","filter":"RTP","name":"Cam1","packets":1000,...}}.</li>
+ * </ul>
+ * Metrics of items are written with the item after their key, e.g. {@code top_bytes[10.0.0.1]}.
+ * Records are built in memory and written through a large buffer, flushed on every watch. Files
+ * can be rotated when they reach a maximum size, keeping a maximum number of files.
+ *
+ * @author Matthieu Labas
+ */
+public class FileMetricsSink implements MetricsSink {
+	
+	public static enum Format {
+		CSV,
+		JSON
+	}
+	
+	private static final String CSV_HEADER = "time,event,selector,filter,name,key,value\n";
+	
+	private final Format format;
+	
+	/** The file name, without extension. */
+	private String fileName;
+	
+	/** The file extension, including the dot. */
+	private String extension;
+	
+	/** Maximum size of a file (bytes), or 0 for no rotation. */
+	private long maxSize;
+	
+	/** Maximum number of files kept when rotating, or 0 to keep all files. */
+	private int maxNum;
+	
+	/** The current file number. */
+	private int fileNum;
+	
+	/** Current file size (characters). */
+	private long curSize;
+	
+	private Writer out;
+	
+	/** {@code true} once an error has been displayed, so that it is displayed only once. */
+	private boolean failed;
+	
+	private boolean closed;
+	
+	/** The record being built. */
+	private final StringBuilder record;
+	
+	/** Fields common to all lines of the current record (CSV). */
+	private final StringBuilder prefix;
+	
+	/**
+	 * @param fileName The file name. Its extension is kept after the file number when rotating.
+	 * @param format The format of the records.
+	 */
+	public FileMetricsSink(String fileName, Format format) {
+		this.format = format;
+		int ich = fileName.lastIndexOf('.');
+		if (ich > fileName.lastIndexOf(File.separatorChar)) {
+			this.fileName = fileName.substring(0, ich);
+			extension = fileName.substring(ich);
+		} else {
+			this.fileName = fileName;
+			extension = "";
+		}
+		record = new StringBuilder(4096);
+		prefix = new StringBuilder(256);
+	}
+	
+	/**
+	 * @param fileName The file name.
+	 * @return The format given by the file extension: {@link Format#JSON} for {@code .json},
+	 *     {@code .jsonl} or {@code .ndjson} files, {@link Format#CSV} otherwise.
+	 */
+	public static Format getFormat(String fileName) {
+		String name = fileName.toLowerCase();
+		if (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson"))
+			return Format.JSON;
+		return Format.CSV;
+	}
+	
+	/**
+	 * Rotates files when they reach a size. Files are then numbered: {@code name.000.csv},
+	 * {@code name.001.csv}, ...
+	 * @param maxSize The maximum size of a file (bytes).
+	 * @param maxNum The maximum number of files kept, older files being deleted, or 0 to keep all
+	 *     files.
+	 */
+	public void setRotation(long maxSize, int maxNum) {
+		this.maxSize = maxSize;
+		this.maxNum = maxNum;
+	}
+	
+	private String getFileName(int num) {
+		if (maxSize <= 0)
+			return fileName + extension;
+		return String.format("%s.%03d%s", fileName, num, extension);
+	}
+	
+	private boolean startNewFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				error(e);
+			}
+			out = null;
+		}
+		
+		// Remove previous files
+		if (maxSize > 0 && maxNum > 0 && fileNum >= maxNum) {
+			File toRemove = new File(getFileName(fileNum - maxNum));
+			if (toRemove.exists())
+				toRemove.delete();
+		}
+		
+		String name = getFileName(fileNum++);
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(name), "UTF-8"), 65536);
+		} catch (UnsupportedEncodingException e) {
+			error(e);
+			return false;
+		} catch (IOException e) {
+			error(e);
+			return false;
+		}
+		curSize = 0;
+		if (format == Format.CSV)
+			write(CSV_HEADER);
+		return out != null;
+	}
+	
+	private void write(CharSequence str) {
+		try {
+			out.append(str);
+			curSize += str.length();
+		} catch (IOException e) {
+			error(e);
+			out = null;
+		}
+	}
+	
+	private void error(Exception e) {
+		if (failed)
+			return;
+		failed = true;
+		System.err.println(String.format("Cannot write metrics: %s", e.getMessage()));
+	}
+	
+	@Override
+	public void beginRecord(long timeMillis, String event, String selector, String code, String name) {
+		record.setLength(0);
+		if (format == Format.CSV) {
+			prefix.setLength(0);
+			prefix.append(timeMillis).append(',').append(event).append(',');
+			appendCSV(prefix, selector);
+			prefix.append(',');
+			appendCSV(prefix, code);
+			prefix.append(',');
+			appendCSV(prefix, name);
+			prefix.append(',');
+		} else {
+			record.append("{\"time\":").append(timeMillis).append(",\"event\":");
+			appendJSON(record, event);
+			record.append(",\"selector\":");
+			appendJSON(record, selector);
+			record.append(",\"filter\":");
+			appendJSON(record, code);
+			record.append(",\"name\":");
+			appendJSON(record, name);
+		}
+	}
+	
+	private void appendKey(String key, String item) {
+		if (item != null)
+			key = key + '[' + item + ']';
+		if (format == Format.CSV) {
+			record.append(prefix);
+			appendCSV(record, key);
+			record.append(',');
+		} else {
+			record.append(',');
+			appendJSON(record, key);
+			record.append(':');
+		}
+	}
+	
+	@Override
+	public void metric(String key, long value) {
+		metric(key, null, value);
+	}
+	
+	@Override
+	public void metric(String key, double value) {
+		metric(key, null, value);
+	}
+	
+	@Override
+	public void metric(String key, String item, long value) {
+		appendKey(key, item);
+		record.append(value);
+		if (format == Format.CSV)
+			record.append('\n');
+	}
+	
+	/**
+	 * Values which are not numbers (e.g. rates over an empty period) are written as {@code null} in
+	 * JSON, and as an empty value in CSV.
+	 */
+	@Override
+	public void metric(String key, String item, double value) {
+		appendKey(key, item);
+		if (!Double.isNaN(value) && !Double.isInfinite(value))
+			record.append(value);
+		else if (format == Format.JSON)
+			record.append("null");
+		if (format == Format.CSV)
+			record.append('\n');
+	}
+	
+	/**
+	 * The record is written to the current file, or to a new file when it would exceed the maximum
+	 * size, so that records are never split over two files.
+	 */
+	@Override
+	public void endRecord() {
+		if (closed)
+			return;
+		if (format == Format.JSON)
+			record.append("}\n");
+		if (out == null || (maxSize > 0 && curSize > 0 && curSize + record.length() > maxSize)) {
+			if (!startNewFile())
+				return;
+		}
+		write(record);
+	}
+	
+	@Override
+	public void flush() {
+		if (out == null)
+			return;
+		try {
+			out.flush();
+		} catch (IOException e) {
+			error(e);
+		}
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			error(e);
+		}
+		out = null;
+	}
+	
+	/**
+	 * Appends a CSV field, quoted when it holds commas, quotes or line breaks.
+	 */
+	private static void appendCSV(StringBuilder sb, String str) {
+		if (str == null)
+			return;
+		boolean quote = false;
+		for (int i = 0; i < str.length() && !quote; i++) {
+			char c = str.charAt(i);
+			quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+		}
+		if (!quote) {
+			sb.append(str);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"')
+				sb.append('"');
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+	
+	/**
+	 * Appends a JSON string, or {@code null}.
+	 */
+	private static void appendJSON(StringBuilder sb, String str) {
+		if (str == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+}
@@ -0,0 +1,22 @@
+package pcap.filters;
+
+/**
+ * Optional interface for {@link MetricsFilter}s whose counters can be published while packets are
+ * processed (e.g. served over HTTP, see {@link pcap.MetricsServer}), without slowing packet
+ * processing down.<br/>
+ * Live metrics are cheap counters read from the Filter fields: percentiles, top-K and metrics of
+ * items are only written by {@link #writeMetrics(MetricsSink)}. They must be additive, as the live
+ * metrics of a {@link ShardedFilter} are the sums of those of its shards.
+ *
+ * @author Matthieu Labas
+ */
+public interface LiveMetricsFilter extends MetricsFilter {
+	
+	/**
+	 * Writes the live metrics of the Filter to the current record of a sink. It is called by the
+	 * thread processing packets, so it should neither allocate nor format anything.
+	 * @param sink The sink receiving metrics.
+	 */
+	void writeLiveMetrics(MetricsSink sink);
+
+}
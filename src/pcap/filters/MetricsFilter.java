@@ -0,0 +1,18 @@
+package pcap.filters;
+
+/**
+ * Optional interface for Filters exposing their statistics as metrics (typed key/value records),
+ * in addition to the text displayed on {@link #watch()} and {@link #finish()}.
+ * 
+ * @author Matthieu Labas
+ */
+public interface MetricsFilter extends MessageFilter {
+	
+	/**
+	 * Writes the metrics of the Filter to the current record of a sink. Metrics are those displayed
+	 * by the last call to {@link #watch()} or {@link #finish()}.
+	 * @param sink The sink receiving metrics.
+	 */
+	void writeMetrics(MetricsSink sink);
+
+}
@@ -0,0 +1,70 @@
+package pcap.filters;
+
+/**
+ * Interface receiving the metrics of Filters as typed key/value records, to be stored in a
+ * machine-readable format rather than displayed. A record holds the metrics of a Filter at a given
+ * time: it is started by {@link #beginRecord(long, String, String, String, String)}, filled by
+ * {@link MetricsFilter#writeMetrics(MetricsSink)} and ended by {@link #endRecord()}.
+ * 
+ * @author Matthieu Labas
+ */
+public interface MetricsSink {
+	
+	/**
+	 * Starts a new record.
+	 * @param timeMillis The packet time (ms).
+	 * @param event What triggered the record: {@code "watch"} or {@code "finish"}.
+	 * @param selector The description of the Selector of the Filter.
+	 * @param code The code of the Filter.
+	 * @param name The logical name of the Filter, or {@code null}.
+	 */
+	void beginRecord(long timeMillis, String event, String selector, String code, String name);
+	
+	/**
+	 * Adds an integer metric to the current record.
+	 * @param key The metric name.
+	 * @param value The metric value.
+	 */
+	void metric(String key, long value);
+	
+	/**
+	 * Adds a decimal metric to the current record.
+	 * @param key The metric name.
+	 * @param value The metric value.
+	 */
+	void metric(String key, double value);
+	
+	/**
+	 * Adds an integer metric of an item of the Filter (e.g. one of the heaviest hosts) to the
+	 * current record.
+	 * @param key The metric name.
+	 * @param item The item the metric is about (e.g. an IP address).
+	 * @param value The metric value.
+	 */
+	void metric(String key, String item, long value);
+	
+	/**
+	 * Adds a decimal metric of an item of the Filter to the current record.
+	 * @param key The metric name.
+	 * @param item The item the metric is about (e.g. an IP address).
+	 * @param value The metric value.
+	 */
+	void metric(String key, String item, double value);
+	
+	/**
+	 * Ends the current record.
+	 */
+	void endRecord();
+	
+	/**
+	 * Method called once the records of all Filters have been written for a watch, so that records
+	 * can be written by batches.
+	 */
+	void flush();
+	
+	/**
+	 * Method called when no more records will be written.
+	 */
+	void close();
+
+}
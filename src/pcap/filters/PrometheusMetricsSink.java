@@ -0,0 +1,175 @@
+package pcap.filters;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link MetricsSink} building a snapshot of the metrics of Filters in Prometheus text format, to
+ * be served to scrapers (see {@link pcap.MetricsServer}). Each metric {@code key} becomes the
+ * metric {@code pcap_<key>} labelled by Selector, Filter code and name, e.g.
+ * {@code pcap_lost{selector="=239.1.1.1",filter="RTP",name="Cam1"} 2}. Metrics of items get an
+ * additional {@code item} label, e.g. {@code pcap_top_bytes{...,item="10.0.0.1"} 123456}.<br/>
+ * Records are accumulated until {@link #flush()}, which publishes them as a new immutable
+ * snapshot: threads reading {@link #getSnapshot()} never lock or wait for the thread writing
+ * metrics, and always get a complete set of metrics.<br/>
+ * Snapshots are only published when packets are processed, so every snapshot holds
+ * {@code pcap_last_update_seconds}, the wall-clock time (s since the epoch) it was published:
+ * scrapers can tell stale metrics (e.g. {@code time() - pcap_last_update_seconds > 10}) from
+ * idle traffic.
+ *
+ * @author Matthieu Labas
+ */
+public class PrometheusMetricsSink implements MetricsSink {
+	
+	public static final String PREFIX = "pcap_";
+	
+	/** Name of the metric holding the time (s) the snapshot was published. */
+	public static final String LAST_UPDATE = "last_update_seconds";
+	
+	/** Lines of each metric, by metric name, as Prometheus expects lines of a metric to be grouped. */
+	private final Map<String,StringBuilder> metrics;
+	
+	/** Labels of the current record, without the closing brace. */
+	private final StringBuilder labels;
+	
+	/** The last snapshot published, encoded in UTF-8. */
+	private volatile byte[] snapshot;
+	
+	public PrometheusMetricsSink() {
+		metrics = new LinkedHashMap<String,StringBuilder>();
+		labels = new StringBuilder(256);
+		snapshot = new byte[0];
+	}
+	
+	@Override
+	public void beginRecord(long timeMillis, String event, String selector, String code, String name) {
+		labels.setLength(0);
+		labels.append("{selector=");
+		appendLabel(labels, selector);
+		labels.append(",filter=");
+		appendLabel(labels, code);
+		if (name != null) {
+			labels.append(",name=");
+			appendLabel(labels, name);
+		}
+	}
+	
+	/**
+	 * @param item The item the metric is about, or {@code null}.
+	 * @return The lines of a metric, started by its name and labels.
+	 */
+	private StringBuilder line(String key, String item) {
+		StringBuilder sb = metrics.get(key);
+		if (sb == null) {
+			sb = new StringBuilder();
+			metrics.put(key, sb);
+		}
+		appendName(sb, key);
+		sb.append(labels);
+		if (item != null) {
+			sb.append(",item=");
+			appendLabel(sb, item);
+		}
+		return sb.append("} ");
+	}
+	
+	@Override
+	public void metric(String key, long value) {
+		metric(key, null, value);
+	}
+	
+	@Override
+	public void metric(String key, double value) {
+		metric(key, null, value);
+	}
+	
+	@Override
+	public void metric(String key, String item, long value) {
+		line(key, item).append(value).append('\n');
+	}
+	
+	@Override
+	public void metric(String key, String item, double value) {
+		StringBuilder sb = line(key, item);
+		if (Double.isNaN(value))
+			sb.append("NaN");
+		else if (Double.isInfinite(value))
+			sb.append(value > 0 ? "+Inf" : "-Inf");
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+	
+	@Override
+	public void endRecord() {
+	}
+	
+	/**
+	 * Publishes the metrics written since the last call as a new snapshot, with the current time.
+	 */
+	@Override
+	public void flush() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# TYPE ");
+		appendName(sb, LAST_UPDATE);
+		sb.append(" gauge\n");
+		appendName(sb, LAST_UPDATE);
+		long ms = System.currentTimeMillis(); // Without exponent
+		sb.append(' ').append(ms / 1000).append('.').append(String.valueOf(1000 + ms % 1000).substring(1)).append('\n');
+		for (Map.Entry<String,StringBuilder> e : metrics.entrySet()) {
+			sb.append("# TYPE ");
+			appendName(sb, e.getKey());
+			sb.append(" untyped\n").append(e.getValue());
+		}
+		metrics.clear();
+		try {
+			snapshot = sb.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) { }
+	}
+	
+	/**
+	 * The last snapshot is kept.
+	 */
+	@Override
+	public void close() {
+	}
+	
+	/**
+	 * @return The last snapshot published by {@link #flush()}, in Prometheus text format (UTF-8).
+	 *     It should not be modified.
+	 */
+	public byte[] getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Appends the name of a metric, characters not allowed by Prometheus (e.g. {@code .} in
+	 * {@code size_p99.9}) being replaced by {@code _}.
+	 */
+	private static void appendName(StringBuilder sb, String key) {
+		sb.append(PREFIX);
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':';
+			sb.append(valid ? c : '_');
+		}
+	}
+	
+	private static void appendLabel(StringBuilder sb, String value) {
+		sb.append('"');
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' || c == '"')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+}
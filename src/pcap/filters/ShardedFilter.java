@@ -0,0 +1,469 @@
+package pcap.filters;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pcap.Packet;
+
+/**
+ * Filter spreading packets over several instances ("shards") of a {@link CombinableFilter}, each
+ * one running in its own thread.<br/>
+ * Packets are dispatched according to the hash of their 5-tuple so that all packets of a flow are
+ * always processed by the same shard, in order: per-flow semantics (e.g. counters ordering) are
+ * preserved. Both directions of a connection go to the same shard (e.g. to match TCP segments
+ * with their ACK). Shard results are combined into the original Filter when {@link #watch()} or
+ * {@link #finish()} are called.<br/>
+ * Live metrics (see {@link LiveMetricsFilter}) are published by each shard in its own thread, and
+ * only summed by the dispatching thread (see {@link #writeLiveMetrics(MetricsSink)}).
+ *
+ * @author Matthieu Labas
+ */
+public class ShardedFilter implements TimedFilter, AlertFilter {
+	
+	/** Number of packets that can be queued for each shard before the dispatching thread blocks. */
+	public static final int QUEUE_SIZE = 1024;
+	
+	/** Marker telling a shard thread to stop. */
+	private static final Object STOP = new Object();
+	
+	/** Marker telling a shard thread to publish its live metrics. */
+	private static final Object PUBLISH = new Object();
+	
+	/**
+	 * The live metrics of a shard, written by the shard thread and read by the dispatching thread
+	 * once published. Metrics of items are ignored.
+	 */
+	private static class LiveSnapshot implements MetricsSink {
+		
+		private String[] keys = new String[16];
+		private long[] longValues = new long[16];
+		private double[] doubleValues = new double[16];
+		private boolean[] isDouble = new boolean[16];
+		private int size;
+		
+		private void add(String key, long longValue, double doubleValue, boolean dbl) {
+			if (size == keys.length) {
+				int n = 2 * size;
+				String[] k = new String[n];
+				long[] l = new long[n];
+				double[] d = new double[n];
+				boolean[] b = new boolean[n];
+				System.arraycopy(keys, 0, k, 0, size);
+				System.arraycopy(longValues, 0, l, 0, size);
+				System.arraycopy(doubleValues, 0, d, 0, size);
+				System.arraycopy(isDouble, 0, b, 0, size);
+				keys = k;
+				longValues = l;
+				doubleValues = d;
+				isDouble = b;
+			}
+			keys[size] = key;
+			longValues[size] = longValue;
+			doubleValues[size] = doubleValue;
+			isDouble[size] = dbl;
+			size++;
+		}
+		
+		/**
+		 * @param key The metric key.
+		 * @param hint Where {@code key} is expected, as shards usually write the same keys in the
+		 *     same order.
+		 * @return The index of {@code key}, or -1 if the shard did not write it.
+		 */
+		int indexOf(String key, int hint) {
+			if (hint < size && key.equals(keys[hint]))
+				return hint;
+			for (int i = 0; i < size; i++) {
+				if (key.equals(keys[i]))
+					return i;
+			}
+			return -1;
+		}
+		
+		@Override
+		public void beginRecord(long timeMillis, String event, String selector, String code, String name) { }
+		
+		@Override
+		public void metric(String key, long value) {
+			add(key, value, 0, false);
+		}
+		
+		@Override
+		public void metric(String key, double value) {
+			add(key, 0, value, true);
+		}
+		
+		@Override
+		public void metric(String key, String item, long value) { }
+		
+		@Override
+		public void metric(String key, String item, double value) { }
+		
+		@Override
+		public void endRecord() { }
+		
+		@Override
+		public void flush() { }
+		
+		@Override
+		public void close() { }
+	}
+	
+	/**
+	 * The thread processing packets on its own Filter instance.
+	 */
+	private static class Shard extends Thread {
+		
+		private final MessageFilter filter;
+		
+		private final BlockingQueue<Object> queue;
+		
+		/** Number of packets queued (only written by the dispatching thread). */
+		private long nQueued;
+		
+		/** Number of packets processed by the shard thread. */
+		private final AtomicLong nProcessed;
+		
+		/** Monitor on which {@link #sync()} waits for the shard thread to catch up. */
+		private final Object syncLock;
+		
+		/** Whether the dispatching thread is waiting in {@link #sync()}. */
+		private volatile boolean syncing;
+		
+		/** The live metrics last published by the shard thread, or {@code null}. */
+		private volatile LiveSnapshot snapshot;
+		
+		Shard(MessageFilter filter, String name) {
+			super(name);
+			this.filter = filter;
+			queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+			nProcessed = new AtomicLong();
+			syncLock = new Object();
+			setDaemon(true);
+		}
+		
+		void enqueue(Packet packet) {
+			nQueued++;
+			try {
+				queue.put(packet);
+			} catch (InterruptedException e) {
+				nQueued--;
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Queues a time notification, processed in order with packets.
+		 */
+		void enqueueTick(long timeMillis) {
+			nQueued++;
+			try {
+				queue.put(Long.valueOf(timeMillis));
+			} catch (InterruptedException e) {
+				nQueued--;
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Asks the shard thread to publish its live metrics, in order with packets. The request is
+		 * dropped if the queue is full, so that the dispatching thread never waits.
+		 */
+		void requestSnapshot() {
+			nQueued++;
+			if (!queue.offer(PUBLISH))
+				nQueued--;
+		}
+		
+		/**
+		 * Publishes the live metrics of the shard Filter. Called by the shard thread.
+		 */
+		private void publishSnapshot() {
+			LiveSnapshot live = new LiveSnapshot();
+			if (filter instanceof LiveMetricsFilter)
+				((LiveMetricsFilter)filter).writeLiveMetrics(live);
+			snapshot = live;
+		}
+		
+		/**
+		 * Waits until all queued packets have been processed by the shard thread. The shard thread
+		 * only signals while someone is waiting, so that packets processing does not take the monitor.
+		 */
+		void sync() {
+			synchronized (syncLock) {
+				syncing = true;
+				try {
+					while (nProcessed.get() < nQueued && isAlive())
+						syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					syncing = false;
+				}
+			}
+		}
+		
+		/**
+		 * Wakes up the dispatching thread if it is waiting in {@link #sync()}.
+		 */
+		private void signalSync() {
+			if (syncing) {
+				synchronized (syncLock) {
+					syncLock.notifyAll();
+				}
+			}
+		}
+		
+		void terminate() {
+			try {
+				queue.put(STOP);
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					Object o = queue.take();
+					if (o == STOP)
+						return;
+					try {
+						if (o == PUBLISH)
+							publishSnapshot();
+						else if (o instanceof Long)
+							((TimedFilter)filter).tick((Long)o);
+						else
+							filter.process((Packet)o);
+					} catch (RuntimeException e) { // Do not let a faulty packet kill the shard
+						e.printStackTrace();
+					}
+					nProcessed.incrementAndGet();
+					signalSync();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally { // A dead shard must not keep sync() waiting
+				signalSync();
+			}
+		}
+	}
+	
+	/** The Filter receiving the combined results of all shards. It never processes packets itself. */
+	private CombinableFilter filter;
+	
+	private Shard[] shards;
+	
+	/** The snapshots of shards being summed (only used by the dispatching thread). */
+	private LiveSnapshot[] snapshots;
+	
+	private boolean finished;
+	
+	/**
+	 * @param filter The Filter to shard. It will hold the combined results of all shards.
+	 * @param nShards The number of shards (threads).
+	 */
+	public ShardedFilter(CombinableFilter filter, int nShards) {
+		this.filter = filter;
+		shards = new Shard[nShards];
+		snapshots = new LiveSnapshot[nShards];
+		for (int i = 0; i < nShards; i++) {
+			MessageFilter shard = filter.duplicate();
+			if (shard == null)
+				throw new IllegalArgumentException(String.format("Filter '%s' cannot be duplicated!", filter.getClass().getName()));
+			if (shard instanceof AbstractCounterFilter)
+				((AbstractCounterFilter)shard).setSharded();
+			shards[i] = new Shard(shard, String.format("Shard-%s-%d", filter.getClass().getSimpleName(), i));
+			shards[i].start();
+		}
+		finished = false;
+	}
+	
+	/**
+	 * @return The Filter holding the combined results of all shards.
+	 */
+	public MessageFilter getFilter() {
+		return filter;
+	}
+	
+	public int getNbShards() {
+		return shards.length;
+	}
+	
+	@Override
+	public MessageFilter duplicate() {
+		MessageFilter dup = filter.duplicate();
+		if (!(dup instanceof CombinableFilter))
+			return null;
+		return new ShardedFilter((CombinableFilter)dup, shards.length);
+	}
+	
+	@Override
+	public void setName(String name) {
+		filter.setName(name);
+		for (Shard shard : shards)
+			shard.filter.setName(name);
+	}
+	
+	@Override
+	public String getName() {
+		return filter.getName();
+	}
+	
+	@Override
+	public void setAlternateCode(String code) {
+		filter.setAlternateCode(code);
+		for (Shard shard : shards)
+			shard.filter.setAlternateCode(code);
+	}
+	
+	@Override
+	public String getAlternateCode() {
+		return filter.getAlternateCode();
+	}
+	
+	@Override
+	public String getDescription() {
+		return filter.getDescription();
+	}
+	
+	@Override
+	public void setPrinter(FilterPrinter printer) {
+		filter.setPrinter(printer);
+		for (Shard shard : shards)
+			shard.filter.setPrinter(printer);
+	}
+	
+	/**
+	 * @see AbstractMessageFilter#setFilterVerbose(boolean)
+	 */
+	public void setFilterVerbose(boolean verbose) {
+		if (filter instanceof AbstractMessageFilter)
+			((AbstractMessageFilter)filter).setFilterVerbose(verbose);
+		for (Shard shard : shards) {
+			if (shard.filter instanceof AbstractMessageFilter)
+				((AbstractMessageFilter)shard.filter).setFilterVerbose(verbose);
+		}
+	}
+	
+	/**
+	 * Alerts are printed by shards, as the combining Filter does not process packets. Shards are
+	 * only configured before packets are queued.
+	 */
+	@Override
+	public void setAlerts(boolean alerts) {
+		if (filter instanceof AlertFilter)
+			((AlertFilter)filter).setAlerts(alerts);
+		for (Shard shard : shards)
+			if (shard.filter instanceof AlertFilter)
+				((AlertFilter)shard.filter).setAlerts(alerts);
+	}
+	
+	/**
+	 * Queues the packet to its shard. As it is processed asynchronously, whether the shard Filter
+	 * understood it is not known: the returned value only tells that the packet was queued, and
+	 * {@link pcap.Selector#process(Packet)} does not count sharded Filters.
+	 * @return {@code true} if the packet was queued.
+	 */
+	@Override
+	public boolean process(Packet packet) {
+		if (finished)
+			return false;
+		shards[(int)((packet.getConnectionHash() >>> 1) % shards.length)].enqueue(packet);
+		return true;
+	}
+	
+	/**
+	 * Time notifications are forwarded to shards through their queue, so that the shard Filters
+	 * are only accessed by their own thread.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		if (finished)
+			return;
+		for (Shard shard : shards)
+			if (shard.filter instanceof TimedFilter)
+				shard.enqueueTick(timeMillis);
+	}
+	
+	/**
+	 * Waits for all shards to process their pending packets, then combines their state into
+	 * {@link #filter}, e.g. to read its current state without displaying it.<br/>
+	 * N.B. that the calling thread (usually the one dispatching packets) yields until every queue
+	 * is drained, i.e. up to {@link #QUEUE_SIZE} packets per shard, and no packets are dispatched
+	 * meanwhile: live metrics should be written with {@link #writeLiveMetrics(MetricsSink)} instead.
+	 */
+	public void combine() {
+		filter.reset();
+		for (Shard shard : shards) {
+			shard.sync();
+			filter.combine(shard.filter);
+		}
+	}
+	
+	/**
+	 * Writes the sums of the live metrics last published by the shards (see
+	 * {@link LiveMetricsFilter}), then asks shards to publish their current ones. The calling thread
+	 * never waits for shards: metrics written are those requested by the previous call, or older if
+	 * a shard queue was full.
+	 * @param sink The sink receiving metrics.
+	 */
+	public void writeLiveMetrics(MetricsSink sink) {
+		LiveSnapshot first = null;
+		for (int s = 0; s < shards.length; s++) {
+			snapshots[s] = shards[s].snapshot;
+			if (first == null)
+				first = snapshots[s];
+		}
+		for (int i = 0; first != null && i < first.size; i++) {
+			long longValue = 0;
+			double doubleValue = 0;
+			for (LiveSnapshot snapshot : snapshots) {
+				int j = (snapshot == null ? -1 : snapshot.indexOf(first.keys[i], i));
+				if (j < 0)
+					continue;
+				longValue += snapshot.longValues[j];
+				doubleValue += snapshot.doubleValues[j];
+			}
+			if (first.isDouble[i])
+				sink.metric(first.keys[i], doubleValue);
+			else
+				sink.metric(first.keys[i], longValue);
+		}
+		if (finished)
+			return;
+		for (Shard shard : shards)
+			shard.requestSnapshot();
+	}
+	
+	@Override
+	public void watch() {
+		combine();
+		filter.watch();
+	}
+	
+	@Override
+	public void reset() {
+		for (Shard shard : shards) {
+			shard.sync();
+			shard.filter.reset();
+		}
+	}
+	
+	@Override
+	public boolean finish() {
+		if (finished)
+			return true;
+		finished = true;
+		for (Shard shard : shards)
+			shard.terminate();
+		for (Shard shard : shards)
+			((CombinableFilter)shard.filter).flush();
+		combine();
+		return filter.finish();
+	}
+
+}
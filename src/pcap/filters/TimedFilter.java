@@ -0,0 +1,18 @@
+package pcap.filters;
+
+/**
+ * Optional interface for Filters which need to be notified of time passing, even when they do not
+ * receive packets (e.g. to release packets held for too long or detect stalled streams).
+ * 
+ * @author Matthieu Labas
+ */
+public interface TimedFilter extends MessageFilter {
+	
+	/**
+	 * Method called periodically with the current time. Time is the timestamp of the last packet
+	 * read from the stream (i.e. packet time), whichever Selector it was sent to.
+	 * @param timeMillis The current packet time (ms).
+	 */
+	void tick(long timeMillis);
+
+}
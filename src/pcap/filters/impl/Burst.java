@@ -0,0 +1,342 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.AbstractMessageFilter;
+import pcap.filters.BatchFilter;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.LiveMetricsFilter;
+import pcap.filters.MetricsSink;
+import pcap.filters.TimedFilter;
+
+/**
+ * Detects microbursts: periods when the traffic over a sliding window of a few hundred
+ * microseconds exceeds a rate, which averages over seconds hide, e.g. {@code BURST(mbps=500,window=200)}:
+ * <ul>
+ * <li>{@code mbps=<n>}: rate above which traffic is bursting (default {@link #DEFAULT_MBPS} when
+ * {@code pps} is not given),</li>
+ * <li>{@code pps=<n>}: packet rate above which traffic is bursting,</li>
+ * <li>{@code window=<us>}: sliding window over which rates are measured (default
+ * {@link #DEFAULT_WINDOW}),</li>
+ * <li>{@code bucket=<us>}: resolution of the sliding window (default {@link #DEFAULT_BUCKET}).</li>
+ * </ul>
+ * Packets and bytes are binned by packet time (us) into a fixed ring of buckets covering the
+ * window, so the Filter can run indefinitely on live captures. Each burst is displayed in verbose
+ * mode, and statistics show the number of bursts with the {@link PCAPAnalyzer#TOP_K} highest.<br/>
+ * As bursts are measured on the whole traffic of the Selector, this Filter is not sharded.
+ *
+ * @author Matthieu Labas
+ */
+public class Burst extends AbstractMessageFilter implements BatchFilter, TimedFilter, ConfigurableFilter, LiveMetricsFilter {
+	
+	public final static String DESCRIPTION = "Microbursts above a rate: BURST(mbps=<n>,pps=<n>,window=<us>,bucket=<us>)";
+	
+	public final static int DEFAULT_MBPS = 100;
+	public final static int DEFAULT_WINDOW = 1000;
+	public final static int DEFAULT_BUCKET = 100;
+	
+	private String parameters;
+	
+	protected int mbps;
+	protected int pps;
+	
+	/** Bucket duration (us). */
+	protected int bucketMicros;
+	
+	/** Window duration (us), a multiple of {@link #bucketMicros}. */
+	protected int windowMicros;
+	
+	/** Bytes in the window above which traffic is bursting. */
+	private long thresholdBytes;
+	
+	/** Packets in the window above which traffic is bursting. */
+	private long thresholdPackets;
+	
+	/*
+	 * Ring of buckets of the window, indexed by (bucket % number of buckets).
+	 */
+	private long[] bucketBytes;
+	private int[] bucketPackets;
+	
+	/** Current bucket (packet time / bucket duration). */
+	private long bucket;
+	
+	private long windowBytes;
+	private int windowPackets;
+	
+	/*
+	 * Burst in progress.
+	 */
+	private boolean bursting;
+	private long burstStart;
+	private int burstPacketNum;
+	private long burstBytes;
+	private int burstPackets;
+	private long burstPeakBytes;
+	private int burstPeakPackets;
+	
+	protected long nbPackets;
+	protected long nbBytes;
+	protected int nbBursts;
+	/** Total duration of bursts (us). */
+	protected long burstsMicros;
+	
+	/*
+	 * Highest bursts, by peak bytes in the window.
+	 */
+	protected int nbTop;
+	protected int[] topPacketNum;
+	protected long[] topDuration;
+	protected long[] topPeakBytes;
+	protected int[] topPeakPackets;
+	protected long[] topBytes;
+	protected int[] topPackets;
+	
+	protected int nWatch;
+	
+	public Burst() {
+		super();
+		mbps = DEFAULT_MBPS;
+		allocate(DEFAULT_WINDOW, DEFAULT_BUCKET);
+		int k = PCAPAnalyzer.TOP_K;
+		topPacketNum = new int[k];
+		topDuration = new long[k];
+		topPeakBytes = new long[k];
+		topPeakPackets = new int[k];
+		topBytes = new long[k];
+		topPackets = new int[k];
+	}
+	
+	private void allocate(int window, int bucket) {
+		windowMicros = window;
+		bucketMicros = bucket;
+		bucketBytes = new long[window / bucket];
+		bucketPackets = new int[window / bucket];
+		thresholdBytes = (mbps > 0 ? (long)mbps * window / 8 : Long.MAX_VALUE);
+		thresholdPackets = (pps > 0 ? (long)pps * window / 1000000l : Long.MAX_VALUE);
+	}
+	
+	@Override
+	public void configure(String parameters) throws IllegalArgumentException {
+		int window = DEFAULT_WINDOW, bucket = DEFAULT_BUCKET;
+		mbps = 0;
+		for (String param : parameters.split(",")) {
+			String[] kv = param.trim().split("=", 2);
+			String key = kv[0].toLowerCase();
+			try {
+				if (key.equals("mbps") && kv.length == 2)
+					mbps = Integer.parseInt(kv[1]);
+				else if (key.equals("pps") && kv.length == 2)
+					pps = Integer.parseInt(kv[1]);
+				else if (key.equals("window") && kv.length == 2)
+					window = Integer.parseInt(kv[1]);
+				else if (key.equals("bucket") && kv.length == 2)
+					bucket = Integer.parseInt(kv[1]);
+				else if (key.length() > 0)
+					throw new IllegalArgumentException(String.format("Unknown parameter '%s'", param));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid value in '%s'", param));
+			}
+		}
+		if (mbps < 0 || pps < 0)
+			throw new IllegalArgumentException("Rates should be positive");
+		if (mbps == 0 && pps == 0)
+			mbps = DEFAULT_MBPS;
+		if (bucket <= 0 || window < bucket || window % bucket != 0)
+			throw new IllegalArgumentException("Window should be a multiple of bucket");
+		allocate(window, bucket);
+		if (thresholdPackets == 0)
+			throw new IllegalArgumentException(String.format("Window too short for %d packets/s", pps));
+		this.parameters = parameters;
+	}
+	
+	@Override
+	public String getParameters() {
+		return parameters;
+	}
+	
+	@Override
+	public String getDescription() {
+		return DESCRIPTION;
+	}
+	
+	private boolean isAbove() {
+		return windowBytes > thresholdBytes || windowPackets > thresholdPackets;
+	}
+	
+	/**
+	 * Moves the window forward to a bucket, ending the burst in progress when traffic falls below
+	 * the threshold.
+	 */
+	private void advance(long to) {
+		if (to <= bucket)
+			return;
+		int n = bucketBytes.length;
+		long steps = Math.min(to - bucket, n);
+		for (long k = 1; k <= steps; k++) {
+			int i = (int)((bucket + k) % n);
+			windowBytes -= bucketBytes[i];
+			windowPackets -= bucketPackets[i];
+			bucketBytes[i] = 0;
+			bucketPackets[i] = 0;
+			if (bursting && !isAbove())
+				endBurst((bucket + k) * bucketMicros);
+		}
+		bucket = to;
+	}
+	
+	protected void add(long us, int len, int packetNum) {
+		nbPackets++;
+		nbBytes += len;
+		advance(us / bucketMicros);
+		int i = (int)(bucket % bucketBytes.length);
+		bucketBytes[i] += len;
+		bucketPackets[i]++;
+		windowBytes += len;
+		windowPackets++;
+		if (!isAbove())
+			return;
+		if (!bursting) {
+			bursting = true;
+			burstStart = us;
+			burstPacketNum = packetNum;
+			burstBytes = burstPackets = 0;
+			burstPeakBytes = burstPeakPackets = 0;
+		}
+		burstBytes += len;
+		burstPackets++;
+		burstPeakBytes = Math.max(burstPeakBytes, windowBytes);
+		burstPeakPackets = Math.max(burstPeakPackets, windowPackets);
+	}
+	
+	private void endBurst(long us) {
+		bursting = false;
+		long duration = Math.max(us - burstStart, 0);
+		nbBursts++;
+		burstsMicros += duration;
+		if (isVerbose())
+			printVerbose("Burst from packet #%d: %.3f ms, peak %.1f Mbps %d packets/s, %d packets, %d bytes", burstPacketNum, duration / 1000.0,
+					8.0 * burstPeakBytes / windowMicros, 1000000l * burstPeakPackets / windowMicros, burstPackets, burstBytes);
+		
+		// Keep the highest bursts, sorted by decreasing peak
+		int k = nbTop;
+		if (k == topPeakBytes.length) {
+			if (k == 0 || burstPeakBytes <= topPeakBytes[k-1])
+				return;
+			k--;
+		} else {
+			nbTop++;
+		}
+		for (; k > 0 && topPeakBytes[k-1] < burstPeakBytes; k--) {
+			topPacketNum[k] = topPacketNum[k-1];
+			topDuration[k] = topDuration[k-1];
+			topPeakBytes[k] = topPeakBytes[k-1];
+			topPeakPackets[k] = topPeakPackets[k-1];
+			topBytes[k] = topBytes[k-1];
+			topPackets[k] = topPackets[k-1];
+		}
+		topPacketNum[k] = burstPacketNum;
+		topDuration[k] = duration;
+		topPeakBytes[k] = burstPeakBytes;
+		topPeakPackets[k] = burstPeakPackets;
+		topBytes[k] = burstBytes;
+		topPackets[k] = burstPackets;
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		add(packet.getPacketTimeMicros(), packet.getTotalDataLength(), packet.getPacketNumber());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = batch.size();
+		long[] times = batch.getTimesMicros();
+		int[] lengths = batch.getLengths(), packetNumbers = batch.getPacketNumbers();
+		for (int i = 0; i < n; i++)
+			add(times[i], lengths[i], packetNumbers[i]);
+		return n;
+	}
+	
+	/**
+	 * Ends bursts when traffic stops.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		advance(1000l * timeMillis / bucketMicros);
+	}
+	
+	/**
+	 * Counters are reset, the window is kept.
+	 */
+	@Override
+	public void reset() {
+		nbPackets = nbBytes = 0;
+		nbBursts = 0;
+		burstsMicros = 0;
+		nbTop = 0;
+		Arrays.fill(topPeakBytes, 0);
+	}
+	
+	@Override
+	public void watch() {
+		print(String.format("(watch %4d) - %s", ++nWatch, generateStats()));
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		sink.metric("packets", nbPackets);
+		sink.metric("bytes", nbBytes);
+		sink.metric("bursts", nbBursts);
+		sink.metric("bursts_duration", burstsMicros / 1000.0);
+		if (nbTop > 0) {
+			sink.metric("burst_max_mbps", 8.0 * topPeakBytes[0] / windowMicros);
+			sink.metric("burst_max_pps", 1000000l * topPeakPackets[0] / windowMicros);
+		}
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		sink.metric("packets", nbPackets);
+		sink.metric("bytes", nbBytes);
+		sink.metric("bursts", nbBursts);
+		sink.metric("bursts_duration", burstsMicros / 1000.0);
+	}
+	
+	public String generateStats() {
+		if (nbPackets == 0)
+			return "No packets received.";
+		StringBuilder sb = new StringBuilder();
+		Formatter f = new Formatter(sb);
+		f.format("%d packets, %d bytes, %d bursts above ", nbPackets, nbBytes, nbBursts);
+		if (mbps > 0)
+			f.format("%d Mbps ", mbps);
+		if (pps > 0)
+			f.format("%d packets/s ", pps);
+		f.format("over %d us", windowMicros);
+		if (nbBursts == 0)
+			return sb.toString();
+		f.format(" (%.3f ms in bursts), top %d:", burstsMicros / 1000.0, nbTop);
+		for (int k = 0; k < nbTop; k++)
+			f.format("\n--#%-8d: %8.3f ms, peak %8.1f Mbps %8d packets/s, %6d packets, %8d bytes", topPacketNum[k], topDuration[k] / 1000.0,
+					8.0 * topPeakBytes[k] / windowMicros, 1000000l * topPeakPackets[k] / windowMicros, topPackets[k], topBytes[k]);
+		return sb.toString();
+	}
+	
+	/**
+	 * Ends the burst in progress and displays statistics.
+	 */
+	@Override
+	public boolean finish() {
+		if (bursting)
+			endBurst((bucket + 1) * bucketMicros);
+		print(generateStats());
+		return true;
+	}
+
+}
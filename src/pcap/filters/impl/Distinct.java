@@ -0,0 +1,107 @@
+package pcap.filters.impl;
+
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.Hash;
+import pcap.util.HyperLogLog;
+
+/**
+ * Counts distinct source IPs, destination IPs, (source, destination) pairs and flows (5-tuples)
+ * with {@link HyperLogLog} sketches of a few kB each, whatever the number of addresses.
+ * Counts are given for each watch interval, as sketches are cleared on {@link #reset()}.
+ *
+ * @author Matthieu Labas
+ */
+public class Distinct extends Stat {
+	
+	public final static String DESCRIPTION = "Counts distinct sources, destinations, pairs and flows";
+	
+	/** Precision of sketches: 4 kB each, 1.6% standard error. */
+	public static final int PRECISION = 12;
+	
+	protected HyperLogLog sources;
+	protected HyperLogLog destinations;
+	protected HyperLogLog pairs;
+	protected HyperLogLog flows;
+	
+	public Distinct() {
+		super();
+		sources = new HyperLogLog(PRECISION);
+		destinations = new HyperLogLog(PRECISION);
+		pairs = new HyperLogLog(PRECISION);
+		flows = new HyperLogLog(PRECISION);
+	}
+	
+	private void add(int srcIP, int dstIP, int srcPort, int dstPort, int protocol) {
+		sources.add(Hash.mix64(srcIP & 0xffffffffl));
+		destinations.add(Hash.mix64(dstIP & 0xffffffffl));
+		pairs.add(Hash.mix64((long)srcIP << 32 | (dstIP & 0xffffffffl)));
+		flows.add(Hash.hashFlow(srcIP, dstIP, srcPort, dstPort, protocol));
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (!super.process(packet))
+			return false;
+		
+		add(packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getSourcePort(), packet.getDestinationPort(), packet.getProtocol());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = super.processBatch(batch);
+		int[] srcIPs = batch.getSourceIPs(), dstIPs = batch.getDestinationIPs();
+		int[] srcPorts = batch.getSourcePorts(), dstPorts = batch.getDestinationPorts();
+		int[] protocols = batch.getProtocols();
+		for (int i = 0; i < n; i++)
+			add(srcIPs[i], dstIPs[i], srcPorts[i], dstPorts[i], protocols[i]);
+		return n;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		sources.clear();
+		destinations.clear();
+		pairs.clear();
+		flows.clear();
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		Distinct o = (Distinct)other;
+		sources.merge(o.sources);
+		destinations.merge(o.destinations);
+		pairs.merge(o.pairs);
+		flows.merge(o.flows);
+	}
+	
+	/**
+	 * Writes the estimated numbers of distinct sources, destinations, pairs and flows, with their
+	 * relative standard error.
+	 */
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		if (nbPackets == 0)
+			return;
+		sink.metric("distinct_sources", sources.estimate());
+		sink.metric("distinct_destinations", destinations.estimate());
+		sink.metric("distinct_pairs", pairs.estimate());
+		sink.metric("distinct_flows", flows.estimate());
+		sink.metric("distinct_error", sources.getStandardError());
+	}
+	
+	@Override
+	public String generateStats() {
+		if (nbPackets == 0)
+			return super.generateStats();
+		return super.generateStats() + String.format(", distinct: %d sources, %d destinations, %d pairs, %d flows (+/- %.1f%%%%)",
+				sources.estimate(), destinations.estimate(), pairs.estimate(), flows.estimate(), 100*sources.getStandardError());
+	}
+
+}
@@ -0,0 +1,224 @@
+package pcap.filters.impl;
+
+import java.util.Formatter;
+
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.Hash;
+import pcap.util.LogHistogram;
+import pcap.util.PendingTable;
+
+/**
+ * Detects duplicated packets of any protocol (e.g. received through redundant routes), without
+ * sequence counter: packets are identified by a hash of their addresses, length and data, e.g.
+ * {@code DUP(window=50,ports)}:
+ * <ul>
+ * <li>{@code window=<ms>}: delay during which a packet can be duplicated (default
+ * {@link PCAPAnalyzer#DUP_WINDOW}),</li>
+ * <li>{@code size=<n>}: number of packets remembered (default {@link PCAPAnalyzer#DUP_SIZE}),</li>
+ * <li>{@code ipid}: IP ID is part of the packet identity,</li>
+ * <li>{@code ports}: protocol and ports are part of the packet identity.</li>
+ * </ul>
+ * Hashes are kept in a {@link PendingTable}, so memory is fixed whatever the traffic: when more
+ * packets than its size are received during the window, the oldest are evicted and their
+ * duplicates are no longer detected. Duplicates are not accounted in statistics.<br/>
+ * Packets without data are only checked with {@code ipid}, as nothing else tells them apart.
+ *
+ * @author Matthieu Labas
+ */
+public class Duplicate extends Stat implements ConfigurableFilter {
+	
+	public final static String DESCRIPTION = "Duplicated packets from data hash: DUP(window=<ms>,size=<n>,ipid,ports)";
+	
+	/** Duplication delay histogram records up to 67 s (us). */
+	private static final int DELAY_BITS = 26;
+	
+	private String parameters;
+	
+	protected boolean useIPID;
+	
+	protected boolean usePorts;
+	
+	/** Packets received during the window. */
+	private PendingTable packets;
+	
+	/** Delay between packets and their duplicates (us). */
+	protected LogHistogram delays;
+	
+	/** Number of duplicated packets. */
+	protected long nbDuplicates;
+	
+	/** Number of evictions at the last reset. */
+	private long evictions0;
+	
+	/** Number of evictions in shards combined since the last reset. */
+	private long evictionsCombined;
+	
+	public Duplicate() {
+		super();
+		packets = new PendingTable(PCAPAnalyzer.DUP_SIZE, PCAPAnalyzer.DUP_WINDOW * 1000l);
+		delays = new LogHistogram(DELAY_BITS, 4);
+	}
+	
+	@Override
+	public void configure(String parameters) throws IllegalArgumentException {
+		int window = PCAPAnalyzer.DUP_WINDOW;
+		int size = PCAPAnalyzer.DUP_SIZE;
+		for (String param : parameters.split(",")) {
+			String[] kv = param.trim().split("=", 2);
+			String key = kv[0].toLowerCase();
+			try {
+				if (key.equals("ipid") && kv.length == 1)
+					useIPID = true;
+				else if (key.equals("ports") && kv.length == 1)
+					usePorts = true;
+				else if (key.equals("window") && kv.length == 2)
+					window = Integer.parseInt(kv[1]);
+				else if (key.equals("size") && kv.length == 2)
+					size = Integer.parseInt(kv[1]);
+				else if (key.length() > 0)
+					throw new IllegalArgumentException(String.format("Unknown parameter '%s'", param));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid value in '%s'", param));
+			}
+		}
+		if (window <= 0)
+			throw new IllegalArgumentException(String.format("Invalid window %d", window));
+		if (size <= 0)
+			throw new IllegalArgumentException(String.format("Invalid size %d", size));
+		packets = new PendingTable(size, window * 1000l);
+		this.parameters = parameters;
+	}
+	
+	@Override
+	public String getParameters() {
+		return parameters;
+	}
+	
+	/**
+	 * @return The hash of the fields identifying packets in addition to their data: addresses and
+	 *     total length, then IP ID, protocol and ports depending on options.
+	 */
+	private long seed(int srcIP, int dstIP, int length, int ipID, int srcPort, int dstPort, int protocol) {
+		long seed = (usePorts ? Hash.hashFlow(srcIP, dstIP, srcPort, dstPort, protocol) : Hash.hashFlow(srcIP, dstIP, 0, 0, 0));
+		return Hash.mix64(seed ^ ((useIPID ? (long)ipID << 32 : 0) | (length & 0xffffffffl)));
+	}
+	
+	/**
+	 * Remembers a packet. Packets without data (e.g. TCP ACKs) are only identified by their IP ID, so
+	 * they are never duplicates unless {@link #useIPID} is set.
+	 * @return {@code true} if it duplicates a packet received during the window.
+	 */
+	protected boolean check(byte[] data, int off, int len, long seed, long us, int packetNum) {
+		if (len == 0 && !useIPID)
+			return false;
+		long key = Hash.hashBytes(data, off, len, seed);
+		int s = packets.find(key, us);
+		if (s < 0) {
+			packets.put(key, us, packetNum);
+			return false;
+		}
+		nbDuplicates++;
+		long delay = us - packets.getTime(s);
+		delays.record(delay);
+		if (isVerbose())
+			printVerbose("Packet #%d duplicates packet #%d (%.3f ms later)", packetNum, packets.getValue(s), delay / 1000.0);
+		return true;
+	}
+	
+	/**
+	 * Duplicates are not accounted in statistics.
+	 */
+	@Override
+	public boolean process(Packet packet) {
+		byte[] data = packet.getAvailableData();
+		long us = packet.getPacketTimeMicros();
+		if (check(data, 0, data.length, seed(packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getTotalDataLength(), packet.getIPID(),
+				packet.getSourcePort(), packet.getDestinationPort(), packet.getProtocol()), us, packet.getPacketNumber()))
+			return true;
+		update(us, packet.getTotalDataLength(), packet.isFragmented());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = batch.size();
+		byte[] data = batch.getData();
+		int[] offsets = batch.getDataOffsets(), dataLengths = batch.getDataLengths();
+		long[] times = batch.getTimesMicros();
+		int[] lengths = batch.getLengths(), packetNumbers = batch.getPacketNumbers();
+		int[] srcIPs = batch.getSourceIPs(), dstIPs = batch.getDestinationIPs();
+		int[] srcPorts = batch.getSourcePorts(), dstPorts = batch.getDestinationPorts(), protocols = batch.getProtocols();
+		boolean[] fragmented = batch.getFragmented();
+		for (int i = 0; i < n; i++) {
+			long seed = seed(srcIPs[i], dstIPs[i], lengths[i], useIPID ? batch.getPacket(i).getIPID() : 0, srcPorts[i], dstPorts[i], protocols[i]);
+			if (!check(data, offsets[i], dataLengths[i], seed, times[i], packetNumbers[i]))
+				update(times[i], lengths[i], fragmented[i]);
+		}
+		return n;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		delays.clear();
+		nbDuplicates = 0;
+		evictions0 = packets.getEvictions();
+		evictionsCombined = 0;
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		Duplicate o = (Duplicate)other;
+		delays.add(o.delays);
+		nbDuplicates += o.nbDuplicates;
+		evictionsCombined += o.getEvictions();
+	}
+	
+	/**
+	 * @return The number of packets evicted since the last reset because more packets than the
+	 *     table size were received during the window.
+	 */
+	public long getEvictions() {
+		return packets.getEvictions() - evictions0 + evictionsCombined;
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		sink.metric("duplicated", nbDuplicates);
+		sink.metric("evicted", getEvictions());
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		sink.metric("duplicated", nbDuplicates);
+		sink.metric("evicted", getEvictions());
+		if (delays.getCount() > 0) {
+			sink.metric("delay_min", delays.getMin() / 1000.0);
+			sink.metric("delay_p50", delays.getValueAtPercentile(50) / 1000.0);
+			sink.metric("delay_p90", delays.getValueAtPercentile(90) / 1000.0);
+			sink.metric("delay_p99", delays.getValueAtPercentile(99) / 1000.0);
+			sink.metric("delay_max", delays.getMax() / 1000.0);
+		}
+	}
+	
+	@Override
+	public String generateStats() {
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		Formatter f = new Formatter(sb);
+		f.format(", %d duplicates (%6.3f%%%%)", nbDuplicates, nbPackets + nbDuplicates == 0 ? 0.0 : 100.0 * nbDuplicates / (nbPackets + nbDuplicates));
+		if (delays.getCount() > 0)
+			f.format(", delay (ms): min %.3f p50 %.3f p90 %.3f p99 %.3f max %.3f", delays.getMin() / 1000.0, delays.getValueAtPercentile(50) / 1000.0,
+					delays.getValueAtPercentile(90) / 1000.0, delays.getValueAtPercentile(99) / 1000.0, delays.getMax() / 1000.0);
+		f.format(", %d evicted", getEvictions());
+		return sb.toString();
+	}
+
+}
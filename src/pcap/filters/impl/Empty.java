@@ -1,14 +1,16 @@
 package pcap.filters.impl;
 
 import pcap.Packet;
+import pcap.PacketBatch;
 import pcap.filters.AbstractMessageFilter;
+import pcap.filters.BatchFilter;
 
 /**
  * The Empty Filter. Merely here to show minimum Filter implementation.
  *  
  * @author Matthieu Labas
  */
-public class Empty extends AbstractMessageFilter {
+public class Empty extends AbstractMessageFilter implements BatchFilter {
 	
 	public final static String DESCRIPTION = "Silently processes packets";
 	
@@ -22,6 +24,11 @@ public class Empty extends AbstractMessageFilter {
 		return true;
 	}
 
+	@Override
+	public int processBatch(PacketBatch batch) {
+		return batch.size();
+	}
+
 	@Override
 	public void watch() {
 	}
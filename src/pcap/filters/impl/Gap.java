@@ -0,0 +1,365 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.AlertFilter;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.filters.TimedFilter;
+import pcap.util.Hash;
+import pcap.util.LongIntHashMap;
+
+/**
+ * Detects gaps in the arrivals of constant-rate flows, e.g. {@code GAP(factor=5,min=20)}:
+ * <ul>
+ * <li>{@code factor=<x>}: gaps longer than {@code x} times the usual inter-arrival time are
+ * reported (default {@link #DEFAULT_FACTOR}),</li>
+ * <li>{@code min=<ms>}: shorter gaps are not reported (default {@link #DEFAULT_MIN}),</li>
+ * <li>{@code warmup=<n>}: number of packets needed to learn the inter-arrival time of a flow
+ * (default {@link #DEFAULT_WARMUP}).</li>
+ * </ul>
+ * Every flow (protocol, addresses and ports) learns its inter-arrival time through an exponential
+ * moving average (weight 1/16), kept with its other data in primitive arrays indexed through a
+ * {@link LongIntHashMap}, so the cost per packet does not depend on the number of flows. Gaps are
+ * counted when packets arrive, and flows silent for too long are reported as stalled when time is
+ * notified, without waiting for their traffic to resume.<br/>
+ * Flows are kept between watches so that their inter-arrival time is not learnt again. Stalled and
+ * resumed flows are printed as they are detected, except by watch copies (see {@link AlertFilter}).
+ *
+ * @author Matthieu Labas
+ */
+public class Gap extends Stat implements TimedFilter, ConfigurableFilter, AlertFilter {
+	
+	public final static String DESCRIPTION = "Arrival gaps and stalls of constant-rate flows: GAP(factor=<x>,min=<ms>,warmup=<n>)";
+	
+	public final static double DEFAULT_FACTOR = 4;
+	public final static int DEFAULT_MIN = 10;
+	public final static int DEFAULT_WARMUP = 16;
+	
+	private String parameters;
+	
+	protected double factor;
+	
+	/** Minimum gap reported (us). */
+	protected long minGap;
+	
+	protected int warmup;
+	
+	/** {@code true} to print stalled and resumed flows, and gaps when verbose. */
+	protected boolean alerts;
+	
+	/** Flow hash to index. */
+	private final LongIntHashMap flows;
+	
+	/*
+	 * Per-flow data.
+	 */
+	protected long[] hashes;
+	protected int[] srcIPs;
+	protected int[] dstIPs;
+	/** Source and destination ports ({@code srcPort << 16 | dstPort}). */
+	protected int[] ports;
+	/** Time of the last packet (us). */
+	protected long[] lastTimes;
+	/** Moving average of inter-arrival times (us). */
+	protected double[] averages;
+	/** Number of inter-arrival times learnt. */
+	protected int[] samples;
+	protected boolean[] stalled;
+	/*
+	 * Per-flow counters, cleared on reset.
+	 */
+	protected int[] gaps;
+	protected int[] stalls;
+	/** Longest gap (us). */
+	protected long[] maxGaps;
+	
+	protected int nbFlows;
+	
+	/** Buffer used to sort flows by number of events when generating statistics. */
+	private long[] sortBuffer;
+	
+	public Gap() {
+		super();
+		factor = DEFAULT_FACTOR;
+		minGap = DEFAULT_MIN * 1000l;
+		warmup = DEFAULT_WARMUP;
+		alerts = true;
+		flows = new LongIntHashMap();
+		allocate(16);
+	}
+	
+	@Override
+	public void configure(String parameters) throws IllegalArgumentException {
+		for (String param : parameters.split(",")) {
+			String[] kv = param.trim().split("=", 2);
+			String key = kv[0].toLowerCase();
+			try {
+				if (key.equals("factor") && kv.length == 2)
+					factor = Double.parseDouble(kv[1]);
+				else if (key.equals("min") && kv.length == 2)
+					minGap = Integer.parseInt(kv[1]) * 1000l;
+				else if (key.equals("warmup") && kv.length == 2)
+					warmup = Integer.parseInt(kv[1]);
+				else if (key.length() > 0)
+					throw new IllegalArgumentException(String.format("Unknown parameter '%s'", param));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid value in '%s'", param));
+			}
+		}
+		if (factor <= 1)
+			throw new IllegalArgumentException(String.format("Factor %s should be greater than 1", factor));
+		if (minGap < 0 || warmup < 1)
+			throw new IllegalArgumentException("Minimum gap and warmup should be positive");
+		this.parameters = parameters;
+	}
+	
+	@Override
+	public String getParameters() {
+		return parameters;
+	}
+	
+	@Override
+	public void setAlerts(boolean alerts) {
+		this.alerts = alerts;
+	}
+	
+	private void allocate(int capacity) {
+		if (hashes == null) {
+			hashes = new long[capacity];
+			srcIPs = new int[capacity];
+			dstIPs = new int[capacity];
+			ports = new int[capacity];
+			lastTimes = new long[capacity];
+			averages = new double[capacity];
+			samples = new int[capacity];
+			stalled = new boolean[capacity];
+			gaps = new int[capacity];
+			stalls = new int[capacity];
+			maxGaps = new long[capacity];
+		} else {
+			hashes = Arrays.copyOf(hashes, capacity);
+			srcIPs = Arrays.copyOf(srcIPs, capacity);
+			dstIPs = Arrays.copyOf(dstIPs, capacity);
+			ports = Arrays.copyOf(ports, capacity);
+			lastTimes = Arrays.copyOf(lastTimes, capacity);
+			averages = Arrays.copyOf(averages, capacity);
+			samples = Arrays.copyOf(samples, capacity);
+			stalled = Arrays.copyOf(stalled, capacity);
+			gaps = Arrays.copyOf(gaps, capacity);
+			stalls = Arrays.copyOf(stalls, capacity);
+			maxGaps = Arrays.copyOf(maxGaps, capacity);
+		}
+	}
+	
+	/**
+	 * @return The index of a flow, created if needed.
+	 */
+	private int flow(long hash, int srcIP, int dstIP, int flowPorts) {
+		int s = flows.find(hash);
+		if (s >= 0)
+			return flows.valueAt(s);
+		if (nbFlows == hashes.length)
+			allocate(2 * nbFlows);
+		int i = nbFlows++;
+		flows.put(hash, i);
+		hashes[i] = hash;
+		srcIPs[i] = srcIP;
+		dstIPs[i] = dstIP;
+		ports[i] = flowPorts;
+		lastTimes[i] = -1;
+		averages[i] = 0;
+		samples[i] = 0;
+		stalled[i] = false;
+		gaps[i] = stalls[i] = 0;
+		maxGaps[i] = 0;
+		return i;
+	}
+	
+	/**
+	 * @return The gap above which arrivals of a flow are late (us), or -1 if it is still learning.
+	 */
+	private long threshold(int i) {
+		if (samples[i] < warmup)
+			return -1;
+		return Math.max((long)(factor * averages[i]), minGap);
+	}
+	
+	protected void arrival(int srcIP, int dstIP, int srcPort, int dstPort, int protocol, long us, int packetNum) {
+		int i = flow(Hash.hashFlow(srcIP, dstIP, srcPort, dstPort, protocol), srcIP, dstIP, srcPort << 16 | dstPort);
+		long last = lastTimes[i];
+		lastTimes[i] = us;
+		if (last < 0)
+			return;
+		long gap = us - last, threshold = threshold(i);
+		if (threshold >= 0 && gap > threshold) {
+			gaps[i]++;
+			maxGaps[i] = Math.max(maxGaps[i], gap);
+			if (stalled[i]) {
+				stalled[i] = false;
+				if (alerts)
+					print("#%d %s: resumed after %.3f ms", packetNum, flowString(i), gap / 1000.0);
+			} else {
+				if (alerts && isVerbose())
+					printVerbose("#%d %s: %.3f ms gap (expected every %.3f ms)", packetNum, flowString(i), gap / 1000.0, averages[i] / 1000.0);
+			}
+			gap = (long)(factor * averages[i]); // Lets the average follow rate changes, slowly
+		}
+		if (samples[i]++ == 0)
+			averages[i] = gap;
+		else
+			averages[i] += (gap - averages[i]) / 16;
+	}
+	
+	private String flowString(int i) {
+		return String.format("%s:%d > %s:%d", IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff);
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (!super.process(packet))
+			return false;
+		arrival(packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getSourcePort(), packet.getDestinationPort(), packet.getProtocol(),
+				packet.getPacketTimeMicros(), packet.getPacketNumber());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = super.processBatch(batch);
+		int[] sources = batch.getSourceIPs(), destinations = batch.getDestinationIPs();
+		int[] srcPorts = batch.getSourcePorts(), dstPorts = batch.getDestinationPorts();
+		int[] protocols = batch.getProtocols(), packetNumbers = batch.getPacketNumbers();
+		long[] us = batch.getTimesMicros();
+		for (int k = 0; k < n; k++)
+			arrival(sources[k], destinations[k], srcPorts[k], dstPorts[k], protocols[k], us[k], packetNumbers[k]);
+		return n;
+	}
+	
+	/**
+	 * Reports flows silent for longer than their gap threshold as stalled.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		long us = 1000l * timeMillis;
+		for (int i = 0; i < nbFlows; i++) {
+			if (stalled[i])
+				continue;
+			long threshold = threshold(i);
+			if (threshold >= 0 && us - lastTimes[i] > threshold) {
+				stalled[i] = true;
+				stalls[i]++;
+				if (alerts)
+					print("%s: stalled, no packets for %.3f ms (expected every %.3f ms)", flowString(i), (us - lastTimes[i]) / 1000.0, averages[i] / 1000.0);
+			}
+		}
+	}
+	
+	/**
+	 * Counters are reset, flows and their inter-arrival times are kept.
+	 */
+	@Override
+	public void reset() {
+		super.reset();
+		Arrays.fill(gaps, 0, nbFlows, 0);
+		Arrays.fill(stalls, 0, nbFlows, 0);
+		Arrays.fill(maxGaps, 0, nbFlows, 0);
+	}
+	
+	@Override
+	public void watch() {
+		print(String.format("(watch %d) - %s", ++nWatch, generateStats()));
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		Gap o = (Gap)other;
+		for (int j = 0; j < o.nbFlows; j++) {
+			int i = flow(o.hashes[j], o.srcIPs[j], o.dstIPs[j], o.ports[j]);
+			lastTimes[i] = o.lastTimes[j];
+			averages[i] = o.averages[j];
+			samples[i] = o.samples[j];
+			stalled[i] = o.stalled[j];
+			gaps[i] += o.gaps[j];
+			stalls[i] += o.stalls[j];
+			maxGaps[i] = Math.max(maxGaps[i], o.maxGaps[j]);
+		}
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		writeCounters(sink);
+		long maxGap = 0;
+		for (int i = 0; i < nbFlows; i++)
+			maxGap = Math.max(maxGap, maxGaps[i]);
+		sink.metric("gap_max", maxGap / 1000.0);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	private void writeCounters(MetricsSink sink) {
+		long nbGaps = 0, nbStalls = 0;
+		int nbStalled = 0;
+		for (int i = 0; i < nbFlows; i++) {
+			nbGaps += gaps[i];
+			nbStalls += stalls[i];
+			if (stalled[i])
+				nbStalled++;
+		}
+		sink.metric("flows", nbFlows);
+		sink.metric("gaps", nbGaps);
+		sink.metric("stalls", nbStalls);
+		sink.metric("stalled", nbStalled);
+	}
+	
+	/**
+	 * Overall statistics, followed by the flows with the most gaps and stalls.
+	 */
+	@Override
+	public String generateStats() {
+		if (nbFlows == 0)
+			return super.generateStats();
+		long nbGaps = 0, nbStalls = 0, maxGap = 0;
+		int nbStalled = 0, nbIssues = 0;
+		if (sortBuffer == null || sortBuffer.length < nbFlows)
+			sortBuffer = new long[hashes.length];
+		for (int i = 0; i < nbFlows; i++) {
+			nbGaps += gaps[i];
+			nbStalls += stalls[i];
+			maxGap = Math.max(maxGap, maxGaps[i]);
+			if (stalled[i])
+				nbStalled++;
+			if (gaps[i] + stalls[i] > 0 || stalled[i]) // (events << 32 | index) keys sort as events
+				sortBuffer[nbIssues++] = (long)(gaps[i] + stalls[i]) << 32 | i;
+		}
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		Formatter f = new Formatter(sb);
+		f.format(", %d flows: %d gaps (max %.3f ms), %d stalls, %d stalled", nbFlows, nbGaps, maxGap / 1000.0, nbStalls, nbStalled);
+		if (nbIssues == 0)
+			return sb.toString();
+		
+		Arrays.sort(sortBuffer, 0, nbIssues);
+		int nbTop = Math.min(nbIssues, PCAPAnalyzer.TOP_K);
+		f.format(", %d flows with events (top %d):", nbIssues, nbTop);
+		for (int k = nbIssues - 1; k >= nbIssues - nbTop; k--) {
+			int i = (int)sortBuffer[k];
+			f.format("\n--%15s:%-5d > %15s:%-5d: every %8.3f ms, %4d gaps (max %8.3f ms), %3d stalls%s",
+					IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff,
+					averages[i] / 1000.0, gaps[i], maxGaps[i] / 1000.0, stalls[i], stalled[i] ? ", stalled" : "");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,317 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.LogHistogram;
+
+/**
+ * Analysis of MPEG-TS streams over UDP (usually 7 cells of 188 bytes per datagram), optionally
+ * encapsulated in RTP.<br/>
+ * Cells are walked in place in the datagram data, and every PID has its own continuity counter,
+ * PCR and bitrate in tables indexed by PID (8192 entries), so a datagram is processed in a single
+ * pass without allocation. PCR jitter histograms are only allocated for PIDs carrying PCRs. The selector should select a single TS stream, as PIDs of different
+ * streams would be mixed.
+ *
+ * @author Matthieu Labas
+ */
+public class MPEGTS extends Stat {
+	
+	public final static String DESCRIPTION = "Analysis of MPEG-TS streams (continuity counters, PCR)";
+	
+	public static final int CELL_SIZE = 188;
+	
+	public static final int SYNC_BYTE = 0x47;
+	
+	public static final int NB_PIDS = 8192;
+	
+	/** Null packets PID, whose continuity counter is not significant. */
+	public static final int NULL_PID = 0x1fff;
+	
+	/** Size of an RTP header without CSRC nor extension. */
+	private static final int RTP_HEADER_SIZE = 12;
+	
+	/** PCR period (27 MHz ticks), as PCRs wrap around after 2^33 * 300 ticks. */
+	private static final long PCR_PERIOD = (1l << 33) * 300;
+	
+	/** Largest PCR interval (27 MHz ticks) used to measure jitter (1 s, PCRs should be < 100 ms apart). */
+	private static final long PCR_MAX_INTERVAL = 27000000l;
+	
+	/*
+	 * Per-PID tables.
+	 */
+	/** Last continuity counter, or -1. */
+	protected byte[] lastCC;
+	/** Number of cells. */
+	protected long[] cells;
+	/** Number of continuity counter errors. */
+	protected int[] ccErrors;
+	/** Number of cells lost according to continuity counters. */
+	protected long[] cellsLost;
+	/** Number of duplicated cells (same continuity counter twice). */
+	protected int[] duplicates;
+	/** Timestamp of the first cell (us). */
+	protected long[] usFirst;
+	/** Timestamp of the last cell (us). */
+	protected long[] usLastCell;
+	/** Last PCR (27 MHz), or -1. */
+	protected long[] lastPCR;
+	/** Arrival time of the last PCR (us). */
+	protected long[] lastPCRArrival;
+	/** Histogram of differences between PCR intervals and arrival intervals (us), or {@code null}. */
+	protected LogHistogram[] pcrJitter;
+	
+	/** Number of cells without sync byte (and of datagram tails that are not whole cells). */
+	protected long syncErrors;
+	
+	/** Number of cells with the Transport Error Indicator set. */
+	protected long transportErrors;
+	
+	public MPEGTS() {
+		super();
+		lastCC = new byte[NB_PIDS];
+		cells = new long[NB_PIDS];
+		ccErrors = new int[NB_PIDS];
+		cellsLost = new long[NB_PIDS];
+		duplicates = new int[NB_PIDS];
+		usFirst = new long[NB_PIDS];
+		usLastCell = new long[NB_PIDS];
+		lastPCR = new long[NB_PIDS];
+		lastPCRArrival = new long[NB_PIDS];
+		pcrJitter = new LogHistogram[NB_PIDS];
+		resetPIDs();
+	}
+	
+	private void resetPIDs() {
+		Arrays.fill(lastCC, (byte)-1);
+		Arrays.fill(cells, 0);
+		Arrays.fill(ccErrors, 0);
+		Arrays.fill(cellsLost, 0);
+		Arrays.fill(duplicates, 0);
+		Arrays.fill(lastPCR, -1);
+		for (LogHistogram h : pcrJitter)
+			if (h != null)
+				h.clear();
+		syncErrors = transportErrors = 0;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		resetPIDs();
+	}
+	
+	@Override
+	public void watch() {
+		print(String.format("(watch %d) - %s", ++nWatch, generateStats()));
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (!super.process(packet))
+			return false;
+		
+		byte[] data = packet.getAvailableData();
+		processCells(data, 0, data.length, packet.getPacketTimeMicros(), packet.getPacketNumber());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = super.processBatch(batch);
+		byte[] data = batch.getData();
+		int[] offsets = batch.getDataOffsets(), lengths = batch.getDataLengths();
+		long[] us = batch.getTimesMicros();
+		int[] packetNumbers = batch.getPacketNumbers();
+		for (int i = 0; i < n; i++)
+			processCells(data, offsets[i], lengths[i], us[i], packetNumbers[i]);
+		return n;
+	}
+	
+	/**
+	 * Processes all cells of a datagram.
+	 * @param data The buffer holding the datagram.
+	 * @param off Offset of the datagram in {@code data}.
+	 * @param len Length of the datagram.
+	 * @param us The datagram timestamp (us).
+	 * @param packetNum The packet number, for verbose messages.
+	 */
+	protected void processCells(byte[] data, int off, int len, long us, int packetNum) {
+		if (len >= RTP_HEADER_SIZE + CELL_SIZE && (data[off] & 0xff) != SYNC_BYTE && (data[off+RTP_HEADER_SIZE] & 0xff) == SYNC_BYTE) { // TS over RTP
+			off += RTP_HEADER_SIZE;
+			len -= RTP_HEADER_SIZE;
+		}
+		int end = off + len;
+		for (int o = off; o < end; o += CELL_SIZE) {
+			if (o + CELL_SIZE > end || (data[o] & 0xff) != SYNC_BYTE) {
+				syncErrors++;
+				continue;
+			}
+			int b1 = data[o+1] & 0xff;
+			int pid = (b1 & 0x1f) << 8 | (data[o+2] & 0xff);
+			int b3 = data[o+3] & 0xff;
+			int afc = (b3 >> 4) & 0x3; // Adaptation field control
+			int cc = b3 & 0xf;
+			if ((b1 & 0x80) != 0)
+				transportErrors++;
+			
+			if (cells[pid] == 0)
+				usFirst[pid] = us;
+			cells[pid]++;
+			usLastCell[pid] = us;
+			
+			// Adaptation field: discontinuity indicator and PCR
+			boolean discontinuity = false;
+			if ((afc & 0x2) != 0 && (data[o+4] & 0xff) > 0) {
+				int flags = data[o+5] & 0xff;
+				discontinuity = (flags & 0x80) != 0;
+				if ((flags & 0x10) != 0 && (data[o+4] & 0xff) >= 7)
+					processPCR(pid, data, o + 6, us, discontinuity);
+			}
+			
+			// Continuity counter is only incremented by cells with payload
+			if (pid == NULL_PID || (afc & 0x1) == 0)
+				continue;
+			int last = lastCC[pid];
+			lastCC[pid] = (byte)cc;
+			if (last < 0 || discontinuity || cc == ((last + 1) & 0xf))
+				continue;
+			if (cc == last) { // A cell can be sent twice
+				duplicates[pid]++;
+				continue;
+			}
+			int nLost = (cc - last - 1) & 0xf;
+			ccErrors[pid]++;
+			cellsLost[pid] += nLost;
+			recordLoss(us, nLost);
+			if (isVerbose())
+				printVerbose("#%d PID 0x%04x: CC error, %d cells lost (%d > %d)", packetNum, pid, nLost, last, cc);
+		}
+	}
+	
+	/**
+	 * Measures the jitter between a PCR and its arrival time.
+	 */
+	private void processPCR(int pid, byte[] data, int o, long us, boolean discontinuity) {
+		long base = (data[o] & 0xffl) << 25 | (data[o+1] & 0xffl) << 17 | (data[o+2] & 0xffl) << 9 | (data[o+3] & 0xffl) << 1 | (data[o+4] & 0xffl) >> 7;
+		long ext = (data[o+4] & 0x1l) << 8 | (data[o+5] & 0xffl);
+		long pcr = base * 300 + ext;
+		if (lastPCR[pid] >= 0 && !discontinuity) {
+			long interval = (pcr - lastPCR[pid] + PCR_PERIOD) % PCR_PERIOD;
+			if (interval < PCR_MAX_INTERVAL) {
+				jitterHistogram(pid).record(Math.abs((us - lastPCRArrival[pid]) - interval / 27));
+			}
+		}
+		lastPCR[pid] = pcr;
+		lastPCRArrival[pid] = us;
+	}
+	
+	/**
+	 * @return The PCR jitter histogram of a PID, created if needed.
+	 */
+	private LogHistogram jitterHistogram(int pid) {
+		if (pcrJitter[pid] == null)
+			pcrJitter[pid] = new LogHistogram(20, 4); // Up to 1 s (PCR_MAX_INTERVAL)
+		return pcrJitter[pid];
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		MPEGTS o = (MPEGTS)other;
+		for (int pid = 0; pid < NB_PIDS; pid++) {
+			if (o.cells[pid] == 0)
+				continue;
+			if (cells[pid] == 0) {
+				usFirst[pid] = o.usFirst[pid];
+				usLastCell[pid] = o.usLastCell[pid];
+				lastCC[pid] = o.lastCC[pid];
+			} else {
+				usFirst[pid] = Math.min(usFirst[pid], o.usFirst[pid]);
+				usLastCell[pid] = Math.max(usLastCell[pid], o.usLastCell[pid]);
+			}
+			cells[pid] += o.cells[pid];
+			ccErrors[pid] += o.ccErrors[pid];
+			cellsLost[pid] += o.cellsLost[pid];
+			duplicates[pid] += o.duplicates[pid];
+			if (o.pcrJitter[pid] != null && o.pcrJitter[pid].getCount() > 0)
+				jitterHistogram(pid).add(o.pcrJitter[pid]);
+		}
+		syncErrors += o.syncErrors;
+		transportErrors += o.transportErrors;
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		int nbPIDs = 0;
+		for (int pid = 0; pid < NB_PIDS; pid++) {
+			if (cells[pid] != 0)
+				nbPIDs++;
+		}
+		sink.metric("pids", nbPIDs);
+		writeCounters(sink);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	private void writeCounters(MetricsSink sink) {
+		int errors = 0, dup = 0;
+		long lost = 0;
+		for (int pid = 0; pid < NB_PIDS; pid++) {
+			if (cells[pid] == 0)
+				continue;
+			errors += ccErrors[pid];
+			lost += cellsLost[pid];
+			dup += duplicates[pid];
+		}
+		sink.metric("cc_errors", errors);
+		sink.metric("lost", lost);
+		sink.metric("duplicated", dup);
+		sink.metric("sync_errors", syncErrors);
+		sink.metric("transport_errors", transportErrors);
+	}
+	
+	@Override
+	public String generateStats() {
+		if (nbPackets == 0)
+			return super.generateStats();
+		int nbPIDs = 0, errors = 0;
+		long lost = 0;
+		for (int pid = 0; pid < NB_PIDS; pid++) {
+			if (cells[pid] == 0)
+				continue;
+			nbPIDs++;
+			errors += ccErrors[pid];
+			lost += cellsLost[pid];
+		}
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		Formatter f = new Formatter(sb);
+		f.format(", %d PIDs: %d CC errors (%d cells lost), %d sync errors, %d transport errors", nbPIDs, errors, lost, syncErrors, transportErrors);
+		for (int pid = 0; pid < NB_PIDS; pid++) {
+			if (cells[pid] == 0)
+				continue;
+			f.format("\n--PID 0x%04x: %8d cells, %4d CC errors (%4d cells lost), %3d duplicated, ", pid, cells[pid],
+					ccErrors[pid], cellsLost[pid], duplicates[pid]);
+			long us = usLastCell[pid] - usFirst[pid];
+			if (us > 0) // No bitrate for a single datagram
+				f.format("%9.3f kbit/s", cells[pid] * CELL_SIZE * 8 * 1000.0 / us);
+			else
+				f.format("%9s kbit/s", "-");
+			LogHistogram h = pcrJitter[pid];
+			if (h != null && h.getCount() > 0)
+				f.format(", PCR jitter p50 %.3f p99 %.3f max %.3f ms", h.getValueAtPercentile(50) / 1000.0,
+						h.getValueAtPercentile(99) / 1000.0, h.getMax() / 1000.0);
+		}
+		return sb.toString();
+	}
+
+}
@@ -1,14 +1,16 @@
 package pcap.filters.impl;
 
 import pcap.Packet;
+import pcap.PacketBatch;
 import pcap.filters.AbstractMessageFilter;
+import pcap.filters.BatchFilter;
 
 /**
  * Print every packet received.
  * 
  * @author Matthieu Labas
  */
-public class PrintAll extends AbstractMessageFilter {
+public class PrintAll extends AbstractMessageFilter implements BatchFilter {
 
 	public final static String DESCRIPTION = "Prints every packet received";
 	
@@ -23,6 +25,13 @@ public class PrintAll extends AbstractMessageFilter {
 		return true;
 	}
 
+	@Override
+	public int processBatch(PacketBatch batch) {
+		for (int i = 0; i < batch.size(); i++)
+			print(batch.getPacket(i).toString());
+		return batch.size();
+	}
+
 	@Override
 	public void watch() {
 	}
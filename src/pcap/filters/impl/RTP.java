@@ -1,14 +1,122 @@
 package pcap.filters.impl;
 
-import pcap.Packet;
-import pcap.filters.CounterFilter16;
+import java.util.Arrays;
 
-public class RTP extends CounterFilter16 {
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.SequenceTable;
 
+/**
+ * Analysis of RTP streams. Several streams can share the same selector (e.g. media gateways
+ * multiplexing thousands of calls on a port range): packets are demultiplexed per source IP and
+ * SSRC, and each stream has its own sequence (losses, reordering, duplicates) and interarrival
+ * jitter (RFC 3550 6.4.1).<br/>
+ * Statistics of all packets (excluding duplicates) are displayed first, then one line per stream.
+ *
+ * @author Matthieu Labas
+ */
+public class RTP extends Stat {
+	
 	public final static String DESCRIPTION = "Analysis of RTP streams";
 	
+	/** Largest sequence number jump considered as a loss (RFC 3550 A.1). */
+	public static final int MAX_DROPOUT = 3000;
+	
+	/** RTP clock rate of static payload types (RFC 3551), or 0 for dynamic/unassigned ones. */
+	private static final int[] CLOCK_RATES = new int[128];
+	static {
+		Arrays.fill(CLOCK_RATES, 0, 10, 8000);
+		CLOCK_RATES[1] = CLOCK_RATES[2] = 0; // Reserved
+		CLOCK_RATES[6] = 16000;
+		CLOCK_RATES[10] = CLOCK_RATES[11] = 44100;
+		CLOCK_RATES[12] = CLOCK_RATES[13] = CLOCK_RATES[15] = CLOCK_RATES[18] = 8000;
+		CLOCK_RATES[16] = 11025;
+		CLOCK_RATES[17] = 22050;
+		CLOCK_RATES[14] = CLOCK_RATES[25] = CLOCK_RATES[26] = CLOCK_RATES[28] = 90000;
+		for (int pt = 31; pt <= 34; pt++)
+			CLOCK_RATES[pt] = 90000;
+	}
+	
+	/** Sequence numbers of streams, keyed by source IP and SSRC. */
+	protected SequenceTable streams;
+	
+	/*
+	 * Per-stream data, indexed as in 'streams'.
+	 */
+	/** Payload type of the first packet. */
+	protected int[] payloadTypes;
+	/** RTP clock rate (Hz). */
+	protected int[] clockRates;
+	/** Total number of bytes received. */
+	protected long[] bytes;
+	/** Timestamp of the first packet (us). */
+	protected long[] usFirst;
+	/** Timestamp of the last packet (us). */
+	protected long[] usStreamLast;
+	/** Arrival time of the last packet, in RTP clock units since the first packet. */
+	protected long[] lastArrival;
+	/** RTP timestamp of the last packet. */
+	protected int[] lastTimestamp;
+	/** Interarrival jitter, in RTP clock units scaled by 16 (RFC 3550 A.8). */
+	protected long[] jitter;
+	
+	/** Number of streams initialized in per-stream arrays. */
+	protected int nbStreams;
+	
 	public RTP() {
-		super(2);
+		super();
+		streams = new SequenceTable(16, PCAPAnalyzer.DEFAULT_REORDUPL_WINDOW, MAX_DROPOUT);
+		allocate(16);
+		nbStreams = 0;
+	}
+	
+	private void allocate(int capacity) {
+		if (payloadTypes == null) {
+			payloadTypes = new int[capacity];
+			clockRates = new int[capacity];
+			bytes = new long[capacity];
+			usFirst = new long[capacity];
+			usStreamLast = new long[capacity];
+			lastArrival = new long[capacity];
+			lastTimestamp = new int[capacity];
+			jitter = new long[capacity];
+		} else {
+			payloadTypes = Arrays.copyOf(payloadTypes, capacity);
+			clockRates = Arrays.copyOf(clockRates, capacity);
+			bytes = Arrays.copyOf(bytes, capacity);
+			usFirst = Arrays.copyOf(usFirst, capacity);
+			usStreamLast = Arrays.copyOf(usStreamLast, capacity);
+			lastArrival = Arrays.copyOf(lastArrival, capacity);
+			lastTimestamp = Arrays.copyOf(lastTimestamp, capacity);
+			jitter = Arrays.copyOf(jitter, capacity);
+		}
+	}
+	
+	/**
+	 * Initializes the data of a new stream.
+	 */
+	private void newStream(int i, int payloadType, long us) {
+		if (i >= payloadTypes.length)
+			allocate(Math.max(2 * payloadTypes.length, i + 1));
+		payloadTypes[i] = payloadType;
+		clockRates[i] = (CLOCK_RATES[payloadType] > 0 ? CLOCK_RATES[payloadType] : PCAPAnalyzer.RTP_CLOCK);
+		bytes[i] = 0;
+		usFirst[i] = usStreamLast[i] = us;
+		lastArrival[i] = 0;
+		lastTimestamp[i] = 0;
+		jitter[i] = 0;
+		nbStreams = i + 1;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		streams.clear();
+		nbStreams = 0;
 	}
 	
 	@Override
@@ -16,11 +124,174 @@ public class RTP extends CounterFilter16 {
 		print(String.format("(watch %d) - %s", ++nWatch, generateStats()));
 	}
 	
+	private static int readInt(byte[] data, int pos) {
+		return (data[pos] & 0xff) << 24 | (data[pos+1] & 0xff) << 16 | (data[pos+2] & 0xff) << 8 | (data[pos+3] & 0xff);
+	}
+	
 	@Override
 	public boolean process(Packet packet) {
 		if (packet.getSourcePort() % 2 != 0) // RTP is always on even ports
 			return false;
+		byte[] data = packet.getAvailableData();
+		if (data.length < 12 || (data[0] & 0xc0) != 0x80) // Not RTP version 2
+			return false;
+		
+		int ssrc = readInt(data, 8);
+		long us = packet.getPacketTimeMicros();
+		int i = streams.index((long)packet.getSourceIPInt() << 32 | (ssrc & 0xffffffffl));
+		if (i >= nbStreams)
+			newStream(i, data[1] & 0x7f, us);
+		
+		int seq = (data[2] & 0xff) << 8 | (data[3] & 0xff);
+		int status = streams.update(i, seq);
+		switch (status) {
+		case SequenceTable.SEQ_DUPLICATE: // Duplicated packet is discarded
+			printVerbose("#%d SSRC %08x: duplicate (seq %d)", packet.getPacketNumber(), ssrc & 0xffffffffl, seq);
+			return true;
+		case SequenceTable.SEQ_BAD:
+			printVerbose("#%d SSRC %08x: bad sequence number %d (last %d)", packet.getPacketNumber(), ssrc & 0xffffffffl, seq, streams.getMaxSeq(i));
+			return true;
+		case SequenceTable.SEQ_GAP:
+			recordLoss(us, streams.getLastGap());
+			if (isVerbose())
+				printVerbose("#%d SSRC %08x: %d packets lost (jump %d > %d)", packet.getPacketNumber(), ssrc & 0xffffffffl,
+						streams.getLastGap(), (seq - streams.getLastGap() - 1) & 0xffff, seq);
+			break;
+		case SequenceTable.SEQ_REORDERED: // Fills a loss
+			recordLoss(us, -1);
+			printVerbose("#%d SSRC %08x: reordered by %d positions", packet.getPacketNumber(), ssrc & 0xffffffffl, streams.getLastGap());
+			break;
+		case SequenceTable.SEQ_RESTART:
+			printVerbose("#%d SSRC %08x: sequence restarted at %d", packet.getPacketNumber(), ssrc & 0xffffffffl, seq);
+			break;
+		}
+		
+		update(us, packet.getTotalDataLength(), packet.isFragmented());
+		bytes[i] += packet.getTotalDataLength();
+		if (us > usStreamLast[i])
+			usStreamLast[i] = us;
 		
-		return super.process(packet);
+		// Interarrival jitter: J += (|D| - J) / 16, D being the difference of transit times
+		int timestamp = readInt(data, 4);
+		long arrival = (us - usFirst[i]) * clockRates[i] / 1000000l;
+		if (status != SequenceTable.SEQ_FIRST && status != SequenceTable.SEQ_RESTART) {
+			long d = (arrival - lastArrival[i]) - (timestamp - lastTimestamp[i]);
+			if (d < 0)
+				d = -d;
+			jitter[i] += d - ((jitter[i] + 8) >> 4);
+		}
+		lastArrival[i] = arrival;
+		lastTimestamp[i] = timestamp;
+		
+		return true;
+	}
+	
+	/**
+	 * Packets are demultiplexed one by one.
+	 */
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int nOK = 0;
+		for (int i = 0; i < batch.size(); i++)
+			if (process(batch.getPacket(i)))
+				nOK++;
+		return nOK;
 	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		RTP o = (RTP)other;
+		for (int j = 0; j < o.nbStreams; j++) {
+			boolean known = (streams.find(o.streams.getKey(j)) >= 0);
+			int i = streams.combine(o.streams, j);
+			if (!known) {
+				newStream(i, o.payloadTypes[j], o.usFirst[j]);
+				usStreamLast[i] = o.usStreamLast[j];
+				lastArrival[i] = o.lastArrival[j];
+				lastTimestamp[i] = o.lastTimestamp[j];
+				jitter[i] = o.jitter[j];
+			} else {
+				usFirst[i] = Math.min(usFirst[i], o.usFirst[j]);
+				usStreamLast[i] = Math.max(usStreamLast[i], o.usStreamLast[j]);
+				jitter[i] = Math.max(jitter[i], o.jitter[j]);
+			}
+			bytes[i] += o.bytes[j];
+		}
+	}
+	
+	/**
+	 * @param i The stream index.
+	 * @return The interarrival jitter of a stream (ms).
+	 */
+	public double getJitter(int i) {
+		return jitter[i] / 16.0 * 1000.0 / clockRates[i];
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		writeCounters(sink);
+		double jitterMax = 0;
+		for (int i = 0; i < nbStreams; i++)
+			jitterMax = Math.max(jitterMax, getJitter(i));
+		sink.metric("jitter_max", jitterMax);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	private void writeCounters(MetricsSink sink) {
+		long expected = 0, lost = 0, duplicated = 0, unordered = 0;
+		for (int i = 0; i < nbStreams; i++) {
+			expected += streams.getExpected(i);
+			lost += streams.getLost(i);
+			duplicated += streams.getDuplicates(i);
+			unordered += streams.getReordered(i);
+		}
+		sink.metric("streams", nbStreams);
+		sink.metric("expected", expected);
+		sink.metric("lost", lost);
+		sink.metric("duplicated", duplicated);
+		sink.metric("reordered", unordered);
+	}
+	
+	@Override
+	public String generateStats() {
+		if (nbPackets == 0)
+			return super.generateStats();
+		long expected = 0, received = 0, lost = 0, duplicated = 0, unordered = 0;
+		int unorderedMax = 0;
+		double jitterMax = 0;
+		for (int i = 0; i < nbStreams; i++) {
+			expected += streams.getExpected(i);
+			received += streams.getReceived(i);
+			lost += streams.getLost(i);
+			duplicated += streams.getDuplicates(i);
+			unordered += streams.getReordered(i);
+			unorderedMax = Math.max(unorderedMax, streams.getMaxReorder(i));
+			jitterMax = Math.max(jitterMax, getJitter(i));
+		}
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		sb.append(String.format(", %d streams: %d duplicated (%6.3f%%%%), %d unordered (%6.3f%%%%, %d max positions), %d lost (%6.3f%%%%), jitter max %.3f ms",
+				nbStreams, duplicated, 100.0*duplicated/received, unordered, 100.0*unordered/received, unorderedMax,
+				lost, (expected == 0 ? 0.0 : 100.0*lost/expected), jitterMax));
+		for (int i = 0; i < nbStreams; i++) {
+			long key = streams.getKey(i);
+			double duration = (usStreamLast[i] - usFirst[i]) / 1000000.0;
+			long nbExpected = Math.max(1, streams.getExpected(i));
+			sb.append(String.format("\n--SSRC %08x from %15s (PT %3d): %6d packets, %3d duplicated, %3d unordered (%2d max positions), %4d lost (%6.3f%%%%, %2d max gap), %8.3f packets/s, %6.3f kB/s, jitter %.3f ms",
+					(int)key, IPv4Frame.toString((int)(key >>> 32)), payloadTypes[i], streams.getReceived(i),
+					streams.getDuplicates(i), streams.getReordered(i), streams.getMaxReorder(i),
+					streams.getLost(i), 100.0*streams.getLost(i)/nbExpected, streams.getMaxGap(i),
+					streams.getReceived(i)/duration, bytes[i]/(1024.0*duration), getJitter(i)));
+			if (streams.getBad(i) > 0 || streams.getRestarts(i) > 0)
+				sb.append(String.format(", %d bad sequence numbers, %d restarts", streams.getBad(i), streams.getRestarts(i)));
+		}
+		return sb.toString();
+	}
+
 }
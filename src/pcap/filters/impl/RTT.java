@@ -0,0 +1,317 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.NetworkFrame;
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.NetworkFrame.TCPFrame;
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.Hash;
+import pcap.util.LogHistogram;
+import pcap.util.LongIntHashMap;
+import pcap.util.PendingTable;
+
+/**
+ * Round-trip times of TCP connections, as seen from the capture point: SYN are matched with their
+ * SYN/ACK and segments carrying data with the ACK of their last byte. RTT are given overall and
+ * for each responding host (the server for handshakes), in addition to the overall statistics of
+ * {@link Stat}.<br/>
+ * Segments waiting for their ACK are kept in a {@link PendingTable} of
+ * {@link PCAPAnalyzer#RTT_PENDING} entries expiring after {@link PCAPAnalyzer#RTT_TIMEOUT} ms, so
+ * memory is capped even under SYN floods. Retransmitted segments are not measured (Karn's rule) as
+ * their ACK cannot be matched to a transmission. SYN/ACK are not measured either: their ACK would
+ * give the RTT of the client side, and samples are only attributed to the host responding to a SYN
+ * or to data. Histograms are kept for at most
+ * {@link PCAPAnalyzer#RTT_SERVERS} hosts per watch, other hosts being only accounted overall.
+ *
+ * @author Matthieu Labas
+ */
+public class RTT extends Stat {
+	
+	public final static String DESCRIPTION = "TCP round-trip times from SYN/SYN-ACK and data/ACK";
+	
+	/** RTT histograms record up to 67 s (us). */
+	private static final int RTT_BITS = 26;
+	
+	/** Value attached to pending SYN (without ACK). */
+	private static final int PENDING_SYN = 1;
+	
+	/** Segments waiting for their ACK. */
+	private final PendingTable pending;
+	
+	/** RTT of handshakes (us). */
+	protected LogHistogram handshakeRTT;
+	
+	/** RTT of data segments (us). */
+	protected LogHistogram dataRTT;
+	
+	/** Responding host (as an unsigned integer) to index. */
+	private final LongIntHashMap servers;
+	
+	/** Address of the responding host of each index. */
+	protected int[] serverAddresses;
+	
+	/** RTT of the responding host of each index (us). Histograms are reused between watches. */
+	protected LogHistogram[] serverRTT;
+	
+	protected int nbServers;
+	
+	/** Maximum number of responding hosts. */
+	private final int maxServers;
+	
+	/** Number of samples of hosts beyond {@link #maxServers}. */
+	protected long untracked;
+	
+	/** Number of ACK of retransmitted segments, not measured. */
+	protected long ambiguous;
+	
+	/** Number of pending segment evictions at the last reset. */
+	private long evictions0;
+	
+	/** Number of pending segment evictions in shards combined since the last reset. */
+	private long evictionsCombined;
+	
+	/** Buffer used to sort hosts by number of samples when generating statistics. */
+	private long[] sortBuffer;
+	
+	public RTT() {
+		super();
+		pending = new PendingTable(PCAPAnalyzer.RTT_PENDING, PCAPAnalyzer.RTT_TIMEOUT * 1000l);
+		handshakeRTT = new LogHistogram(RTT_BITS, 4);
+		dataRTT = new LogHistogram(RTT_BITS, 4);
+		maxServers = PCAPAnalyzer.RTT_SERVERS;
+		servers = new LongIntHashMap(Math.min(maxServers, 1024));
+		serverAddresses = new int[16];
+		serverRTT = new LogHistogram[16];
+	}
+	
+	/**
+	 * @return The index of a responding host, created if needed, or -1 if there are already
+	 *     {@link #maxServers} hosts.
+	 */
+	private int server(int address) {
+		long key = address & 0xffffffffl;
+		int s = servers.find(key);
+		if (s >= 0)
+			return servers.valueAt(s);
+		if (nbServers == maxServers)
+			return -1;
+		if (nbServers == serverAddresses.length) {
+			serverAddresses = Arrays.copyOf(serverAddresses, 2 * nbServers);
+			serverRTT = Arrays.copyOf(serverRTT, 2 * nbServers);
+		}
+		int i = nbServers++;
+		servers.put(key, i);
+		serverAddresses[i] = address;
+		if (serverRTT[i] == null)
+			serverRTT[i] = new LogHistogram(RTT_BITS, 4);
+		else
+			serverRTT[i].clear();
+		return i;
+	}
+	
+	private static long key(long flowHash, int seq) {
+		return Hash.mix64(flowHash ^ (seq & 0xffffffffl));
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		TCPFrame tcp = packet.getTCPFrame();
+		if (tcp == null)
+			return false;
+		if (!super.process(packet))
+			return false;
+		
+		int flags = tcp.flags;
+		if ((flags & TCPFrame.FLAG_RST) != 0)
+			return true;
+		long us = packet.getPacketTimeMicros();
+		
+		// ACK of a pending segment of the other direction
+		if ((flags & TCPFrame.FLAG_ACK) != 0) {
+			long reverse = Hash.hashFlow(packet.getDestinationIPInt(), packet.getSourceIPInt(), tcp.dstPort, tcp.src_port, NetworkFrame.PROTOCOL_TCP);
+			int s = pending.find(key(reverse, tcp.acknum), us);
+			if (s >= 0) {
+				if (pending.isAmbiguous(s)) {
+					ambiguous++;
+				} else {
+					long rtt = us - pending.getTime(s);
+					(pending.getValue(s) == PENDING_SYN ? handshakeRTT : dataRTT).record(rtt);
+					int i = server(packet.getSourceIPInt());
+					if (i >= 0)
+						serverRTT[i].record(rtt);
+					else
+						untracked++;
+				}
+				pending.removeAt(s);
+			}
+		}
+		
+		// Segment to be ACKed: SYN and FIN take one sequence number
+		int len = packet.getTCPSegmentLength();
+		if ((flags & TCPFrame.FLAG_SYN) != 0) {
+			if ((flags & TCPFrame.FLAG_ACK) != 0) // SYN/ACK: the client ACK is not a server RTT
+				return true;
+			len++;
+		} else if ((flags & TCPFrame.FLAG_FIN) != 0) {
+			len++;
+		}
+		if (len > 0)
+			pending.put(key(packet.getFlowHash(), tcp.seqnum + len), us, (flags & TCPFrame.FLAG_SYN) != 0 ? PENDING_SYN : 0);
+		return true;
+	}
+	
+	/**
+	 * Segments are matched one by one.
+	 */
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int nOK = 0;
+		for (int i = 0; i < batch.size(); i++)
+			if (process(batch.getPacket(i)))
+				nOK++;
+		return nOK;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		handshakeRTT.clear();
+		dataRTT.clear();
+		servers.clear();
+		nbServers = 0;
+		untracked = ambiguous = 0;
+		evictions0 = pending.getEvictions();
+		evictionsCombined = 0;
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		RTT o = (RTT)other;
+		handshakeRTT.add(o.handshakeRTT);
+		dataRTT.add(o.dataRTT);
+		for (int j = 0; j < o.nbServers; j++) {
+			int i = server(o.serverAddresses[j]);
+			if (i >= 0)
+				serverRTT[i].add(o.serverRTT[j]);
+			else
+				untracked += o.serverRTT[j].getCount();
+		}
+		untracked += o.untracked;
+		ambiguous += o.ambiguous;
+		evictionsCombined += o.getEvictions();
+	}
+	
+	/**
+	 * @return The number of pending segments evicted since the last reset because the pending table
+	 *     was full.
+	 */
+	public long getEvictions() {
+		return pending.getEvictions() - evictions0 + evictionsCombined;
+	}
+	
+	private static void formatRTT(Formatter f, LogHistogram h) {
+		f.format("min %.3f p50 %.3f p90 %.3f p99 %.3f max %.3f", h.getMin() / 1000.0, h.getValueAtPercentile(50) / 1000.0,
+				h.getValueAtPercentile(90) / 1000.0, h.getValueAtPercentile(99) / 1000.0, h.getMax() / 1000.0);
+	}
+	
+	/**
+	 * Sorts hosts by increasing number of samples into {@link #sortBuffer}.
+	 */
+	private void sortServers() {
+		if (sortBuffer == null || sortBuffer.length < nbServers)
+			sortBuffer = new long[serverAddresses.length];
+		for (int i = 0; i < nbServers; i++) // (samples << 32 | index) keys sort as samples
+			sortBuffer[i] = serverRTT[i].getCount() << 32 | i;
+		Arrays.sort(sortBuffer, 0, nbServers);
+	}
+	
+	/**
+	 * Writes the number of handshake and data RTT samples, and of segments not measured.
+	 */
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		sink.metric("rtt_handshake_samples", handshakeRTT.getCount());
+		sink.metric("rtt_data_samples", dataRTT.getCount());
+		sink.metric("retransmitted", ambiguous);
+		sink.metric("evicted", getEvictions());
+		sink.metric("untracked", untracked);
+	}
+	
+	private static void writeRTT(MetricsSink sink, String prefix, LogHistogram h) {
+		sink.metric(prefix+"samples", h.getCount());
+		if (h.getCount() == 0)
+			return;
+		sink.metric(prefix+"min", h.getMin() / 1000.0);
+		sink.metric(prefix+"p50", h.getValueAtPercentile(50) / 1000.0);
+		sink.metric(prefix+"p90", h.getValueAtPercentile(90) / 1000.0);
+		sink.metric(prefix+"p99", h.getValueAtPercentile(99) / 1000.0);
+		sink.metric(prefix+"max", h.getMax() / 1000.0);
+	}
+	
+	/**
+	 * Writes handshake and data RTT percentiles (ms), then the number of samples and median RTT of
+	 * the hosts with the most samples, as items.
+	 */
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		writeRTT(sink, "rtt_handshake_", handshakeRTT);
+		writeRTT(sink, "rtt_data_", dataRTT);
+		sink.metric("retransmitted", ambiguous);
+		sink.metric("evicted", getEvictions());
+		sink.metric("untracked", untracked);
+		sink.metric("hosts", nbServers);
+		sortServers();
+		for (int k = nbServers - 1; k >= nbServers - Math.min(nbServers, PCAPAnalyzer.TOP_K); k--) {
+			int i = (int)sortBuffer[k];
+			String host = IPv4Frame.toString(serverAddresses[i]);
+			sink.metric("host_samples", host, serverRTT[i].getCount());
+			sink.metric("host_rtt_p50", host, serverRTT[i].getValueAtPercentile(50) / 1000.0);
+			sink.metric("host_rtt_p99", host, serverRTT[i].getValueAtPercentile(99) / 1000.0);
+		}
+	}
+	
+	/**
+	 * Overall statistics and RTT, followed by the RTT of the hosts with the most samples.
+	 */
+	@Override
+	public String generateStats() {
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		if (handshakeRTT.getCount() + dataRTT.getCount() == 0)
+			return sb.toString();
+		Formatter f = new Formatter(sb);
+		f.format(", RTT (ms): ");
+		if (handshakeRTT.getCount() > 0) {
+			f.format("%d handshakes ", handshakeRTT.getCount());
+			formatRTT(f, handshakeRTT);
+			f.format(", ");
+		}
+		if (dataRTT.getCount() > 0) {
+			f.format("%d data ", dataRTT.getCount());
+			formatRTT(f, dataRTT);
+			f.format(", ");
+		}
+		f.format("%d retransmitted not measured, %d evicted", ambiguous, getEvictions());
+		if (untracked > 0)
+			f.format(", %d samples of hosts beyond %d", untracked, maxServers);
+		
+		sortServers();
+		int nbTop = Math.min(nbServers, PCAPAnalyzer.TOP_K);
+		f.format(", top %d of %d hosts:", nbTop, nbServers);
+		for (int k = nbServers - 1; k >= nbServers - nbTop; k--) {
+			int i = (int)sortBuffer[k];
+			f.format("\n--%15s: %8d samples, ", IPv4Frame.toString(serverAddresses[i]), serverRTT[i].getCount());
+			formatRTT(f, serverRTT[i]);
+		}
+		return sb.toString();
+	}
+
+}
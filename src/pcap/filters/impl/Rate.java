@@ -0,0 +1,28 @@
+package pcap.filters.impl;
+
+import pcap.filters.TimedFilter;
+
+/**
+ * Statistics with rolling rates: packets and bytes are kept in time buckets (in packet time) to
+ * display average, lowest and highest rates over sliding windows, showing throughput dips that
+ * averages over a whole watch period hide.
+ * 
+ * @author Matthieu Labas
+ */
+public class Rate extends Stat implements TimedFilter {
+	
+	public final static String DESCRIPTION = "Rolling throughput over sliding windows";
+	
+	public Rate() {
+		super();
+		enableTimeSeries();
+	}
+	
+	/**
+	 * Moves rolling rates forward when no packets are received.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		series.advance(1000l * timeMillis);
+	}
+}
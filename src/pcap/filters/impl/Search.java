@@ -0,0 +1,246 @@
+package pcap.filters.impl;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.MessageFilter;
+import pcap.util.AhoCorasick;
+
+/**
+ * Counts packets whose data contains any of a set of byte patterns read from a file, e.g.
+ * {@code SEARCH(file=patterns.txt)}. The file holds one pattern per line: text, or bytes in
+ * hexadecimal when the line starts with {@code 0x} (e.g. {@code 0x4702}). Empty lines, lines
+ * starting with {@code #} and patterns already read are ignored.<br/>
+ * Patterns are compiled into an {@link AhoCorasick} automaton, so packet data is scanned once
+ * without allocation whatever the number of patterns. For every pattern, the number of
+ * occurrences, of packets containing it and the first/last of these packets are displayed.
+ *
+ * @author Matthieu Labas
+ */
+public class Search extends Stat implements ConfigurableFilter {
+	
+	public final static String DESCRIPTION = "Counts packets containing patterns: SEARCH(file=<patterns file>)";
+	
+	private String parameters;
+	
+	/** Patterns as displayed. */
+	protected String[] patterns;
+	
+	protected AhoCorasick automaton;
+	
+	/*
+	 * Per-pattern counters.
+	 */
+	/** Number of occurrences. */
+	protected long[] hits;
+	/** Number of packets containing the pattern. */
+	protected long[] packets;
+	/** Number of the first packet containing the pattern. */
+	protected int[] firstPacket;
+	/** Number of the last packet containing the pattern. */
+	protected int[] lastPacket;
+	
+	/** Number of packets containing at least one pattern. */
+	protected long nbMatched;
+	
+	/** Scan number of the last packet containing each pattern, to count packets once per pattern. */
+	private long[] lastScan;
+	
+	/** Number of scanned packets. */
+	private long nbScans;
+	
+	@Override
+	public void configure(String parameters) throws IllegalArgumentException {
+		String file = null;
+		for (String param : parameters.split(",")) {
+			String[] kv = param.trim().split("=", 2);
+			if (kv[0].equalsIgnoreCase("file") && kv.length == 2)
+				file = kv[1];
+			else if (kv[0].length() > 0)
+				throw new IllegalArgumentException(String.format("Unknown parameter '%s'", param));
+		}
+		if (file == null)
+			throw new IllegalArgumentException("Missing patterns file");
+		
+		List<String> display = new ArrayList<String>();
+		List<byte[]> bytes = new ArrayList<byte[]>();
+		Set<String> distinct = new HashSet<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				byte[] b = parsePattern(line);
+				if (!distinct.add(new String(b, "ISO-8859-1"))) // Duplicated patterns would never be counted
+					continue;
+				bytes.add(b);
+				display.add(line);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(String.format("Cannot read patterns file '%s': %s", file, e.getMessage()));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) { }
+			}
+		}
+		if (bytes.isEmpty())
+			throw new IllegalArgumentException(String.format("No patterns in '%s'", file));
+		
+		patterns = display.toArray(new String[display.size()]);
+		automaton = new AhoCorasick(bytes.toArray(new byte[bytes.size()][]));
+		hits = new long[patterns.length];
+		packets = new long[patterns.length];
+		firstPacket = new int[patterns.length];
+		lastPacket = new int[patterns.length];
+		lastScan = new long[patterns.length];
+		this.parameters = parameters;
+	}
+	
+	/**
+	 * @return The bytes of a pattern line: hexadecimal if it starts with {@code 0x}, text otherwise.
+	 */
+	private static byte[] parsePattern(String line) throws IllegalArgumentException {
+		if (!line.startsWith("0x")) {
+			byte[] b = new byte[line.length()];
+			for (int i = 0; i < b.length; i++)
+				b[i] = (byte)line.charAt(i);
+			return b;
+		}
+		String hex = line.substring(2);
+		if (hex.length() == 0 || hex.length() % 2 != 0)
+			throw new IllegalArgumentException(String.format("Invalid hexadecimal pattern '%s'", line));
+		byte[] b = new byte[hex.length() / 2];
+		try {
+			for (int i = 0; i < b.length; i++)
+				b[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i + 2), 16);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Invalid hexadecimal pattern '%s'", line));
+		}
+		return b;
+	}
+	
+	@Override
+	public String getParameters() {
+		return parameters;
+	}
+	
+	/**
+	 * Scans packet data for all patterns.
+	 */
+	protected void scan(byte[] data, int off, int len, int packetNum) {
+		long scan = ++nbScans;
+		boolean matched = false;
+		int state = AhoCorasick.START;
+		for (int i = off, end = off + len; i < end; i++) {
+			state = automaton.next(state, data[i]);
+			for (int k = automaton.getOutputStart(state), kEnd = automaton.getOutputEnd(state); k < kEnd; k++) {
+				int p = automaton.getOutput(k);
+				hits[p]++;
+				if (lastScan[p] != scan) { // First occurrence in the packet
+					lastScan[p] = scan;
+					if (packets[p]++ == 0)
+						firstPacket[p] = packetNum;
+					lastPacket[p] = packetNum;
+					matched = true;
+				}
+			}
+		}
+		if (matched)
+			nbMatched++;
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		if (automaton == null) // Not configured
+			return false;
+		if (!super.process(packet))
+			return false;
+		
+		byte[] data = packet.getAvailableData();
+		scan(data, 0, data.length, packet.getPacketNumber());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		if (automaton == null)
+			return 0;
+		int n = super.processBatch(batch);
+		byte[] data = batch.getData();
+		int[] offsets = batch.getDataOffsets(), lengths = batch.getDataLengths();
+		int[] packetNumbers = batch.getPacketNumbers();
+		for (int i = 0; i < n; i++)
+			scan(data, offsets[i], lengths[i], packetNumbers[i]);
+		return n;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		if (automaton == null)
+			return;
+		Arrays.fill(hits, 0);
+		Arrays.fill(packets, 0);
+		nbMatched = 0;
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		Search o = (Search)other;
+		for (int p = 0; p < patterns.length; p++) {
+			if (o.packets[p] == 0)
+				continue;
+			if (packets[p] == 0) {
+				firstPacket[p] = o.firstPacket[p];
+				lastPacket[p] = o.lastPacket[p];
+			} else {
+				firstPacket[p] = Math.min(firstPacket[p], o.firstPacket[p]);
+				lastPacket[p] = Math.max(lastPacket[p], o.lastPacket[p]);
+			}
+			hits[p] += o.hits[p];
+			packets[p] += o.packets[p];
+		}
+		nbMatched += o.nbMatched;
+	}
+	
+	/**
+	 * Overall statistics, followed by the patterns found.
+	 */
+	@Override
+	public String generateStats() {
+		if (automaton == null || nbPackets == 0)
+			return super.generateStats();
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		Formatter f = new Formatter(sb);
+		int nbFound = 0;
+		for (int p = 0; p < patterns.length; p++)
+			if (packets[p] > 0)
+				nbFound++;
+		f.format(", %d packets matched (%6.3f%%%%), %d of %d patterns found", nbMatched, 100.0 * nbMatched / nbPackets, nbFound, patterns.length);
+		for (int p = 0; p < patterns.length; p++) {
+			if (packets[p] == 0)
+				continue;
+			sb.append("\n--");
+			f.format("%-20s: %8d hits in %8d packets (%6.3f%%%%), first #%d, last #%d", patterns[p].replace("%", "%%"), hits[p], packets[p],
+					100.0 * packets[p] / nbPackets, firstPacket[p], lastPacket[p]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,354 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.ConfigurableFilter;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.Hash;
+import pcap.util.SequenceTable;
+
+/**
+ * Generic sequence counter analysis, configured from the Filter description instead of a
+ * {@code CounterFilter8/16/32} subclass, e.g. {@code SEQ(offset=4,width=32,le):Feed}:
+ * <ul>
+ * <li>{@code offset=<n>}: position of the counter in packet data (default 0),</li>
+ * <li>{@code width=<bits>}: size of the counter, 8 to 64 bits by steps of 8 (default 16),</li>
+ * <li>{@code le}/{@code be}: little/big endian counter (default big endian),</li>
+ * <li>{@code window=<n>}: reordering window (default {@link PCAPAnalyzer#DEFAULT_REORDUPL_WINDOW}),</li>
+ * <li>{@code dropout=<n>}: largest forward jump considered as a loss (default half the counter
+ * space, at most 65536).</li>
+ * </ul>
+ * Every flow (protocol, addresses and ports) has its own counter in a {@link SequenceTable}, so a
+ * single instance follows thousands of flows at a constant cost per packet. Duplicated packets and
+ * bad counters are not accounted in statistics.
+ *
+ * @author Matthieu Labas
+ */
+public class Sequence extends Stat implements ConfigurableFilter {
+	
+	public final static String DESCRIPTION = "Counter loss, duplication and reordering per flow: SEQ(offset=<n>,width=<bits>,le|be,window=<n>,dropout=<n>)";
+	
+	private String parameters;
+	
+	/** Counter position in packet data. */
+	protected int offset;
+	
+	/** Counter size (bytes). */
+	protected int width;
+	
+	protected boolean littleEndian;
+	
+	/** Counters of flows, keyed by flow hash. */
+	protected SequenceTable flows;
+	
+	/*
+	 * Per-flow data, indexed as in 'flows'.
+	 */
+	protected int[] srcIPs;
+	protected int[] dstIPs;
+	/** Source and destination ports ({@code srcPort << 16 | dstPort}). */
+	protected int[] ports;
+	
+	/** Number of flows initialized in per-flow arrays. */
+	protected int nbFlows;
+	
+	/** Number of packets too short to hold the counter. */
+	protected long nbTooShort;
+	
+	/** Buffer used to sort flows by number of events when generating statistics. */
+	private long[] sortBuffer;
+	
+	public Sequence() {
+		super();
+		width = 2;
+		allocate(16);
+		flows = createTable(PCAPAnalyzer.DEFAULT_REORDUPL_WINDOW, -1);
+	}
+	
+	private SequenceTable createTable(int window, long dropout) {
+		int bits = 8 * width;
+		if (dropout <= 0)
+			dropout = 1l << Math.min(bits - 1, 16);
+		return new SequenceTable(bits, window, dropout);
+	}
+	
+	@Override
+	public void configure(String parameters) throws IllegalArgumentException {
+		int window = PCAPAnalyzer.DEFAULT_REORDUPL_WINDOW;
+		long dropout = -1;
+		for (String param : parameters.split(",")) {
+			String[] kv = param.trim().split("=", 2);
+			String key = kv[0].toLowerCase();
+			try {
+				if (key.equals("le") && kv.length == 1)
+					littleEndian = true;
+				else if (key.equals("be") && kv.length == 1)
+					littleEndian = false;
+				else if (key.equals("offset") && kv.length == 2)
+					offset = Integer.parseInt(kv[1]);
+				else if (key.equals("width") && kv.length == 2)
+					width = (Integer.parseInt(kv[1]) % 8 == 0 ? Integer.parseInt(kv[1]) / 8 : -1);
+				else if (key.equals("window") && kv.length == 2)
+					window = Integer.parseInt(kv[1]);
+				else if (key.equals("dropout") && kv.length == 2)
+					dropout = Long.parseLong(kv[1]);
+				else if (key.length() > 0)
+					throw new IllegalArgumentException(String.format("Unknown parameter '%s'", param));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(String.format("Invalid value in '%s'", param));
+			}
+		}
+		if (offset < 0)
+			throw new IllegalArgumentException(String.format("Invalid offset %d", offset));
+		if (width < 1 || width > 8)
+			throw new IllegalArgumentException("Width should be 8 to 64 bits, by steps of 8");
+		flows = createTable(window, dropout);
+		this.parameters = parameters;
+	}
+	
+	@Override
+	public String getParameters() {
+		return parameters;
+	}
+	
+	private void allocate(int capacity) {
+		if (srcIPs == null) {
+			srcIPs = new int[capacity];
+			dstIPs = new int[capacity];
+			ports = new int[capacity];
+		} else {
+			srcIPs = Arrays.copyOf(srcIPs, capacity);
+			dstIPs = Arrays.copyOf(dstIPs, capacity);
+			ports = Arrays.copyOf(ports, capacity);
+		}
+	}
+	
+	/**
+	 * @return The counter at {@code pos} in {@code data}.
+	 */
+	private long readCounter(byte[] data, int pos) {
+		long value = 0;
+		if (littleEndian) {
+			for (int k = width - 1; k >= 0; k--)
+				value = value << 8 | (data[pos+k] & 0xff);
+		} else {
+			for (int k = 0; k < width; k++)
+				value = value << 8 | (data[pos+k] & 0xff);
+		}
+		return value;
+	}
+	
+	/**
+	 * @return The index of a flow, initialized if needed.
+	 */
+	private int flow(int srcIP, int dstIP, int srcPort, int dstPort, int protocol) {
+		int i = flows.index(Hash.hashFlow(srcIP, dstIP, srcPort, dstPort, protocol));
+		if (i >= nbFlows) {
+			if (i >= srcIPs.length)
+				allocate(Math.max(2 * srcIPs.length, i + 1));
+			srcIPs[i] = srcIP;
+			dstIPs[i] = dstIP;
+			ports[i] = srcPort << 16 | dstPort;
+			nbFlows = i + 1;
+		}
+		return i;
+	}
+	
+	/**
+	 * Updates the counter of a flow.
+	 * @return {@code true} if the packet should be accounted in statistics.
+	 */
+	private boolean updateCounter(int i, long counter, long us, int packetNum) {
+		switch (flows.update(i, counter)) {
+		case SequenceTable.SEQ_DUPLICATE:
+			if (isVerbose())
+				printVerbose("#%d %s: duplicate (counter %d)", packetNum, flowString(i), counter);
+			return false;
+		case SequenceTable.SEQ_BAD:
+			if (isVerbose())
+				printVerbose("#%d %s: bad counter %d (last %d)", packetNum, flowString(i), counter, flows.getMaxSeq(i));
+			return false;
+		case SequenceTable.SEQ_GAP:
+			recordLoss(us, flows.getLastGap());
+			if (isVerbose())
+				printVerbose("#%d %s: %d packets lost (counter %d)", packetNum, flowString(i), flows.getLastGap(), counter);
+			break;
+		case SequenceTable.SEQ_REORDERED:
+			recordLoss(us, -1);
+			if (isVerbose())
+				printVerbose("#%d %s: reordered by %d positions", packetNum, flowString(i), flows.getLastGap());
+			break;
+		case SequenceTable.SEQ_RESTART:
+			if (isVerbose())
+				printVerbose("#%d %s: counter restarted at %d", packetNum, flowString(i), counter);
+			break;
+		}
+		return true;
+	}
+	
+	private String flowString(int i) {
+		return String.format("%s:%d > %s:%d", IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff);
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		byte[] data = packet.getAvailableData();
+		if (data.length < offset + width) {
+			nbTooShort++;
+			return false;
+		}
+		int i = flow(packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getSourcePort(), packet.getDestinationPort(), packet.getProtocol());
+		long us = packet.getPacketTimeMicros();
+		if (!updateCounter(i, readCounter(data, offset), us, packet.getPacketNumber()))
+			return true;
+		update(us, packet.getTotalDataLength(), packet.isFragmented());
+		return true;
+	}
+	
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = batch.size(), nOK = 0;
+		byte[] data = batch.getData();
+		int[] offsets = batch.getDataOffsets(), dataLengths = batch.getDataLengths();
+		int[] sources = batch.getSourceIPs(), destinations = batch.getDestinationIPs();
+		int[] srcPorts = batch.getSourcePorts(), dstPorts = batch.getDestinationPorts();
+		int[] protocols = batch.getProtocols(), lengths = batch.getLengths(), packetNumbers = batch.getPacketNumbers();
+		long[] us = batch.getTimesMicros();
+		boolean[] fragmented = batch.getFragmented();
+		for (int k = 0; k < n; k++) {
+			if (dataLengths[k] < offset + width) {
+				nbTooShort++;
+				continue;
+			}
+			nOK++;
+			int i = flow(sources[k], destinations[k], srcPorts[k], dstPorts[k], protocols[k]);
+			if (updateCounter(i, readCounter(data, offsets[k] + offset), us[k], packetNumbers[k]))
+				update(us[k], lengths[k], fragmented[k]);
+		}
+		return nOK;
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		flows.clear();
+		nbFlows = 0;
+		nbTooShort = 0;
+	}
+	
+	@Override
+	public void watch() {
+		print(String.format("(watch %d) - %s", ++nWatch, generateStats()));
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		Sequence o = (Sequence)other;
+		for (int j = 0; j < o.nbFlows; j++) {
+			int i = flows.combine(o.flows, j);
+			if (i >= nbFlows) {
+				if (i >= srcIPs.length)
+					allocate(Math.max(2 * srcIPs.length, i + 1));
+				srcIPs[i] = o.srcIPs[j];
+				dstIPs[i] = o.dstIPs[j];
+				ports[i] = o.ports[j];
+				nbFlows = i + 1;
+			}
+		}
+		nbTooShort += o.nbTooShort;
+	}
+	
+	private long events(int i) {
+		return flows.getLost(i) + flows.getDuplicates(i) + flows.getReordered(i) + flows.getBad(i);
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	private void writeCounters(MetricsSink sink) {
+		long expected = 0, lost = 0, duplicated = 0, unordered = 0, bad = 0;
+		for (int i = 0; i < nbFlows; i++) {
+			expected += flows.getExpected(i);
+			lost += flows.getLost(i);
+			duplicated += flows.getDuplicates(i);
+			unordered += flows.getReordered(i);
+			bad += flows.getBad(i);
+		}
+		sink.metric("flows", nbFlows);
+		sink.metric("expected", expected);
+		sink.metric("lost", lost);
+		sink.metric("duplicated", duplicated);
+		sink.metric("reordered", unordered);
+		sink.metric("bad", bad);
+		sink.metric("too_short", nbTooShort);
+	}
+	
+	/**
+	 * Overall statistics, followed by the flows with the most losses, duplicates and reordered
+	 * packets.
+	 */
+	@Override
+	public String generateStats() {
+		if (nbFlows == 0)
+			return super.generateStats();
+		long expected = 0, received = 0, lost = 0, duplicated = 0, unordered = 0, bad = 0;
+		int unorderedMax = 0, nbIssues = 0;
+		if (sortBuffer == null || sortBuffer.length < nbFlows)
+			sortBuffer = new long[srcIPs.length];
+		for (int i = 0; i < nbFlows; i++) {
+			expected += flows.getExpected(i);
+			received += flows.getReceived(i);
+			lost += flows.getLost(i);
+			duplicated += flows.getDuplicates(i);
+			unordered += flows.getReordered(i);
+			bad += flows.getBad(i);
+			unorderedMax = Math.max(unorderedMax, flows.getMaxReorder(i));
+			if (events(i) > 0) // (events << 32 | index) keys sort as events
+				sortBuffer[nbIssues++] = Math.min(events(i), Integer.MAX_VALUE) << 32 | i;
+		}
+		StringBuilder sb = new StringBuilder(super.generateStats());
+		Formatter f = new Formatter(sb);
+		f.format(", %d flows: %d duplicated (%6.3f%%%%), %d unordered (%6.3f%%%%, %d max positions), %d lost (%6.3f%%%%), %d bad counters",
+				nbFlows, duplicated, percent(duplicated, received), unordered, percent(unordered, received), unorderedMax,
+				lost, percent(lost, expected), bad);
+		if (nbTooShort > 0)
+			f.format(", %d packets too short", nbTooShort);
+		if (nbIssues == 0)
+			return sb.toString();
+		
+		Arrays.sort(sortBuffer, 0, nbIssues);
+		int nbTop = Math.min(nbIssues, PCAPAnalyzer.TOP_K);
+		f.format(", %d flows with events (top %d):", nbIssues, nbTop);
+		for (int k = nbIssues - 1; k >= nbIssues - nbTop; k--) {
+			int i = (int)sortBuffer[k];
+			f.format("\n--%15s:%-5d > %15s:%-5d: %8d packets, %3d duplicated, %3d unordered (%2d max positions), %4d lost (%6.3f%%%%, %2d max gap)",
+					IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff,
+					flows.getReceived(i), flows.getDuplicates(i), flows.getReordered(i), flows.getMaxReorder(i),
+					flows.getLost(i), percent(flows.getLost(i), flows.getExpected(i)), flows.getMaxGap(i));
+			if (flows.getBad(i) > 0 || flows.getRestarts(i) > 0)
+				f.format(", %d bad counters, %d restarts", flows.getBad(i), flows.getRestarts(i));
+		}
+		return sb.toString();
+	}
+	
+	private static double percent(long n, long total) {
+		return (total == 0 ? 0 : 100.0 * n / total);
+	}
+
+}
@@ -1,9 +1,21 @@
 package pcap.filters.impl;
 
+import java.util.Formatter;
+
+import pcap.PCAPAnalyzer;
 import pcap.Packet;
+import pcap.PacketBatch;
 import pcap.filters.AbstractMessageFilter;
+import pcap.filters.BatchFilter;
+import pcap.filters.CombinableFilter;
+import pcap.filters.MessageFilter;
+import pcap.filters.LiveMetricsFilter;
+import pcap.filters.MetricsSink;
+import pcap.util.Aggregator;
+import pcap.util.LogHistogram;
+import pcap.util.TimeSeries;
 
-public class Stat extends AbstractMessageFilter {
+public class Stat extends AbstractMessageFilter implements CombinableFilter, BatchFilter, LiveMetricsFilter {
 	
 	public final static String DESCRIPTION = "Counts packet number, size and frequency";
 	
@@ -28,21 +40,80 @@ public class Stat extends AbstractMessageFilter {
 	/** Maximum packet size. */
 	protected long szMax;
 	
+	/** Timestamp of last received packet (us), to compute inter-arrival gaps. */
+	protected long usLast;
+	
+	/** Histogram of packet sizes, or {@code null} if histograms are disabled. */
+	protected LogHistogram szHistogram;
+	
+	/** Histogram of packet inter-arrival gaps (us), or {@code null} if histograms are disabled. */
+	protected LogHistogram gapHistogram;
+	
+	/** Rolling packets, bytes and losses, or {@code null} if rolling rates are disabled. */
+	protected TimeSeries series;
+	
+	/** Columns of {@link #series}. */
+	protected static final int SERIES_PACKETS = 0, SERIES_BYTES = 1, SERIES_LOSSES = 2;
+	
+	/** {@code true} once other Filters have been combined into this one since the last reset. */
+	private boolean combined;
+	
 	/** Number of watch. */
 	protected int nWatch;
 	
-	public Stat() {
+	/** Aggregator of batch columns, created on first batch. */
+	private Aggregator aggregator;
+	
+	/**
+	 * @param histograms {@code true} to keep histograms of packet sizes and inter-arrival gaps
+	 *     (about 7 kB, whatever the number of packets).
+	 */
+	public Stat(boolean histograms) {
 		szMin = szMax = -1;
 		nWatch = 0;
+		if (histograms) {
+			szHistogram = new LogHistogram(20, 4); // Up to 1 MB (merged fragments)
+			gapHistogram = new LogHistogram(36, 4); // Up to 19 hours
+		}
+		if (PCAPAnalyzer.RATE)
+			enableTimeSeries();
+	}
+	
+	/**
+	 * Keeps packets, bytes and losses in time buckets to display rolling rates over the windows
+	 * given by {@link PCAPAnalyzer#RATE_WINDOWS}. The series is not cleared on {@link #reset()},
+	 * so rolling rates span watch periods.
+	 */
+	protected void enableTimeSeries() {
+		if (series != null)
+			return;
+		int maxWindow = 1;
+		for (int w : PCAPAnalyzer.RATE_WINDOWS)
+			maxWindow = Math.max(maxWindow, w);
+		int bucket = Math.max(1, PCAPAnalyzer.RATE_BUCKET);
+		series = new TimeSeries(1000l * bucket, (int)Math.min(1 << 20, 1000l * maxWindow / bucket + 1), 3);
+	}
+	
+	/**
+	 * Histograms are only kept when enabled by {@link PCAPAnalyzer#HISTOGRAMS}.
+	 */
+	public Stat() {
+		this(PCAPAnalyzer.HISTOGRAMS);
 	}
 	
 	@Override
 	public void reset() {
 		ms0 = msLast = 0l;
+		usLast = 0l;
 		nbPackets = 0;
 		nbFragmentsPackets = 0;
 		szMin = szMax = -1l;
 		szTot = 0l;
+		combined = false;
+		if (szHistogram != null) {
+			szHistogram.clear();
+			gapHistogram.clear();
+		}
 	}
 	
 	@Override
@@ -56,22 +127,131 @@ public class Stat extends AbstractMessageFilter {
 	
 	@Override
 	public boolean process(Packet packet) {
-		long ts = packet.getPacketTimeMillis();
-		int sz = packet.getTotalDataLength();
+		update(packet.getPacketTimeMicros(), packet.getTotalDataLength(), packet.isFragmented());
+		return true;
+	}
+	
+	/**
+	 * Accounts for one packet.
+	 * @param us The packet timestamp (us).
+	 * @param sz The packet total data length.
+	 * @param fragmented {@code true} if the packet is fragmented.
+	 */
+	protected void update(long us, int sz, boolean fragmented) {
+		long ts = Packet.microsToMillis(us);
 		if (nbPackets == 0) {
 			ms0 = ts;
 			szMin = szMax = sz;
+		} else if (gapHistogram != null) {
+			gapHistogram.record(us - usLast);
+		}
+		if (szHistogram != null)
+			szHistogram.record(sz);
+		if (series != null) {
+			series.add(us, SERIES_PACKETS, 1);
+			series.add(us, SERIES_BYTES, sz);
 		}
 		msLast = ts;
+		usLast = us;
 		nbPackets++;
-		if (packet.isFragmented())
+		if (fragmented)
 			nbFragmentsPackets++;
 		if (sz < szMin)
 			szMin = sz;
 		if (sz > szMax)
 			szMax = sz;
 		szTot += sz;
-		return true;
+	}
+	
+	/**
+	 * Accounts for lost packets in rolling rates, if enabled.
+	 * @param us The time the loss was detected (us).
+	 * @param nLost The number of lost packets (negative when late packets fill a loss).
+	 */
+	protected void recordLoss(long us, long nLost) {
+		if (series != null)
+			series.add(us, SERIES_LOSSES, nLost);
+	}
+
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int n = batch.size();
+		if (n == 0)
+			return 0;
+		if (aggregator == null)
+			aggregator = Aggregator.newInstance();
+		long[] ts = batch.getTimesMillis();
+		if (szHistogram != null) {
+			long[] us = batch.getTimesMicros();
+			int[] lengths = batch.getLengths();
+			long last = (nbPackets == 0 ? us[0] : usLast);
+			for (int i = 0; i < n; i++) {
+				szHistogram.record(lengths[i]);
+				if (i > 0 || nbPackets > 0)
+					gapHistogram.record(us[i] - last);
+				last = us[i];
+			}
+		}
+		if (series != null) {
+			long[] us = batch.getTimesMicros();
+			int[] lengths = batch.getLengths();
+			for (int i = 0; i < n; i++) {
+				series.add(us[i], SERIES_PACKETS, 1);
+				series.add(us[i], SERIES_BYTES, lengths[i]);
+			}
+		}
+		if (nbPackets == 0) {
+			ms0 = ts[0];
+			szMin = szMax = batch.getLengths()[0];
+		}
+		msLast = ts[n-1];
+		usLast = batch.getTimesMicros()[n-1];
+		aggregator.aggregate(batch.getLengths(), batch.getFragmented(), n);
+		nbPackets += n;
+		nbFragmentsPackets += aggregator.count;
+		if (aggregator.min < szMin)
+			szMin = aggregator.min;
+		if (aggregator.max > szMax)
+			szMax = aggregator.max;
+		szTot += aggregator.sum;
+		return n;
+	}
+	
+	@Override
+	public void flush() {
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		Stat o = (Stat)other;
+		if (series != null && o.series != null) {
+			if (!combined) // The series is not cleared on reset: rebuild it from combined Filters
+				series.clear();
+			series.merge(o.series);
+		}
+		combined = true;
+		if (o.nbPackets == 0)
+			return;
+		if (nbPackets == 0) {
+			ms0 = o.ms0;
+			msLast = o.msLast;
+			usLast = o.usLast;
+			szMin = o.szMin;
+			szMax = o.szMax;
+		} else {
+			ms0 = Math.min(ms0, o.ms0);
+			msLast = Math.max(msLast, o.msLast);
+			usLast = Math.max(usLast, o.usLast);
+			szMin = Math.min(szMin, o.szMin);
+			szMax = Math.max(szMax, o.szMax);
+		}
+		nbPackets += o.nbPackets;
+		nbFragmentsPackets += o.nbFragmentsPackets;
+		szTot += o.szTot;
+		if (szHistogram != null && o.szHistogram != null) {
+			szHistogram.add(o.szHistogram);
+			gapHistogram.add(o.gapHistogram);
+		}
 	}
 
 	@Override
@@ -80,13 +260,144 @@ public class Stat extends AbstractMessageFilter {
 	}
 	
 	public String generateStats() {
-		double duration = (msLast - ms0) / 1000.0;
 		if (nbPackets == 0)
 			return "No packets received.";
-		else
-			return String.format("In %6.3f s: %6d packets, %4d fragmented (%6.3f%%%%), %8.3f packets/s, length: moy %6.1f min %4d max %4d, %4.3f kB/s",
-					duration, nbPackets, nbFragmentsPackets, 100.0*nbFragmentsPackets/nbPackets, (double)nbPackets/duration, (double)szTot/nbPackets, szMin, szMax,
-					szTot/(1024.0*duration));
+		Formatter f = new Formatter();
+		formatStats(f, ms0, msLast, nbPackets, nbFragmentsPackets, szTot, szMin, szMax);
+		return f.toString() + generateHistogramStats() + generateRateStats();
+	}
+	
+	/**
+	 * Formats statistics of a set of packets, as displayed by {@link #generateStats()} (without
+	 * histograms). Literal {@code %} are doubled, as the result is printed as a format String.
+	 * @param f The Formatter to append statistics to.
+	 * @param ms0 Timestamp of the first packet (ms).
+	 * @param msLast Timestamp of the last packet (ms).
+	 * @param nbPackets Number of packets (should not be 0).
+	 * @param nbFragments Number of fragmented packets.
+	 * @param szTot Total number of bytes.
+	 * @param szMin Minimum packet size.
+	 * @param szMax Maximum packet size.
+	 */
+	public static void formatStats(Formatter f, long ms0, long msLast, int nbPackets, int nbFragments, long szTot, long szMin, long szMax) {
+		double duration = (msLast - ms0) / 1000.0;
+		f.format("In %6.3f s: %6d packets, %4d fragmented (%6.3f%%%%), %8.3f packets/s, length: moy %6.1f min %4d max %4d, %4.3f kB/s",
+				duration, nbPackets, nbFragments, 100.0*nbFragments/nbPackets, (double)nbPackets/duration, (double)szTot/nbPackets, szMin, szMax,
+				szTot/(1024.0*duration));
+	}
+	
+	/**
+	 * @return The percentiles of packet size and inter-arrival gap (ms), starting with {@code ", "},
+	 *     or an empty String if histograms are disabled.
+	 * @see PCAPAnalyzer#PERCENTILES
+	 */
+	protected String generateHistogramStats() {
+		if (szHistogram == null || szHistogram.getCount() == 0)
+			return "";
+		StringBuilder sb = new StringBuilder(", size");
+		for (double p : PCAPAnalyzer.PERCENTILES)
+			sb.append(String.format(" p%s %d", formatPercentile(p), szHistogram.getValueAtPercentile(p)));
+		if (gapHistogram.getCount() > 0) {
+			sb.append(", gap (ms)");
+			for (double p : PCAPAnalyzer.PERCENTILES)
+				sb.append(String.format(" p%s %.3f", formatPercentile(p), gapHistogram.getValueAtPercentile(p) / 1000.0));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return The rolling rates over the windows given by {@link PCAPAnalyzer#RATE_WINDOWS}, with
+	 *     the lowest and highest rates over a time bucket, starting with {@code ", "}, or an empty
+	 *     String if rolling rates are disabled.
+	 */
+	protected String generateRateStats() {
+		if (series == null || series.available() == 0)
+			return "";
+		StringBuilder sb = new StringBuilder();
+		Formatter f = new Formatter(sb);
+		double bucketSec = series.getBucketMicros() / 1000000.0;
+		for (int w : PCAPAnalyzer.RATE_WINDOWS) {
+			int n = (int)Math.min(series.available(), Math.round(w / bucketSec));
+			if (n == 0)
+				continue;
+			f.format(", last %ds: %.1f packets/s (%.1f-%.1f), %.3f kB/s (%.3f-%.3f)", w,
+					series.sum(SERIES_PACKETS, n) / (n * bucketSec),
+					series.min(SERIES_PACKETS, n) / bucketSec, series.max(SERIES_PACKETS, n) / bucketSec,
+					series.sum(SERIES_BYTES, n) / (1024.0 * n * bucketSec),
+					series.min(SERIES_BYTES, n) / (1024.0 * bucketSec), series.max(SERIES_BYTES, n) / (1024.0 * bucketSec));
+			long lost = series.sum(SERIES_LOSSES, n);
+			if (lost > 0)
+				f.format(", %d lost (max %d per %d ms)", lost, series.max(SERIES_LOSSES, n), series.getBucketMicros() / 1000);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the rolling rates displayed by {@link #generateRateStats()}: for every window
+	 * {@code w} (s), {@code rate_<w>s_packets} (packets/s) and {@code rate_<w>s_bytes} (bytes/s)
+	 * with their {@code _min} and {@code _max} over a time bucket, and {@code rate_<w>s_lost} when
+	 * losses are counted.
+	 */
+	protected void writeRateMetrics(MetricsSink sink) {
+		if (series == null || series.available() == 0)
+			return;
+		double bucketSec = series.getBucketMicros() / 1000000.0;
+		for (int w : PCAPAnalyzer.RATE_WINDOWS) {
+			int n = (int)Math.min(series.available(), Math.round(w / bucketSec));
+			if (n == 0)
+				continue;
+			String prefix = "rate_" + w + "s_";
+			sink.metric(prefix+"packets", series.sum(SERIES_PACKETS, n) / (n * bucketSec));
+			sink.metric(prefix+"packets_min", series.min(SERIES_PACKETS, n) / bucketSec);
+			sink.metric(prefix+"packets_max", series.max(SERIES_PACKETS, n) / bucketSec);
+			sink.metric(prefix+"bytes", series.sum(SERIES_BYTES, n) / (n * bucketSec));
+			sink.metric(prefix+"bytes_min", series.min(SERIES_BYTES, n) / bucketSec);
+			sink.metric(prefix+"bytes_max", series.max(SERIES_BYTES, n) / bucketSec);
+			long lost = series.sum(SERIES_LOSSES, n);
+			if (lost > 0)
+				sink.metric(prefix+"lost", lost);
+		}
+	}
+	
+	/**
+	 * Writes the number of packets, fragmented packets and bytes, then the duration (s), sizes,
+	 * percentiles of sizes and inter-arrival gaps (ms) and rolling rates as displayed by
+	 * {@link #generateStats()}. Sub-classes add their own metrics after these.
+	 */
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		sink.metric("packets", nbPackets);
+		sink.metric("fragmented", nbFragmentsPackets);
+		sink.metric("bytes", szTot);
+		if (nbPackets == 0)
+			return;
+		sink.metric("duration", (msLast - ms0) / 1000.0);
+		sink.metric("size_min", szMin);
+		sink.metric("size_max", szMax);
+		if (szHistogram != null && szHistogram.getCount() > 0) {
+			for (double p : PCAPAnalyzer.PERCENTILES)
+				sink.metric("size_p"+formatPercentile(p), szHistogram.getValueAtPercentile(p));
+			if (gapHistogram.getCount() > 0) {
+				for (double p : PCAPAnalyzer.PERCENTILES)
+					sink.metric("gap_p"+formatPercentile(p), gapHistogram.getValueAtPercentile(p) / 1000.0);
+			}
+		}
+		writeRateMetrics(sink);
+	}
+	
+	/**
+	 * Writes the number of packets, fragmented packets and bytes. Sub-classes add their own
+	 * counters after these.
+	 */
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		sink.metric("packets", nbPackets);
+		sink.metric("fragmented", nbFragmentsPackets);
+		sink.metric("bytes", szTot);
+	}
+	
+	private static String formatPercentile(double p) {
+		return (p == Math.rint(p) ? String.valueOf((long)p) : String.valueOf(p));
 	}
 
 	@Override
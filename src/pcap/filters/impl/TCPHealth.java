@@ -0,0 +1,454 @@
+package pcap.filters.impl;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+import pcap.NetworkFrame;
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.NetworkFrame.TCPFrame;
+import pcap.PCAPAnalyzer;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MessageFilter;
+import pcap.filters.MetricsSink;
+import pcap.filters.TimedFilter;
+import pcap.util.Hash;
+import pcap.util.LongIntHashMap;
+
+/**
+ * TCP health: counts retransmissions, out-of-order segments, zero-window events and duplicate
+ * ACKs for every direction of every TCP flow, in addition to the overall statistics of
+ * {@link Stat}.<br/>
+ * Each direction of a flow (source and destination addresses and ports) is a primitive slot
+ * indexed through an open-addressing map keyed by the flow hash, holding the highest sequence
+ * number sent, the last sequence hole, the last ACK and window. Accounting for a segment does not
+ * allocate, so hundreds of thousands of flows can be followed. Flows are forgotten on
+ * {@link #reset()}, their first segment after a watch being used as a new reference, and when
+ * they did not send segments for {@link PCAPAnalyzer#TCP_TIMEOUT} ms: their counters are then
+ * added to totals, so that the table does not grow with the number of flows ever seen.<br/>
+ * A segment below the highest sequence number is out-of-order if it fills the last sequence hole
+ * less than {@link PCAPAnalyzer#TCP_REORDER} ms after the hole appeared, and a retransmission
+ * otherwise.
+ *
+ * @author Matthieu Labas
+ */
+public class TCPHealth extends Stat implements TimedFilter {
+	
+	public final static String DESCRIPTION = "Counts TCP retransmissions, out-of-order segments, zero windows and duplicate ACKs";
+	
+	/** Flow hash to slot index. */
+	private final LongIntHashMap slots;
+	
+	/*
+	 * Per-direction state and counters, indexed by slot.
+	 */
+	/** Flow hash. */
+	protected long[] hashes;
+	/** Source IP address. */
+	protected int[] srcIPs;
+	/** Destination IP address. */
+	protected int[] dstIPs;
+	/** Source and destination ports ({@code srcPort << 16 | dstPort}). */
+	protected int[] ports;
+	/** Highest sequence number sent (end of the highest segment). */
+	protected int[] highSeq;
+	/** Start of the last sequence hole. */
+	protected int[] holeStart;
+	/** End of the last sequence hole ({@code holeStart} if there is no hole). */
+	protected int[] holeEnd;
+	/** Timestamp at which the last hole appeared (us). */
+	protected long[] usHole;
+	/** Last ACK number sent. */
+	protected int[] lastAck;
+	/** Last window advertised, or -1. */
+	protected int[] lastWindow;
+	/** {@link #SEQ_VALID} and {@link #ACK_VALID}. */
+	protected byte[] state;
+	/** Timestamp of the last segment (us). */
+	protected long[] usLastSegment;
+	/** Number of segments. */
+	protected long[] segments;
+	/** Number of segments carrying data (or SYN/FIN). */
+	protected long[] dataSegments;
+	protected int[] retransmissions;
+	protected int[] outOfOrder;
+	protected int[] zeroWindows;
+	protected int[] dupAcks;
+	
+	/** {@link #highSeq} is known. */
+	private static final byte SEQ_VALID = 0x1;
+	/** {@link #lastAck} is known. */
+	private static final byte ACK_VALID = 0x2;
+	
+	/** Number of slots used. */
+	protected int nbFlows;
+	
+	/** Delay under which a segment filling a hole is out-of-order (us). */
+	private final long reorderMicros;
+	
+	/** Delay after which flows without segments are forgotten (ms). */
+	private final long timeoutMillis;
+	
+	/** Packet time of the next look-up for idle flows (ms). */
+	private long nextExpiry;
+	
+	/*
+	 * Counters of flows forgotten since the last reset.
+	 */
+	protected int expiredFlows;
+	protected long expiredDataSegments;
+	protected long expiredRetransmissions;
+	protected long expiredOutOfOrder;
+	protected long expiredZeroWindows;
+	protected long expiredDupAcks;
+	
+	/** Buffer used to sort slots by number of events when generating statistics. */
+	private long[] sortBuffer;
+	
+	/** Buffer the statistics report is generated into, reused between watches. */
+	private final StringBuilder report;
+	
+	private final Formatter reportFormatter;
+	
+	public TCPHealth() {
+		super();
+		slots = new LongIntHashMap(1024);
+		allocate(1024);
+		reorderMicros = PCAPAnalyzer.TCP_REORDER * 1000l;
+		timeoutMillis = Math.max(PCAPAnalyzer.TICK_PERIOD, PCAPAnalyzer.TCP_TIMEOUT);
+		nextExpiry = Long.MIN_VALUE;
+		report = new StringBuilder();
+		reportFormatter = new Formatter(report);
+	}
+	
+	private void allocate(int capacity) {
+		if (srcIPs == null) {
+			hashes = new long[capacity];
+			srcIPs = new int[capacity];
+			dstIPs = new int[capacity];
+			ports = new int[capacity];
+			highSeq = new int[capacity];
+			holeStart = new int[capacity];
+			holeEnd = new int[capacity];
+			usHole = new long[capacity];
+			lastAck = new int[capacity];
+			lastWindow = new int[capacity];
+			state = new byte[capacity];
+			usLastSegment = new long[capacity];
+			segments = new long[capacity];
+			dataSegments = new long[capacity];
+			retransmissions = new int[capacity];
+			outOfOrder = new int[capacity];
+			zeroWindows = new int[capacity];
+			dupAcks = new int[capacity];
+		} else {
+			hashes = Arrays.copyOf(hashes, capacity);
+			srcIPs = Arrays.copyOf(srcIPs, capacity);
+			dstIPs = Arrays.copyOf(dstIPs, capacity);
+			ports = Arrays.copyOf(ports, capacity);
+			highSeq = Arrays.copyOf(highSeq, capacity);
+			holeStart = Arrays.copyOf(holeStart, capacity);
+			holeEnd = Arrays.copyOf(holeEnd, capacity);
+			usHole = Arrays.copyOf(usHole, capacity);
+			lastAck = Arrays.copyOf(lastAck, capacity);
+			lastWindow = Arrays.copyOf(lastWindow, capacity);
+			state = Arrays.copyOf(state, capacity);
+			usLastSegment = Arrays.copyOf(usLastSegment, capacity);
+			segments = Arrays.copyOf(segments, capacity);
+			dataSegments = Arrays.copyOf(dataSegments, capacity);
+			retransmissions = Arrays.copyOf(retransmissions, capacity);
+			outOfOrder = Arrays.copyOf(outOfOrder, capacity);
+			zeroWindows = Arrays.copyOf(zeroWindows, capacity);
+			dupAcks = Arrays.copyOf(dupAcks, capacity);
+		}
+	}
+	
+	/**
+	 * @return The slot of a flow direction, created if needed.
+	 */
+	protected int slot(long hash, int srcIP, int dstIP, int srcPort, int dstPort) {
+		int s = slots.find(hash);
+		if (s >= 0)
+			return slots.valueAt(s);
+		if (nbFlows == srcIPs.length)
+			allocate(2 * nbFlows);
+		int i = nbFlows++;
+		slots.put(hash, i);
+		hashes[i] = hash;
+		srcIPs[i] = srcIP;
+		dstIPs[i] = dstIP;
+		ports[i] = srcPort << 16 | dstPort;
+		lastWindow[i] = -1;
+		state[i] = 0;
+		segments[i] = dataSegments[i] = 0;
+		retransmissions[i] = outOfOrder[i] = zeroWindows[i] = dupAcks[i] = 0;
+		return i;
+	}
+	
+	@Override
+	public boolean process(Packet packet) {
+		TCPFrame tcp = packet.getTCPFrame();
+		if (tcp == null)
+			return false;
+		if (!super.process(packet))
+			return false;
+		
+		int i = slot(packet.getFlowHash(), packet.getSourceIPInt(), packet.getDestinationIPInt(), tcp.src_port, tcp.dstPort);
+		long us = packet.getPacketTimeMicros();
+		int flags = tcp.flags;
+		int len = packet.getTCPSegmentLength();
+		segments[i]++;
+		usLastSegment[i] = us;
+		if ((flags & TCPFrame.FLAG_RST) != 0)
+			return true;
+		
+		// Sequence numbers: SYN and FIN take one
+		if ((flags & (TCPFrame.FLAG_SYN | TCPFrame.FLAG_FIN)) != 0)
+			len++;
+		if (len > 0) {
+			dataSegments[i]++;
+			checkSequence(i, tcp.seqnum, tcp.seqnum + len, us, packet.getPacketNumber());
+		}
+		
+		// Duplicate ACK: no data, same ACK and window as the previous one
+		if ((flags & TCPFrame.FLAG_ACK) != 0) {
+			if (len == 0 && (state[i] & ACK_VALID) != 0 && tcp.acknum == lastAck[i] && tcp.window_size == lastWindow[i]) {
+				dupAcks[i]++;
+				if (isVerbose())
+					printVerbose("#%d %s: duplicate ACK %d", packet.getPacketNumber(), flowString(i), tcp.acknum & 0xffffffffl);
+			}
+			lastAck[i] = tcp.acknum;
+			state[i] |= ACK_VALID;
+		}
+		
+		if (tcp.window_size == 0 && lastWindow[i] != 0) {
+			zeroWindows[i]++;
+			if (isVerbose())
+				printVerbose("#%d %s: zero window", packet.getPacketNumber(), flowString(i));
+		}
+		lastWindow[i] = tcp.window_size;
+		return true;
+	}
+	
+	/**
+	 * Checks a segment against the highest sequence number of its flow direction. Sequence numbers
+	 * are compared modulo 2^32.
+	 * @param seq First sequence number of the segment.
+	 * @param end Sequence number following the segment.
+	 */
+	private void checkSequence(int i, int seq, int end, long us, int packetNum) {
+		if ((state[i] & SEQ_VALID) == 0) {
+			highSeq[i] = holeStart[i] = holeEnd[i] = end;
+			state[i] |= SEQ_VALID;
+			return;
+		}
+		int high = highSeq[i];
+		if (seq - high >= 0) { // Next segment, or beyond a hole
+			if (seq != high) {
+				holeStart[i] = high;
+				holeEnd[i] = seq;
+				usHole[i] = us;
+			}
+			highSeq[i] = end;
+			return;
+		}
+		if (end - high <= 0 && holeStart[i] != holeEnd[i] && seq - holeStart[i] >= 0 && end - holeEnd[i] <= 0 && us - usHole[i] < reorderMicros) {
+			outOfOrder[i]++;
+			if (seq == holeStart[i])
+				holeStart[i] = end;
+			else if (end == holeEnd[i])
+				holeEnd[i] = seq;
+			if (isVerbose())
+				printVerbose("#%d %s: out-of-order segment %d", packetNum, flowString(i), seq & 0xffffffffl);
+			return;
+		}
+		retransmissions[i]++;
+		if (end - high > 0) // Retransmission with new data
+			highSeq[i] = end;
+		if (isVerbose())
+			printVerbose("#%d %s: retransmission of %d", packetNum, flowString(i), seq & 0xffffffffl);
+	}
+	
+	private String flowString(int i) {
+		return String.format("%s:%d > %s:%d", IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff);
+	}
+	
+	/**
+	 * Segments are followed one by one.
+	 */
+	@Override
+	public int processBatch(PacketBatch batch) {
+		int nOK = 0;
+		for (int i = 0; i < batch.size(); i++)
+			if (process(batch.getPacket(i)))
+				nOK++;
+		return nOK;
+	}
+	
+	/**
+	 * Forgets flows without segments for {@link PCAPAnalyzer#TCP_TIMEOUT} ms, adding their counters
+	 * to totals. Flows are looked up at most every quarter of the timeout.
+	 */
+	@Override
+	public void tick(long timeMillis) {
+		if (timeMillis < nextExpiry)
+			return;
+		nextExpiry = timeMillis + timeoutMillis / 4;
+		long usLimit = 1000l * (timeMillis - timeoutMillis);
+		for (int i = nbFlows - 1; i >= 0; i--)
+			if (usLastSegment[i] < usLimit)
+				expire(i);
+	}
+	
+	/**
+	 * Forgets a flow direction: its counters are added to totals and the last slot is moved to its
+	 * place, so that slots stay dense.
+	 */
+	private void expire(int i) {
+		expiredFlows++;
+		expiredDataSegments += dataSegments[i];
+		expiredRetransmissions += retransmissions[i];
+		expiredOutOfOrder += outOfOrder[i];
+		expiredZeroWindows += zeroWindows[i];
+		expiredDupAcks += dupAcks[i];
+		slots.remove(hashes[i]);
+		int last = --nbFlows;
+		if (i == last)
+			return;
+		hashes[i] = hashes[last];
+		srcIPs[i] = srcIPs[last];
+		dstIPs[i] = dstIPs[last];
+		ports[i] = ports[last];
+		highSeq[i] = highSeq[last];
+		holeStart[i] = holeStart[last];
+		holeEnd[i] = holeEnd[last];
+		usHole[i] = usHole[last];
+		lastAck[i] = lastAck[last];
+		lastWindow[i] = lastWindow[last];
+		state[i] = state[last];
+		usLastSegment[i] = usLastSegment[last];
+		segments[i] = segments[last];
+		dataSegments[i] = dataSegments[last];
+		retransmissions[i] = retransmissions[last];
+		outOfOrder[i] = outOfOrder[last];
+		zeroWindows[i] = zeroWindows[last];
+		dupAcks[i] = dupAcks[last];
+		slots.put(hashes[i], i);
+	}
+	
+	@Override
+	public void reset() {
+		super.reset();
+		slots.clear();
+		nbFlows = 0;
+		expiredFlows = 0;
+		expiredDataSegments = expiredRetransmissions = expiredOutOfOrder = expiredZeroWindows = expiredDupAcks = 0;
+	}
+	
+	@Override
+	public void combine(MessageFilter other) {
+		super.combine(other);
+		TCPHealth o = (TCPHealth)other;
+		for (int j = 0; j < o.nbFlows; j++) {
+			int srcPort = o.ports[j] >>> 16, dstPort = o.ports[j] & 0xffff;
+			long hash = Hash.hashFlow(o.srcIPs[j], o.dstIPs[j], srcPort, dstPort, NetworkFrame.PROTOCOL_TCP);
+			int i = slot(hash, o.srcIPs[j], o.dstIPs[j], srcPort, dstPort);
+			usLastSegment[i] = (segments[i] == 0 ? o.usLastSegment[j] : Math.max(usLastSegment[i], o.usLastSegment[j]));
+			segments[i] += o.segments[j];
+			dataSegments[i] += o.dataSegments[j];
+			retransmissions[i] += o.retransmissions[j];
+			outOfOrder[i] += o.outOfOrder[j];
+			zeroWindows[i] += o.zeroWindows[j];
+			dupAcks[i] += o.dupAcks[j];
+		}
+		expiredFlows += o.expiredFlows;
+		expiredDataSegments += o.expiredDataSegments;
+		expiredRetransmissions += o.expiredRetransmissions;
+		expiredOutOfOrder += o.expiredOutOfOrder;
+		expiredZeroWindows += o.expiredZeroWindows;
+		expiredDupAcks += o.expiredDupAcks;
+	}
+	
+	private int events(int i) {
+		return retransmissions[i] + outOfOrder[i] + zeroWindows[i] + dupAcks[i];
+	}
+	
+	@Override
+	public void writeMetrics(MetricsSink sink) {
+		super.writeMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	@Override
+	public void writeLiveMetrics(MetricsSink sink) {
+		super.writeLiveMetrics(sink);
+		writeCounters(sink);
+	}
+	
+	private void writeCounters(MetricsSink sink) {
+		long data = expiredDataSegments, retrans = expiredRetransmissions, ooo = expiredOutOfOrder, zw = expiredZeroWindows, dup = expiredDupAcks;
+		for (int i = 0; i < nbFlows; i++) {
+			data += dataSegments[i];
+			retrans += retransmissions[i];
+			ooo += outOfOrder[i];
+			zw += zeroWindows[i];
+			dup += dupAcks[i];
+		}
+		sink.metric("flows", nbFlows + expiredFlows);
+		sink.metric("expired_flows", expiredFlows);
+		sink.metric("data_segments", data);
+		sink.metric("retransmissions", retrans);
+		sink.metric("reordered", ooo);
+		sink.metric("zero_windows", zw);
+		sink.metric("duplicate_acks", dup);
+	}
+	
+	/**
+	 * Overall statistics (including expired flows), followed by the flow directions with the most
+	 * events among the ones not expired.
+	 */
+	@Override
+	public String generateStats() {
+		report.setLength(0);
+		report.append(super.generateStats());
+		if (nbFlows + expiredFlows == 0)
+			return report.toString();
+		
+		long data = expiredDataSegments, retrans = expiredRetransmissions, ooo = expiredOutOfOrder, zw = expiredZeroWindows, dup = expiredDupAcks;
+		int nbIssues = 0;
+		if (sortBuffer == null || sortBuffer.length < nbFlows)
+			sortBuffer = new long[srcIPs.length];
+		for (int i = 0; i < nbFlows; i++) {
+			data += dataSegments[i];
+			retrans += retransmissions[i];
+			ooo += outOfOrder[i];
+			zw += zeroWindows[i];
+			dup += dupAcks[i];
+			if (events(i) > 0) // (events << 32 | slot) keys sort as events
+				sortBuffer[nbIssues++] = (long)events(i) << 32 | i;
+		}
+		reportFormatter.format(", %d flows", nbFlows + expiredFlows);
+		if (expiredFlows > 0)
+			reportFormatter.format(" (%d expired)", expiredFlows);
+		reportFormatter.format(": %d retransmissions (%.3f%%%%), %d out-of-order (%.3f%%%%), %d zero windows, %d duplicate ACKs",
+				retrans, percent(retrans, data), ooo, percent(ooo, data), zw, dup);
+		if (nbIssues == 0)
+			return report.toString();
+		
+		Arrays.sort(sortBuffer, 0, nbIssues);
+		int nbTop = Math.min(nbIssues, PCAPAnalyzer.TOP_K);
+		reportFormatter.format(", %d flows with events (top %d):", nbIssues, nbTop);
+		for (int k = nbIssues - 1; k >= nbIssues - nbTop; k--) {
+			int i = (int)sortBuffer[k];
+			reportFormatter.format("\n--%15s:%-5d > %15s:%-5d: %8d segments, %6d retransmissions (%7.3f%%%%), %6d out-of-order, %4d zero windows, %6d duplicate ACKs",
+					IPv4Frame.toString(srcIPs[i]), ports[i] >>> 16, IPv4Frame.toString(dstIPs[i]), ports[i] & 0xffff, segments[i],
+					retransmissions[i], percent(retransmissions[i], dataSegments[i]), outOfOrder[i], zeroWindows[i], dupAcks[i]);
+		}
+		return report.toString();
+	}
+	
+	private static double percent(long n, long total) {
+		return (total == 0 ? 0 : 100.0 * n / total);
+	}
+
+}
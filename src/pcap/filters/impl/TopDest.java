@@ -0,0 +1,30 @@
+package pcap.filters.impl;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.AbstractTopFilter;
+
+public class TopDest extends AbstractTopFilter {
+	
+	public final static String DESCRIPTION = "Heaviest packets Destination IP, in bounded memory";
+	
+	public TopDest() {
+		super(0);
+	}
+	
+	@Override
+	protected long getKey(Packet packet) {
+		return packet.getDestinationIPInt() & 0xffffffffl;
+	}
+	
+	@Override
+	protected long getKey(PacketBatch batch, int i) {
+		return batch.getDestinationIPs()[i] & 0xffffffffl;
+	}
+	
+	@Override
+	protected String formatKey(int slot) {
+		return String.format("%15s", IPv4Frame.toString((int)top.getKey(slot)));
+	}
+}
@@ -0,0 +1,61 @@
+package pcap.filters.impl;
+
+import pcap.NetworkFrame;
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.AbstractTopFilter;
+import pcap.util.Hash;
+
+/**
+ * Heaviest flows (protocol, source and destination addresses and ports). Flows are counted by
+ * the hash of their 5-tuple, which is attached to their counter to be displayed.
+ *
+ * @author Matthieu Labas
+ */
+public class TopFlow extends AbstractTopFilter {
+	
+	public final static String DESCRIPTION = "Heaviest flows (5-tuple), in bounded memory";
+	
+	public TopFlow() {
+		super(2);
+	}
+	
+	@Override
+	protected long getKey(Packet packet) {
+		return packet.getFlowHash();
+	}
+	
+	@Override
+	protected long getKey(PacketBatch batch, int i) {
+		return Hash.hashFlow(batch.getSourceIPs()[i], batch.getDestinationIPs()[i], batch.getSourcePorts()[i],
+				batch.getDestinationPorts()[i], batch.getProtocols()[i]);
+	}
+	
+	@Override
+	protected void attach(Packet packet, long[] attachments, int offset) {
+		attach(attachments, offset, packet.getSourceIPInt(), packet.getDestinationIPInt(), packet.getSourcePort(),
+				packet.getDestinationPort(), packet.getProtocol());
+	}
+	
+	@Override
+	protected void attach(PacketBatch batch, int i, long[] attachments, int offset) {
+		attach(attachments, offset, batch.getSourceIPs()[i], batch.getDestinationIPs()[i], batch.getSourcePorts()[i],
+				batch.getDestinationPorts()[i], batch.getProtocols()[i]);
+	}
+	
+	private static void attach(long[] attachments, int offset, int srcIP, int dstIP, int srcPort, int dstPort, int protocol) {
+		attachments[offset] = (long)srcIP << 32 | (dstIP & 0xffffffffl);
+		attachments[offset+1] = (long)(protocol & 0xff) << 32 | (srcPort & 0xffffl) << 16 | (dstPort & 0xffffl);
+	}
+	
+	@Override
+	protected String formatKey(int slot) {
+		long[] attachments = top.getAttachments();
+		long ips = attachments[2*slot], ports = attachments[2*slot+1];
+		int protocol = (int)(ports >>> 32);
+		String proto = (protocol == NetworkFrame.PROTOCOL_TCP ? "TCP" : protocol == NetworkFrame.PROTOCOL_UDP ? "UDP" : String.valueOf(protocol));
+		return String.format("%3s %15s:%-5d > %15s:%-5d", proto, IPv4Frame.toString((int)(ips >>> 32)), (ports >>> 16) & 0xffff,
+				IPv4Frame.toString((int)ips), ports & 0xffff);
+	}
+}
@@ -0,0 +1,30 @@
+package pcap.filters.impl;
+
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.AbstractTopFilter;
+
+public class TopSource extends AbstractTopFilter {
+	
+	public final static String DESCRIPTION = "Heaviest packets Source IP, in bounded memory";
+	
+	public TopSource() {
+		super(0);
+	}
+	
+	@Override
+	protected long getKey(Packet packet) {
+		return packet.getSourceIPInt() & 0xffffffffl;
+	}
+	
+	@Override
+	protected long getKey(PacketBatch batch, int i) {
+		return batch.getSourceIPs()[i] & 0xffffffffl;
+	}
+	
+	@Override
+	protected String formatKey(int slot) {
+		return String.format("%15s", IPv4Frame.toString((int)top.getKey(slot)));
+	}
+}
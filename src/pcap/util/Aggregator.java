@@ -0,0 +1,97 @@
+package pcap.util;
+
+/**
+ * Computes sum, minimum and maximum of packet lengths and the number of flagged packets
+ * (e.g. fragmented) over whole columns of a {@link pcap.PacketBatch}.<br/>
+ * {@link #newInstance()} returns an implementation based on the Vector API
+ * ({@code jdk.incubator.vector}) when it is available (Java 16+ launched with
+ * {@code --add-modules jdk.incubator.vector}), or a scalar implementation otherwise.
+ * 
+ * @author Matthieu Labas
+ */
+public abstract class Aggregator {
+	
+	/** Name of the class implementing aggregation with the Vector API (compiled separately). */
+	private static final String VECTOR_AGGREGATOR = "pcap.util.VectorAggregator";
+	
+	/** The implementation class, or {@code null} to use the scalar implementation. */
+	private static Class<?> vectorClass;
+	static {
+		try {
+			vectorClass = Class.forName(VECTOR_AGGREGATOR);
+			((Aggregator)vectorClass.getDeclaredConstructor().newInstance()).aggregate(new int[1], new boolean[1], 1); // Fails when the module is not available
+		} catch (Throwable e) { // ClassNotFoundException, NoClassDefFoundError, ...
+			vectorClass = null;
+		}
+	}
+	
+	/**
+	 * @return A new Aggregator, using the Vector API if it is available.
+	 */
+	public static Aggregator newInstance() {
+		if (vectorClass != null) {
+			try {
+				return (Aggregator)vectorClass.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) { }
+		}
+		return new ScalarAggregator();
+	}
+	
+	/**
+	 * @return {@code true} if Aggregators are based on the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return vectorClass != null;
+	}
+	
+	/** Sum of the values of the last aggregation. */
+	public long sum;
+	
+	/** Minimum value of the last aggregation. */
+	public int min;
+	
+	/** Maximum value of the last aggregation. */
+	public int max;
+	
+	/** Number of {@code true} flags of the last aggregation. */
+	public int count;
+	
+	/**
+	 * Aggregates the first {@code n} values and flags. Results are available in {@link #sum},
+	 * {@link #min}, {@link #max} and {@link #count}.<br/>
+	 * N.B. that values are summed as 32-bits integers: {@code n} times the maximum value should
+	 * not overflow.
+	 * @param values The values to aggregate (e.g. packet lengths).
+	 * @param flags The flags to count (e.g. fragmented packets).
+	 * @param n The number of values and flags to aggregate.
+	 */
+	public abstract void aggregate(int[] values, boolean[] flags, int n);
+	
+	
+	/**
+	 * Plain loop implementation.
+	 */
+	public static class ScalarAggregator extends Aggregator {
+		
+		@Override
+		public void aggregate(int[] values, boolean[] flags, int n) {
+			long s = 0;
+			int mn = Integer.MAX_VALUE, mx = Integer.MIN_VALUE, c = 0;
+			for (int i = 0; i < n; i++) {
+				int v = values[i];
+				if (v < mn)
+					mn = v;
+				if (v > mx)
+					mx = v;
+				s += v;
+				if (flags[i])
+					c++;
+			}
+			sum = s;
+			min = mn;
+			max = mx;
+			count = c;
+		}
+	}
+
+}
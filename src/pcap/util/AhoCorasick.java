@@ -0,0 +1,150 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton finding all occurrences of a set of byte patterns in a single pass over
+ * data, whatever the number of patterns.<br/>
+ * The automaton is compiled into a complete transition table ({@code 256} entries per state), so
+ * scanning costs one array lookup per byte. Patterns ending at each state (including those ending
+ * at its suffixes) are stored in a flat array: everything is primitive and scanning does not
+ * allocate:
+ * <pre>int state = AhoCorasick.START;
+ * for (int i = off; i < off + len; i++) {
+ *     state = ac.next(state, data[i]);
+ *     for (int k = ac.getOutputStart(state); k < ac.getOutputEnd(state); k++)
+ *         ... pattern ac.getOutput(k) ends at i</pre>
+ *
+ * @author Matthieu Labas
+ */
+public class AhoCorasick {
+	
+	/** The initial state. */
+	public static final int START = 0;
+	
+	/** Transitions: next state of state {@code s} on byte {@code b} is {@code delta[s << 8 | b]}. */
+	private final int[] delta;
+	
+	/** Outputs of state {@code s} are {@code outputs[outputStart[s]]} to {@code outputs[outputStart[s+1]-1]}. */
+	private final int[] outputStart;
+	
+	/** Indexes of patterns ending at each state. */
+	private final int[] outputs;
+	
+	private final int nbPatterns;
+	
+	/**
+	 * Compiles an automaton.
+	 * @param patterns The patterns (non-empty).
+	 */
+	public AhoCorasick(byte[][] patterns) {
+		nbPatterns = patterns.length;
+		int maxStates = 1;
+		for (byte[] p : patterns) {
+			if (p.length == 0)
+				throw new IllegalArgumentException("Empty pattern!");
+			maxStates += p.length;
+		}
+		
+		// Trie (-1 for missing transitions) and patterns ending at each node
+		int[] trie = new int[maxStates << 8];
+		Arrays.fill(trie, -1);
+		int[] terminal = new int[maxStates]; // Index of the pattern + 1, or 0
+		int nbStates = 1;
+		for (int k = 0; k < patterns.length; k++) {
+			int s = START;
+			for (byte b : patterns[k]) {
+				int t = s << 8 | (b & 0xff);
+				if (trie[t] < 0)
+					trie[t] = nbStates++;
+				s = trie[t];
+			}
+			if (terminal[s] == 0) // Duplicated patterns are reported once
+				terminal[s] = k + 1;
+		}
+		
+		// Breadth-first: failure links complete the transition table, outputs are those of the state
+		// followed by those of its failure state (already computed, being shallower)
+		delta = Arrays.copyOf(trie, nbStates << 8);
+		int[] fail = new int[nbStates];
+		int[] queue = new int[nbStates];
+		int[] nbOutputs = new int[nbStates];
+		int head = 0, tail = 0;
+		for (int b = 0; b < 256; b++) {
+			int t = delta[b];
+			if (t < 0) {
+				delta[b] = START;
+			} else {
+				fail[t] = START;
+				queue[tail++] = t;
+			}
+		}
+		while (head < tail) {
+			int s = queue[head++];
+			nbOutputs[s] = (terminal[s] != 0 ? 1 : 0) + nbOutputs[fail[s]];
+			for (int b = 0; b < 256; b++) {
+				int t = delta[s << 8 | b];
+				if (t < 0) {
+					delta[s << 8 | b] = delta[fail[s] << 8 | b];
+				} else {
+					fail[t] = delta[fail[s] << 8 | b];
+					queue[tail++] = t;
+				}
+			}
+		}
+		
+		outputStart = new int[nbStates + 1];
+		for (int s = 0; s < nbStates; s++)
+			outputStart[s+1] = outputStart[s] + nbOutputs[s];
+		outputs = new int[outputStart[nbStates]];
+		for (int k = 0; k < tail; k++) { // States by increasing depth: failure states are filled first
+			int s = queue[k], o = outputStart[s];
+			if (terminal[s] != 0)
+				outputs[o++] = terminal[s] - 1;
+			System.arraycopy(outputs, outputStart[fail[s]], outputs, o, nbOutputs[fail[s]]);
+		}
+	}
+	
+	/**
+	 * @param state The current state.
+	 * @param b The next byte of data.
+	 * @return The next state.
+	 */
+	public int next(int state, byte b) {
+		return delta[state << 8 | (b & 0xff)];
+	}
+	
+	/**
+	 * @return The index of the first output of a state in {@link #getOutput(int)}.
+	 */
+	public int getOutputStart(int state) {
+		return outputStart[state];
+	}
+	
+	/**
+	 * @return The index following the last output of a state in {@link #getOutput(int)}.
+	 */
+	public int getOutputEnd(int state) {
+		return outputStart[state+1];
+	}
+	
+	/**
+	 * @param k The output index.
+	 * @return The index of the pattern.
+	 */
+	public int getOutput(int k) {
+		return outputs[k];
+	}
+	
+	public int getNbPatterns() {
+		return nbPatterns;
+	}
+	
+	/**
+	 * @return The number of states of the automaton.
+	 */
+	public int getNbStates() {
+		return outputStart.length - 1;
+	}
+
+}
@@ -0,0 +1,77 @@
+package pcap.util;
+
+/**
+ * Fast non-cryptographic hash functions used to key primitive tables and distribute flows.
+ * 
+ * @author Matthieu Labas
+ */
+public final class Hash {
+	
+	private Hash() { }
+	
+	/**
+	 * 64-bits finalizer (MurmurHash3 {@code fmix64}): every bit of the input affects every bit of
+	 * the output.
+	 * @param h The value to mix.
+	 * @return The mixed value.
+	 */
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * Hashes an IPv4 5-tuple.
+	 * @param srcIP Source IP address.
+	 * @param dstIP Destination IP address.
+	 * @param srcPort Source port.
+	 * @param dstPort Destination port.
+	 * @param protocol IP protocol number.
+	 * @return The 64-bits hash of the 5-tuple.
+	 */
+	public static long hashFlow(int srcIP, int dstIP, int srcPort, int dstPort, int protocol) {
+		long h = mix64(((long)srcIP << 32) | (dstIP & 0xffffffffl));
+		return mix64(h ^ (((long)protocol << 32) | ((srcPort & 0xffffl) << 16) | (dstPort & 0xffffl)));
+	}
+	
+	/**
+	 * Hashes an IPv4 5-tuple regardless of its direction: both directions of a connection give the
+	 * same hash.
+	 * @see #hashFlow(int, int, int, int, int)
+	 */
+	public static long hashConnection(int srcIP, int dstIP, int srcPort, int dstPort, int protocol) {
+		long src = (srcIP & 0xffffffffl) << 16 | (srcPort & 0xffff);
+		long dst = (dstIP & 0xffffffffl) << 16 | (dstPort & 0xffff);
+		if (src > dst)
+			return hashFlow(dstIP, srcIP, dstPort, srcPort, protocol);
+		return hashFlow(srcIP, dstIP, srcPort, dstPort, protocol);
+	}
+	
+	/**
+	 * Hashes bytes.
+	 * @param data The data.
+	 * @param off Offset of the first byte to hash.
+	 * @param len Number of bytes to hash.
+	 * @param seed Initial hash, to combine with other fields.
+	 * @return The 64-bits hash of the bytes.
+	 */
+	public static long hashBytes(byte[] data, int off, int len, long seed) {
+		long h = mix64(seed ^ len);
+		int i = off, end = off + len;
+		for (; i + 8 <= end; i += 8) {
+			long w = 0;
+			for (int k = 0; k < 8; k++)
+				w = w << 8 | (data[i+k] & 0xff);
+			h = mix64(h ^ w);
+		}
+		long w = 0;
+		for (; i < end; i++)
+			w = w << 8 | (data[i] & 0xff);
+		return mix64(h ^ w);
+	}
+
+}
@@ -0,0 +1,91 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch (Flajolet et al.) estimating the number of distinct 64-bits hashes added to
+ * it, in {@code 2^precision} bytes whatever the number of values.<br/>
+ * The standard error of the estimate is about {@code 1.04 / sqrt(2^precision)} (1.6% for a
+ * precision of 12, i.e. 4 kB). Small cardinalities are estimated by linear counting. Sketches of
+ * the same precision are merged by keeping the maximum of each register.<br/>
+ * Values should be well-mixed hashes (e.g. {@link Hash#mix64(long)}), as the first bits select
+ * the register and the following ones give the rank.
+ *
+ * @author Matthieu Labas
+ */
+public class HyperLogLog {
+	
+	private final int precision;
+	
+	private final byte[] registers;
+	
+	/**
+	 * @param precision Number of bits selecting a register (4 to 18).
+	 */
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException(String.format("Invalid HyperLogLog precision %d!", precision));
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+	
+	/**
+	 * Adds a hash to the sketch.
+	 * @param hash The 64-bits hash of a value.
+	 */
+	public void add(long hash) {
+		int idx = (int)(hash >>> (64 - precision));
+		// Rank of the first 1 bit after the index bits (a guard bit bounds it to 64 - precision + 1)
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1l << (precision - 1))) + 1;
+		if (rank > registers[idx])
+			registers[idx] = (byte)rank;
+	}
+	
+	/**
+	 * @return The estimated number of distinct hashes added.
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < m; i++) {
+			sum += Double.longBitsToDouble((1023l - registers[i]) << 52); // 2^-register
+			if (registers[i] == 0)
+				zeros++;
+		}
+		double alpha = (m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m));
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) // Small range: linear counting
+			estimate = m * Math.log((double)m / zeros);
+		return Math.round(estimate);
+	}
+	
+	/**
+	 * Merges another sketch into this one: the result estimates the number of distinct hashes
+	 * added to either of them.
+	 * @param other A sketch with the same precision.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("HyperLogLog sketches do not have the same precision!");
+		for (int i = 0; i < registers.length; i++)
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+	}
+	
+	public void clear() {
+		Arrays.fill(registers, (byte)0);
+	}
+	
+	public int getPrecision() {
+		return precision;
+	}
+	
+	/**
+	 * @return The relative standard error of estimates.
+	 */
+	public double getStandardError() {
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+}
@@ -0,0 +1,157 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory histogram of non-negative values with logarithmic buckets (HDR-style): each power
+ * of two is split in {@code 2^subBits} linear sub-buckets, giving a relative precision of
+ * {@code 2^-subBits} whatever the magnitude of values.<br/>
+ * Memory is allocated once: recording a value never allocates.
+ *
+ * @author Matthieu Labas
+ */
+public class LogHistogram {
+	
+	/** Number of bits of linear sub-buckets. */
+	private final int subBits;
+	
+	/** Number of sub-buckets per power of two ({@code 2^subBits}). */
+	private final int subCount;
+	
+	/** Largest value that can be recorded. Larger values are recorded as this value. */
+	private final long maxValue;
+	
+	private final long[] counts;
+	
+	private long count;
+	
+	private long min;
+	
+	private long max;
+	
+	/**
+	 * @param maxBits Number of bits of the largest value to record (e.g. 16 for values up to 65535).
+	 * @param subBits Number of bits of precision of each bucket (e.g. 4 for 1/16 = 6.25% precision).
+	 */
+	public LogHistogram(int maxBits, int subBits) {
+		if (subBits < 1 || maxBits <= subBits || maxBits > 62)
+			throw new IllegalArgumentException(String.format("Invalid histogram precision %d/%d bits!", subBits, maxBits));
+		this.subBits = subBits;
+		subCount = 1 << subBits;
+		maxValue = (1l << maxBits) - 1;
+		counts = new long[bucketIndex(maxValue) + 1];
+		clear();
+	}
+	
+	private int bucketIndex(long value) {
+		if (value < subCount)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBits;
+		return (shift + 1) * subCount + (int)((value >>> shift) - subCount);
+	}
+	
+	/**
+	 * @return The lowest value of a bucket.
+	 */
+	private long bucketLowValue(int index) {
+		if (index < subCount)
+			return index;
+		int shift = index / subCount - 1;
+		return (long)(index % subCount + subCount) << shift;
+	}
+	
+	/**
+	 * @return The highest value of a bucket.
+	 */
+	private long bucketHighValue(int index) {
+		if (index < subCount)
+			return index;
+		return bucketLowValue(index) + (1l << (index / subCount - 1)) - 1;
+	}
+	
+	/**
+	 * Records a value. Negative values are recorded as 0, values above the maximum as the maximum.
+	 * @param value The value to record.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		else if (value > maxValue)
+			value = maxValue;
+		counts[bucketIndex(value)]++;
+		if (count == 0) {
+			min = max = value;
+		} else {
+			if (value < min)
+				min = value;
+			if (value > max)
+				max = value;
+		}
+		count++;
+	}
+	
+	/**
+	 * Adds all values recorded by another histogram.
+	 * @param other A histogram with the same precision.
+	 */
+	public void add(LogHistogram other) {
+		if (other.counts.length != counts.length || other.subBits != subBits)
+			throw new IllegalArgumentException("Histograms do not have the same precision!");
+		if (other.count == 0)
+			return;
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		if (count == 0) {
+			min = other.min;
+			max = other.max;
+		} else {
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+		count += other.count;
+	}
+	
+	public void clear() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		min = max = 0;
+	}
+	
+	/**
+	 * @return The number of values recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+	
+	public long getMin() {
+		return min;
+	}
+	
+	public long getMax() {
+		return max;
+	}
+	
+	/**
+	 * @param percentile The percentile (between 0 and 100).
+	 * @return The value below which {@code percentile}% of recorded values fall, within the
+	 *     precision of buckets (middle of the bucket), or 0 if no value was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = (long)Math.ceil(percentile / 100.0 * count);
+		if (rank < 1)
+			rank = 1;
+		long n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			n += counts[i];
+			if (n >= rank) {
+				long value = (bucketLowValue(i) + bucketHighValue(i)) / 2;
+				return Math.max(min, Math.min(value, max));
+			}
+		}
+		return max;
+	}
+
+}
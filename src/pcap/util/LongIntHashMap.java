@@ -0,0 +1,179 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from {@code long} keys to {@code int} values, without boxing nor
+ * allocation once its capacity is reached.<br/>
+ * It uses linear probing and backward-shift deletion, so there are no tombstones and lookups stay
+ * fast whatever the number of removals. Entries can be iterated through their slot:
+ * <pre>for (int s = 0; s < map.capacity(); s++)
+ *     if (map.isUsed(s)) ... map.keyAt(s), map.valueAt(s)</pre>
+ *
+ * @author Matthieu Labas
+ */
+public class LongIntHashMap {
+	
+	/** Maximum load factor before the table grows. */
+	private static final float LOAD_FACTOR = 0.6f;
+	
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int mask;
+	private int size;
+	private int threshold;
+	
+	/**
+	 * @param expectedSize Number of entries the map should hold without growing.
+	 */
+	public LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+	
+	public LongIntHashMap() {
+		this(16);
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		threshold = (int)(capacity * LOAD_FACTOR);
+		size = 0;
+	}
+	
+	private int slot(long key) {
+		return (int)Hash.mix64(key) & mask;
+	}
+	
+	/**
+	 * @param key The key to look up.
+	 * @return The slot of {@code key}, or -1 if it is not in the map.
+	 */
+	public int find(long key) {
+		for (int s = slot(key); used[s]; s = (s + 1) & mask)
+			if (keys[s] == key)
+				return s;
+		return -1;
+	}
+	
+	/**
+	 * @param key The key to look up.
+	 * @param defaultValue The value returned if {@code key} is not in the map.
+	 * @return The value associated to {@code key}, or {@code defaultValue}.
+	 */
+	public int get(long key, int defaultValue) {
+		int s = find(key);
+		return s < 0 ? defaultValue : values[s];
+	}
+	
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+	
+	/**
+	 * Associates a value to a key, replacing any previous value.
+	 * @param key The key.
+	 * @param value The value.
+	 * @return The slot where the entry is stored.
+	 */
+	public int put(long key, int value) {
+		if (size >= threshold)
+			rehash(2 * keys.length);
+		int s = slot(key);
+		for (; used[s]; s = (s + 1) & mask) {
+			if (keys[s] == key) {
+				values[s] = value;
+				return s;
+			}
+		}
+		used[s] = true;
+		keys[s] = key;
+		values[s] = value;
+		size++;
+		return s;
+	}
+	
+	/**
+	 * Removes a key from the map.
+	 * @param key The key to remove.
+	 * @return {@code true} if the key was in the map.
+	 */
+	public boolean remove(long key) {
+		int s = find(key);
+		if (s < 0)
+			return false;
+		removeAt(s);
+		return true;
+	}
+	
+	/**
+	 * Removes the entry at a given slot. Following entries of the same cluster are shifted back
+	 * so that no probing sequence is broken.
+	 * @param s The slot of the entry to remove.
+	 */
+	public void removeAt(int s) {
+		int free = s;
+		for (int i = (s + 1) & mask; used[i]; i = (i + 1) & mask) {
+			int home = slot(keys[i]);
+			// Move entry 'i' to 'free' if its home slot is not in ]free, i]
+			if (((i - home) & mask) >= ((i - free) & mask)) {
+				keys[free] = keys[i];
+				values[free] = values[i];
+				free = i;
+			}
+		}
+		used[free] = false;
+		size--;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i])
+				put(oldKeys[i], oldValues[i]);
+	}
+	
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(used, false);
+			size = 0;
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return The number of slots of the table.
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+	
+	public boolean isUsed(int slot) {
+		return used[slot];
+	}
+	
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	public int valueAt(int slot) {
+		return values[slot];
+	}
+	
+	public void setValueAt(int slot, int value) {
+		values[slot] = value;
+	}
+
+}
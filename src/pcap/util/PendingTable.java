@@ -0,0 +1,169 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Bounded open-addressing table of pending events (e.g. TCP segments waiting for their ACK),
+ * keyed by a 64-bits hash and holding the time of the event and an {@code int} value.<br/>
+ * Memory is allocated once and never grows: a key can only be stored in the {@link #PROBES}
+ * slots following its home slot. Expired entries are reused first, then the oldest entry of the
+ * probe window is evicted, so that a flood of events (e.g. SYN flood) cannot exhaust the table:
+ * it only shortens how long entries stay.<br/>
+ * An event added again while still pending (e.g. a retransmission) is marked as ambiguous rather
+ * than restarted.
+ *
+ * @author Matthieu Labas
+ */
+public class PendingTable {
+	
+	/** Number of slots a key can be stored in. */
+	public static final int PROBES = 8;
+	
+	private final long[] keys;
+	
+	/** Time of the event (us), or -1 for a free slot. */
+	private final long[] times;
+	
+	private final int[] values;
+	
+	private final boolean[] ambiguous;
+	
+	private final int mask;
+	
+	/** Delay after which an entry expires (us). */
+	private final long timeoutMicros;
+	
+	private int size;
+	
+	/** Number of entries evicted before they expired. */
+	private long evictions;
+	
+	/**
+	 * @param capacity Number of entries (rounded up to a power of two).
+	 * @param timeoutMicros Delay after which an entry expires (us).
+	 */
+	public PendingTable(int capacity, long timeoutMicros) {
+		int c = PROBES;
+		while (c < capacity)
+			c <<= 1;
+		keys = new long[c];
+		times = new long[c];
+		values = new int[c];
+		ambiguous = new boolean[c];
+		mask = c - 1;
+		this.timeoutMicros = timeoutMicros;
+		clear();
+	}
+	
+	private int slot(long key) {
+		return (int)Hash.mix64(key) & mask;
+	}
+	
+	private boolean isLive(int s, long us) {
+		return times[s] >= 0 && us - times[s] < timeoutMicros;
+	}
+	
+	/**
+	 * Adds an event.
+	 * @param key The key of the event.
+	 * @param us The time of the event (us).
+	 * @param value The value attached to the event.
+	 * @return {@code true} if the event was added, {@code false} if it was already pending (it is
+	 *     then marked as ambiguous).
+	 */
+	public boolean put(long key, long us, int value) {
+		int home = slot(key), victim = -1, oldest = -1;
+		for (int k = 0; k < PROBES; k++) {
+			int s = (home + k) & mask;
+			if (isLive(s, us)) {
+				if (keys[s] == key) {
+					ambiguous[s] = true;
+					return false;
+				}
+				if (oldest < 0 || times[s] < times[oldest])
+					oldest = s;
+			} else if (victim < 0) { // Free or expired slot
+				victim = s;
+			}
+		}
+		if (victim < 0) {
+			victim = oldest;
+			evictions++;
+		} else if (times[victim] < 0) {
+			size++;
+		}
+		keys[victim] = key;
+		times[victim] = us;
+		values[victim] = value;
+		ambiguous[victim] = false;
+		return true;
+	}
+	
+	/**
+	 * @param key The key of the event.
+	 * @param us The current time (us), entries older than the timeout being ignored.
+	 * @return The slot of the pending event, or -1 if it is not pending.
+	 */
+	public int find(long key, long us) {
+		int home = slot(key);
+		for (int k = 0; k < PROBES; k++) {
+			int s = (home + k) & mask;
+			if (keys[s] == key && isLive(s, us))
+				return s;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes the event at a given slot.
+	 */
+	public void removeAt(int s) {
+		if (times[s] >= 0) {
+			times[s] = -1;
+			size--;
+		}
+	}
+	
+	public void clear() {
+		Arrays.fill(times, -1);
+		size = 0;
+		evictions = 0;
+	}
+	
+	/**
+	 * @return The number of entries, including expired entries not reused yet.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return keys.length;
+	}
+	
+	/**
+	 * @return The number of entries evicted before they expired, because the table was full.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * @return The time of the event at slot {@code s} (us).
+	 */
+	public long getTime(int s) {
+		return times[s];
+	}
+	
+	public int getValue(int s) {
+		return values[s];
+	}
+	
+	/**
+	 * @return {@code true} if the event at slot {@code s} was added more than once.
+	 */
+	public boolean isAmbiguous(int s) {
+		return ambiguous[s];
+	}
+
+}
@@ -0,0 +1,365 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Table tracking the sequence numbers of many streams (e.g. RTP SSRCs), identified by a
+ * {@code long} key, to count losses, duplicates and reordered packets without allocating per
+ * packet.<br/>
+ * Sequence numbers are extended beyond their wrap-around and validated as in RFC 3550 (A.1): a
+ * forward jump smaller than {@code maxDropout} is a loss, a backward jump within the reordering
+ * window is a late or duplicated packet, anything else is discarded as a bad sequence number
+ * unless the next packet follows it, in which case the stream is considered restarted.<br/>
+ * Packets received in the reordering window are kept in a bitmap, so duplicates are told apart
+ * from reordered packets. Losses are the difference between expected and received packets, so
+ * packets arriving late fill the holes they left.<br/>
+ * Streams are given dense indexes (from 0 to {@link #size()} - 1) in order of appearance, that
+ * callers can use to keep their own per-stream data in arrays.
+ *
+ * @author Matthieu Labas
+ */
+public class SequenceTable {
+	
+	/** The first packet of a stream. */
+	public static final int SEQ_FIRST = 0;
+	/** A packet following the last one. */
+	public static final int SEQ_IN_ORDER = 1;
+	/** A packet after a gap: {@link #getLastGap()} packets are missing. */
+	public static final int SEQ_GAP = 2;
+	/** A packet older than the last one, filling a hole: {@link #getLastGap()} is its depth. */
+	public static final int SEQ_REORDERED = 3;
+	/** A packet already received. */
+	public static final int SEQ_DUPLICATE = 4;
+	/** A packet too far from the sequence, discarded. */
+	public static final int SEQ_BAD = 5;
+	/** A packet restarting the sequence after a bad packet it follows. */
+	public static final int SEQ_RESTART = 6;
+	
+	/** Mask of sequence numbers bits. */
+	private final long mask;
+	
+	/** Size of the reordering window (power of two, multiple of 64). */
+	private final int window;
+	
+	/** Number of bitmap words per stream. */
+	private final int words;
+	
+	/** Largest forward jump considered as a loss. */
+	private final long maxDropout;
+	
+	/** Stream key to stream index. */
+	private final LongIntHashMap index;
+	
+	private long[] keys;
+	/** Highest extended sequence number received. */
+	private long[] maxSeq;
+	/** Extended sequence number before the first one of the current sequence. */
+	private long[] baseSeq;
+	/** Sequence number expected to restart the sequence after a bad packet. */
+	private long[] badSeq;
+	/** {@code true} when {@link #badSeq} is set (all values are valid 64-bits sequence numbers). */
+	private boolean[] badSeqSet;
+	/** Packets expected in previous sequences, before restarts. */
+	private long[] expectedPrior;
+	private long[] received;
+	private long[] duplicates;
+	private long[] reordered;
+	private long[] bad;
+	private int[] restarts;
+	private int[] maxReorder;
+	private long[] maxGap;
+	/** Bitmap of received sequence numbers in the reordering window ({@link #words} per stream). */
+	private long[] bitmap;
+	
+	private int size;
+	
+	/** Gap or reordering depth of the last packet. */
+	private long lastGap;
+	
+	/**
+	 * @param seqBits Number of bits of sequence numbers (1 to 64).
+	 * @param window Size of the reordering window (rounded up to a power of two, at least 64).
+	 * @param maxDropout Largest forward jump considered as a loss (e.g. 3000 for RTP).
+	 */
+	public SequenceTable(int seqBits, int window, long maxDropout) {
+		if (seqBits < 1 || seqBits > 64)
+			throw new IllegalArgumentException(String.format("Invalid sequence number size %d bits!", seqBits));
+		mask = (seqBits == 64 ? -1l : (1l << seqBits) - 1);
+		int w = 64;
+		while (w < window && w < (1 << 24))
+			w <<= 1;
+		this.window = w;
+		words = w / 64;
+		this.maxDropout = maxDropout;
+		index = new LongIntHashMap();
+		allocate(16);
+		size = 0;
+	}
+	
+	private void allocate(int capacity) {
+		keys = copy(keys, capacity);
+		maxSeq = copy(maxSeq, capacity);
+		baseSeq = copy(baseSeq, capacity);
+		badSeq = copy(badSeq, capacity);
+		badSeqSet = copy(badSeqSet, capacity);
+		expectedPrior = copy(expectedPrior, capacity);
+		received = copy(received, capacity);
+		duplicates = copy(duplicates, capacity);
+		reordered = copy(reordered, capacity);
+		bad = copy(bad, capacity);
+		restarts = copy(restarts, capacity);
+		maxReorder = copy(maxReorder, capacity);
+		maxGap = copy(maxGap, capacity);
+		bitmap = copy(bitmap, capacity * words);
+	}
+	
+	private static long[] copy(long[] array, int length) {
+		return (array == null ? new long[length] : Arrays.copyOf(array, length));
+	}
+	
+	private static int[] copy(int[] array, int length) {
+		return (array == null ? new int[length] : Arrays.copyOf(array, length));
+	}
+	
+	private static boolean[] copy(boolean[] array, int length) {
+		return (array == null ? new boolean[length] : Arrays.copyOf(array, length));
+	}
+	
+	/**
+	 * @param key The stream key.
+	 * @return The stream index, or -1 if the stream is unknown.
+	 */
+	public int find(long key) {
+		return index.get(key, -1);
+	}
+	
+	/**
+	 * @param key The stream key.
+	 * @return The stream index, created if the stream is unknown.
+	 */
+	public int index(long key) {
+		int s = index.find(key);
+		if (s >= 0)
+			return index.valueAt(s);
+		if (size == keys.length)
+			allocate(2 * size);
+		int i = size++;
+		index.put(key, i);
+		keys[i] = key;
+		maxSeq[i] = baseSeq[i] = expectedPrior[i] = 0;
+		badSeqSet[i] = false;
+		received[i] = duplicates[i] = reordered[i] = bad[i] = maxGap[i] = 0;
+		restarts[i] = maxReorder[i] = 0;
+		Arrays.fill(bitmap, i * words, (i + 1) * words, 0);
+		return i;
+	}
+	
+	/**
+	 * @return {@code true} if the extended sequence number is marked as received.
+	 */
+	private boolean isReceived(int i, long seq) {
+		int bit = (int)(seq & (window - 1));
+		return (bitmap[i * words + (bit >>> 6)] & (1l << bit)) != 0;
+	}
+	
+	private void setReceived(int i, long seq, boolean set) {
+		int bit = (int)(seq & (window - 1));
+		if (set)
+			bitmap[i * words + (bit >>> 6)] |= 1l << bit;
+		else
+			bitmap[i * words + (bit >>> 6)] &= ~(1l << bit);
+	}
+	
+	/**
+	 * Starts a new sequence on a stream.
+	 */
+	private void start(int i, long seq) {
+		maxSeq[i] = seq;
+		baseSeq[i] = seq - 1;
+		badSeqSet[i] = false;
+		Arrays.fill(bitmap, i * words, (i + 1) * words, 0);
+		setReceived(i, seq, true);
+		received[i]++;
+	}
+	
+	/**
+	 * Accounts for a packet of a stream.
+	 * @param i The stream index.
+	 * @param seq The packet sequence number.
+	 * @return The packet status ({@code SEQ_*} constants). The gap or reordering depth is then
+	 *     available through {@link #getLastGap()}.
+	 */
+	public int update(int i, long seq) {
+		seq &= mask;
+		lastGap = 0;
+		if (received[i] == 0 && bad[i] == 0) {
+			start(i, seq);
+			return SEQ_FIRST;
+		}
+		long max = maxSeq[i];
+		long fwd = (seq - max) & mask;
+		long back = (max - seq) & mask;
+		if (fwd > 0 && fwd < maxDropout) { // In order, with permissible gap
+			long n = Math.min(fwd, window);
+			for (long s = max + fwd - n + 1; s < max + fwd; s++)
+				setReceived(i, s, false);
+			setReceived(i, max + fwd, true);
+			maxSeq[i] = max + fwd;
+			received[i]++;
+			if (fwd == 1)
+				return SEQ_IN_ORDER;
+			lastGap = fwd - 1;
+			if (lastGap > maxGap[i])
+				maxGap[i] = lastGap;
+			return SEQ_GAP;
+		}
+		if (back >= 0 && back < window) { // Duplicate or reordered
+			if (isReceived(i, max - back)) {
+				duplicates[i]++;
+				return SEQ_DUPLICATE;
+			}
+			setReceived(i, max - back, true);
+			received[i]++;
+			reordered[i]++;
+			lastGap = back;
+			if (back > maxReorder[i])
+				maxReorder[i] = (int)back;
+			return SEQ_REORDERED;
+		}
+		if (badSeqSet[i] && seq == badSeq[i]) { // Two sequential packets: the source restarted
+			expectedPrior[i] += max - baseSeq[i];
+			bad[i]--;
+			restarts[i]++;
+			start(i, seq);
+			setReceived(i, seq - 1, true);
+			baseSeq[i]--;
+			received[i]++;
+			return SEQ_RESTART;
+		}
+		badSeq[i] = (seq + 1) & mask;
+		badSeqSet[i] = true;
+		bad[i]++;
+		return SEQ_BAD;
+	}
+	
+	/**
+	 * @return The number of missing packets of the last {@link #SEQ_GAP} packet, or the depth of
+	 *     the last {@link #SEQ_REORDERED} packet.
+	 */
+	public long getLastGap() {
+		return lastGap;
+	}
+	
+	/**
+	 * Adds the counts of a stream of another table, with the same sequence number size, to the
+	 * stream of the same key.
+	 * @param o The other table.
+	 * @param j The stream index in {@code o}.
+	 * @return The index of the stream in this table.
+	 */
+	public int combine(SequenceTable o, int j) {
+		int i = find(o.keys[j]);
+		if (i < 0) { // New stream: take its whole state
+			i = index(o.keys[j]);
+			maxSeq[i] = o.maxSeq[j];
+			baseSeq[i] = o.baseSeq[j];
+			badSeq[i] = o.badSeq[j];
+			badSeqSet[i] = o.badSeqSet[j];
+			expectedPrior[i] = o.expectedPrior[j];
+			if (o.words == words)
+				System.arraycopy(o.bitmap, j * words, bitmap, i * words, words);
+		} else {
+			expectedPrior[i] += o.getExpected(j);
+		}
+		received[i] += o.received[j];
+		duplicates[i] += o.duplicates[j];
+		reordered[i] += o.reordered[j];
+		bad[i] += o.bad[j];
+		restarts[i] += o.restarts[j];
+		maxReorder[i] = Math.max(maxReorder[i], o.maxReorder[j]);
+		maxGap[i] = Math.max(maxGap[i], o.maxGap[j]);
+		return i;
+	}
+	
+	public void clear() {
+		index.clear();
+		size = 0;
+	}
+	
+	/**
+	 * @return The number of streams.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public long getKey(int i) {
+		return keys[i];
+	}
+	
+	/**
+	 * @return The highest sequence number received (not extended).
+	 */
+	public long getMaxSeq(int i) {
+		return maxSeq[i] & mask;
+	}
+	
+	/**
+	 * @return The number of packets expected from the sequence numbers.
+	 */
+	public long getExpected(int i) {
+		return expectedPrior[i] + maxSeq[i] - baseSeq[i];
+	}
+	
+	/**
+	 * @return The number of distinct packets received (neither duplicated nor bad).
+	 */
+	public long getReceived(int i) {
+		return received[i];
+	}
+	
+	/**
+	 * @return The number of packets lost (expected but not received).
+	 */
+	public long getLost(int i) {
+		return Math.max(0, getExpected(i) - received[i]);
+	}
+	
+	/**
+	 * @return The largest number of packets missing in a row when they were detected (before
+	 *     late packets could fill the gap).
+	 */
+	public long getMaxGap(int i) {
+		return maxGap[i];
+	}
+	
+	public long getDuplicates(int i) {
+		return duplicates[i];
+	}
+	
+	public long getReordered(int i) {
+		return reordered[i];
+	}
+	
+	/**
+	 * @return The largest reordering depth (in packets).
+	 */
+	public int getMaxReorder(int i) {
+		return maxReorder[i];
+	}
+	
+	/**
+	 * @return The number of packets discarded because of bad sequence numbers.
+	 */
+	public long getBad(int i) {
+		return bad[i];
+	}
+	
+	/**
+	 * @return The number of times the sequence restarted.
+	 */
+	public int getRestarts(int i) {
+		return restarts[i];
+	}
+
+}
@@ -0,0 +1,270 @@
+package pcap.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Space-Saving summary (Metwally et al.) keeping the heaviest {@code long} keys of a stream in a
+ * fixed number of counters, whatever the number of distinct keys.<br/>
+ * When a new key arrives and all counters are used, it replaces the key with the smallest count
+ * and inherits that count as its error: every count over-estimates the true weight of its key by
+ * at most its error, and any key heavier than {@code total / capacity} is guaranteed to be kept.
+ * <br/>
+ * Counters are kept in primitive arrays with a min-heap of counts, so adding a weight costs one
+ * hash lookup and {@code O(log(capacity))} swaps, without allocation. Each counter can carry
+ * {@code attachmentWidth} {@code long} values set by the caller (e.g. flow details), which follow
+ * their key when summaries are merged.
+ *
+ * @author Matthieu Labas
+ */
+public class SpaceSaving {
+	
+	private final int capacity;
+	
+	private final int attachmentWidth;
+	
+	/** Key to counter slot. */
+	private final LongIntHashMap slots;
+	
+	private final long[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final long[] attachments;
+	
+	/** Min-heap of slots, ordered by count. */
+	private final int[] heap;
+	
+	/** Position of slots in {@link #heap}. */
+	private final int[] heapPos;
+	
+	private int size;
+	
+	/** Total weight added. */
+	private long total;
+	
+	/**
+	 * @param capacity Number of counters.
+	 * @param attachmentWidth Number of {@code long} values attached to each counter.
+	 */
+	public SpaceSaving(int capacity, int attachmentWidth) {
+		if (capacity < 1)
+			throw new IllegalArgumentException(String.format("Invalid number of counters %d!", capacity));
+		this.capacity = capacity;
+		this.attachmentWidth = attachmentWidth;
+		slots = new LongIntHashMap(capacity);
+		keys = new long[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		attachments = new long[capacity * attachmentWidth];
+		heap = new int[capacity];
+		heapPos = new int[capacity];
+		size = 0;
+		total = 0;
+	}
+	
+	public SpaceSaving(int capacity) {
+		this(capacity, 0);
+	}
+	
+	/**
+	 * Adds a weight to a key.
+	 * @param key The key.
+	 * @param weight The weight to add (e.g. 1 packet, or its number of bytes).
+	 * @return The slot of the counter of {@code key}.
+	 */
+	public int add(long key, long weight) {
+		total += weight;
+		int s = slots.get(key, -1);
+		if (s < 0) {
+			if (size < capacity) { // Free counter
+				s = size;
+				heap[size] = s;
+				heapPos[s] = size;
+				size++;
+				counts[s] = errors[s] = 0;
+			} else { // Replace the smallest counter
+				s = heap[0];
+				slots.remove(keys[s]);
+				errors[s] = counts[s];
+			}
+			keys[s] = key;
+			slots.put(key, s);
+			if (attachmentWidth > 0)
+				Arrays.fill(attachments, s * attachmentWidth, (s + 1) * attachmentWidth, 0);
+		}
+		counts[s] += weight;
+		siftUp(heapPos[s]); // New counters are added at the bottom of the heap
+		siftDown(heapPos[s]);
+		return s;
+	}
+	
+	private void swap(int i, int j) {
+		int si = heap[i], sj = heap[j];
+		heap[i] = sj;
+		heapPos[sj] = i;
+		heap[j] = si;
+		heapPos[si] = j;
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			int p = (i - 1) / 2;
+			if (counts[heap[p]] <= counts[heap[i]])
+				return;
+			swap(i, p);
+			i = p;
+		}
+	}
+	
+	private void siftDown(int i) {
+		for (;;) {
+			int l = 2 * i + 1;
+			if (l >= size)
+				return;
+			int c = (l + 1 < size && counts[heap[l+1]] < counts[heap[l]] ? l + 1 : l);
+			if (counts[heap[c]] >= counts[heap[i]])
+				return;
+			swap(i, c);
+			i = c;
+		}
+	}
+	
+	/**
+	 * @return The count a key absent from the summary may have at most.
+	 */
+	public long getMinCount() {
+		return (size < capacity ? 0 : counts[heap[0]]);
+	}
+	
+	/**
+	 * Merges another summary into this one (Agarwal et al., "Mergeable summaries"): counts and
+	 * errors of keys are added, a key absent from a full summary being given its minimum count as
+	 * both count and error, then the heaviest keys are kept.
+	 * @param o The other summary, with the same attachment width.
+	 */
+	public void merge(SpaceSaving o) {
+		if (o.size == 0)
+			return;
+		long min1 = getMinCount(), min2 = o.getMinCount();
+		int n = size + o.size;
+		long[] mKeys = new long[n], mCounts = new long[n], mErrors = new long[n];
+		long[] mAttachments = new long[n * attachmentWidth];
+		int m = 0;
+		for (int i = 0; i < size; i++, m++) {
+			int j = o.slots.get(keys[i], -1);
+			mKeys[m] = keys[i];
+			mCounts[m] = counts[i] + (j < 0 ? min2 : o.counts[j]);
+			mErrors[m] = errors[i] + (j < 0 ? min2 : o.errors[j]);
+			System.arraycopy(attachments, i * attachmentWidth, mAttachments, m * attachmentWidth, attachmentWidth);
+		}
+		for (int j = 0; j < o.size; j++) {
+			if (slots.containsKey(o.keys[j]))
+				continue;
+			mKeys[m] = o.keys[j];
+			mCounts[m] = o.counts[j] + min1;
+			mErrors[m] = o.errors[j] + min1;
+			System.arraycopy(o.attachments, j * attachmentWidth, mAttachments, m * attachmentWidth, attachmentWidth);
+			m++;
+		}
+		long mTotal = total + o.total;
+		
+		// Keep the 'capacity' heaviest keys
+		int[] order = sortByCount(mCounts, m);
+		clear();
+		for (int k = 0; k < Math.min(m, capacity); k++) {
+			int i = order[k];
+			int s = size++;
+			keys[s] = mKeys[i];
+			counts[s] = mCounts[i];
+			errors[s] = mErrors[i];
+			System.arraycopy(mAttachments, i * attachmentWidth, attachments, s * attachmentWidth, attachmentWidth);
+			slots.put(keys[s], s);
+		}
+		// Slots sorted by decreasing count: the reversed order is a valid min-heap
+		for (int s = 0; s < size; s++) {
+			heap[s] = size - 1 - s;
+			heapPos[size - 1 - s] = s;
+		}
+		total = mTotal;
+	}
+	
+	/**
+	 * @return Indexes of the first {@code n} counts, by decreasing count.
+	 */
+	private static int[] sortByCount(final long[] counts, int n) {
+		Integer[] idx = new Integer[n];
+		for (int i = 0; i < n; i++)
+			idx[i] = i;
+		Arrays.sort(idx, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return counts[i1] > counts[i2] ? -1 : (counts[i1] < counts[i2] ? 1 : 0);
+			}
+		});
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = idx[i];
+		return order;
+	}
+	
+	/**
+	 * @param k Maximum number of slots to return.
+	 * @return Slots of the {@code k} heaviest keys, by decreasing count.
+	 */
+	public int[] top(int k) {
+		int[] order = sortByCount(counts, size);
+		return (k < size ? Arrays.copyOf(order, k) : order);
+	}
+	
+	public void clear() {
+		slots.clear();
+		size = 0;
+		total = 0;
+	}
+	
+	/**
+	 * @return The number of counters used.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * @return The total weight added to the summary.
+	 */
+	public long getTotal() {
+		return total;
+	}
+	
+	public long getKey(int slot) {
+		return keys[slot];
+	}
+	
+	/**
+	 * @return The (over-estimated) count of the key of a slot.
+	 */
+	public long getCount(int slot) {
+		return counts[slot];
+	}
+	
+	/**
+	 * @return The maximum over-estimation of the count of a slot: the true count is between
+	 *     {@code getCount(slot) - getError(slot)} and {@code getCount(slot)}.
+	 */
+	public long getError(int slot) {
+		return errors[slot];
+	}
+	
+	/**
+	 * @return The attachments of all slots: those of slot {@code s} start at index
+	 *     {@code s * attachmentWidth}.
+	 */
+	public long[] getAttachments() {
+		return attachments;
+	}
+
+}
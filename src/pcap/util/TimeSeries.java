@@ -0,0 +1,163 @@
+package pcap.util;
+
+import java.util.Arrays;
+
+/**
+ * Ring of fixed-duration time buckets (in packet time), each holding a few counters (e.g.
+ * packets, bytes and losses), to compute rolling sums, peaks and dips over sliding windows.<br/>
+ * Buckets are allocated once: moving forward in time only clears the buckets that are reused, and
+ * values older than the ring are dropped.
+ *
+ * @author Matthieu Labas
+ */
+public class TimeSeries {
+	
+	/** Duration of a bucket (us). */
+	private final long bucketMicros;
+	
+	private final int nBuckets;
+	
+	private final int nColumns;
+	
+	/** Values of bucket {@code b} and column {@code c} are at {@code (b % nBuckets) * nColumns + c}. */
+	private final long[] values;
+	
+	/** Number of the first bucket since the series started, or -1 if empty. */
+	private long first;
+	
+	/** Number of the current (latest) bucket. */
+	private long current;
+	
+	/**
+	 * @param bucketMicros Duration of a bucket (us).
+	 * @param nBuckets Number of buckets in the ring.
+	 * @param nColumns Number of counters per bucket.
+	 */
+	public TimeSeries(long bucketMicros, int nBuckets, int nColumns) {
+		if (bucketMicros <= 0 || nBuckets < 2 || nColumns < 1)
+			throw new IllegalArgumentException(String.format("Invalid time series %d us x %d buckets!", bucketMicros, nBuckets));
+		this.bucketMicros = bucketMicros;
+		this.nBuckets = nBuckets;
+		this.nColumns = nColumns;
+		values = new long[nBuckets * nColumns];
+		first = current = -1;
+	}
+	
+	private int offset(long bucket) {
+		return (int)(bucket % nBuckets) * nColumns;
+	}
+	
+	/**
+	 * Moves the current bucket forward to a given time, clearing the buckets in between.
+	 * @param us The time (us).
+	 */
+	public void advance(long us) {
+		if (us < 0)
+			return;
+		long b = us / bucketMicros;
+		if (first < 0) {
+			first = current = b;
+			return;
+		}
+		if (b <= current)
+			return;
+		long n = Math.min(b - current, nBuckets);
+		for (long k = b - n + 1; k <= b; k++)
+			Arrays.fill(values, offset(k), offset(k) + nColumns, 0);
+		current = b;
+	}
+	
+	/**
+	 * Adds a value to a counter of the bucket of a given time.
+	 * @param us The time (us).
+	 * @param column The counter.
+	 * @param value The value to add.
+	 */
+	public void add(long us, int column, long value) {
+		if (us < 0)
+			return;
+		advance(us);
+		long b = us / bucketMicros;
+		if (b <= current - nBuckets) // Older than the ring
+			return;
+		values[offset(b) + column] += value;
+	}
+	
+	/**
+	 * @return The number of complete buckets available (at most the ring size minus one, the
+	 *     current bucket being still filled).
+	 */
+	public int available() {
+		return (first < 0 ? 0 : (int)Math.min(current - first, nBuckets - 1));
+	}
+	
+	/**
+	 * @param column The counter.
+	 * @param n Number of complete buckets, before the current one.
+	 * @return The sum of the counter over the last {@code n} complete buckets.
+	 */
+	public long sum(int column, int n) {
+		long sum = 0;
+		for (long b = current - Math.min(n, available()); b < current; b++)
+			sum += values[offset(b) + column];
+		return sum;
+	}
+	
+	/**
+	 * @return The highest value of the counter in the last {@code n} complete buckets.
+	 */
+	public long max(int column, int n) {
+		long max = Long.MIN_VALUE;
+		for (long b = current - Math.min(n, available()); b < current; b++)
+			max = Math.max(max, values[offset(b) + column]);
+		return (max == Long.MIN_VALUE ? 0 : max);
+	}
+	
+	/**
+	 * @return The lowest value of the counter in the last {@code n} complete buckets.
+	 */
+	public long min(int column, int n) {
+		long min = Long.MAX_VALUE;
+		for (long b = current - Math.min(n, available()); b < current; b++)
+			min = Math.min(min, values[offset(b) + column]);
+		return (min == Long.MAX_VALUE ? 0 : min);
+	}
+	
+	/**
+	 * Adds the buckets of another series, with the same bucket duration and columns, to this one.
+	 * @param o The other series.
+	 */
+	public void merge(TimeSeries o) {
+		if (o.first < 0)
+			return;
+		if (o.bucketMicros != bucketMicros || o.nColumns != nColumns)
+			throw new IllegalArgumentException("Time series do not have the same buckets!");
+		advance(o.current * bucketMicros);
+		if (o.first < first)
+			first = o.first;
+		long from = Math.max(o.current - o.nBuckets + 1, Math.max(o.first, current - nBuckets + 1));
+		for (long b = from; b <= o.current; b++)
+			for (int c = 0; c < nColumns; c++)
+				values[offset(b) + c] += o.values[o.offset(b) + c];
+	}
+	
+	public void clear() {
+		Arrays.fill(values, 0);
+		first = current = -1;
+	}
+	
+	/**
+	 * @return The duration of a bucket (us).
+	 */
+	public long getBucketMicros() {
+		return bucketMicros;
+	}
+	
+	/**
+	 * @return The number of buckets in the ring.
+	 */
+	public int getNbBuckets() {
+		return nBuckets;
+	}
+
+}
@@ -0,0 +1,110 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pcap.util.AhoCorasick;
+
+public class TestAhoCorasick {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/**
+	 * @return The matches found by the automaton, as sorted {@code "<end>:<pattern>"}.
+	 */
+	private static List<String> scan(AhoCorasick ac, byte[] data) {
+		List<String> matches = new ArrayList<String>();
+		int state = AhoCorasick.START;
+		for (int i = 0; i < data.length; i++) {
+			state = ac.next(state, data[i]);
+			for (int k = ac.getOutputStart(state); k < ac.getOutputEnd(state); k++)
+				matches.add(i+":"+ac.getOutput(k));
+		}
+		Collections.sort(matches);
+		return matches;
+	}
+	
+	/**
+	 * @return The matches found by comparing every pattern at every position, duplicated patterns
+	 *     being reported once (as their first occurrence in {@code patterns}).
+	 */
+	private static List<String> naive(byte[][] patterns, byte[] data) {
+		List<String> matches = new ArrayList<String>();
+		for (int k = 0; k < patterns.length; k++) {
+			boolean duplicate = false;
+			for (int j = 0; j < k && !duplicate; j++)
+				duplicate = Arrays.equals(patterns[j], patterns[k]);
+			if (duplicate)
+				continue;
+			byte[] p = patterns[k];
+			for (int i = 0; i + p.length <= data.length; i++) {
+				int n = 0;
+				while (n < p.length && data[i+n] == p[n])
+					n++;
+				if (n == p.length)
+					matches.add((i + p.length - 1)+":"+k);
+			}
+		}
+		Collections.sort(matches);
+		return matches;
+	}
+	
+	private static byte[][] bytes(String... strings) {
+		byte[][] b = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++)
+			b[i] = strings[i].getBytes();
+		return b;
+	}
+	
+	public static void main(String[] args) {
+		// Overlapping patterns, and patterns that are suffixes of others
+		byte[][] patterns = bytes("he", "she", "his", "hers", "e");
+		AhoCorasick ac = new AhoCorasick(patterns);
+		List<String> matches = scan(ac, "ushers".getBytes());
+		check(matches.equals(naive(patterns, "ushers".getBytes())), "ushers: %s", matches);
+		check(matches.size() == 4 && matches.contains("3:0") && matches.contains("3:1") && matches.contains("3:4") && matches.contains("5:3"), "ushers: %s", matches);
+		
+		// Repeated pattern overlapping itself, duplicated pattern reported once
+		patterns = bytes("aa", "aa", "a");
+		matches = scan(new AhoCorasick(patterns), "aaaa".getBytes());
+		check(matches.equals(naive(patterns, "aaaa".getBytes())) && matches.size() == 7, "aaaa: %s", matches);
+		
+		// Random binary patterns and data over a small alphabet, so that outputs overlap a lot
+		Random rnd = new Random(42);
+		for (int n = 0; n < 200; n++) {
+			patterns = new byte[1 + rnd.nextInt(20)][];
+			for (int k = 0; k < patterns.length; k++) {
+				patterns[k] = new byte[1 + rnd.nextInt(5)];
+				for (int i = 0; i < patterns[k].length; i++)
+					patterns[k][i] = (byte)(rnd.nextBoolean() ? 0xff : rnd.nextInt(3));
+			}
+			byte[] data = new byte[200];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte)(rnd.nextBoolean() ? 0xff : rnd.nextInt(3));
+			List<String> expected = naive(patterns, data);
+			matches = scan(new AhoCorasick(patterns), data);
+			check(matches.equals(expected), "random %d: %d matches, expected %d", n, matches.size(), expected.size());
+		}
+		
+		// Empty patterns are rejected
+		try {
+			new AhoCorasick(new byte[][] { "a".getBytes(), new byte[0] });
+			check(false, "empty pattern accepted");
+		} catch (IllegalArgumentException e) { }
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
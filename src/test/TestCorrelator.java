@@ -0,0 +1,105 @@
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pcap.Correlator;
+import pcap.PCAPReader;
+
+public class TestCorrelator {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/** Timestamp of the first source packet (us). */
+	private static final long US0 = 1000000000000l;
+	
+	/**
+	 * PCAP capture of UDP packets from 10.0.0.1:5000 to 239.0.0.1:6000.
+	 */
+	private static class Capture {
+		
+		private final ByteBuffer buf = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+		
+		Capture() {
+			buf.putInt(0xa1b2c3d4).putShort((short)2).putShort((short)4).putInt(0).putInt(0).putInt(65535).putInt(1);
+		}
+		
+		/**
+		 * Adds packet {@code n} of the stream (identified by its IP ID and data).
+		 * @param us The packet timestamp (us).
+		 */
+		Capture add(int n, long us) {
+			buf.putInt((int)(us / 1000000)).putInt((int)(us % 1000000)).putInt(14 + 20 + 8 + 4).putInt(14 + 20 + 8 + 4);
+			buf.order(ByteOrder.BIG_ENDIAN);
+			buf.put(new byte[] { 1, 0, 0x5e, 0, 0, 1, 0, 0, 0, 0, 0, 1 }).putShort((short)0x0800);
+			buf.put((byte)0x45).put((byte)0).putShort((short)(20 + 8 + 4)).putShort((short)n).putShort((short)0);
+			buf.put((byte)64).put((byte)17).putShort((short)0).putInt(0x0a000001).putInt(0xef000001);
+			buf.putShort((short)5000).putShort((short)6000).putShort((short)(8 + 4)).putShort((short)0);
+			buf.putInt(n);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			return this;
+		}
+		
+		PCAPReader reader() throws IOException {
+			return new PCAPReader(new ByteArrayInputStream(buf.array(), 0, buf.position()));
+		}
+	}
+	
+	private static long ms(double ms) {
+		return US0 + (long)(ms * 1000);
+	}
+	
+	public static void main(String[] args) throws IOException {
+		// Packets sent every 10 ms. #0 is stamped 20 ms before being sent (clocks not synchronized),
+		// #2 is lost, #3 is duplicated, #4 and #5 are swapped, #6 is received after the window
+		// (1000 ms): lost, then unknown.
+		Capture source = new Capture();
+		for (int n = 0; n < 10; n++)
+			source.add(n, ms(10 * n));
+		Capture destination = new Capture();
+		destination.add(0, ms(-20)).add(1, ms(15)).add(3, ms(35)).add(3, ms(36)).add(5, ms(55)).add(4, ms(56))
+				.add(7, ms(75)).add(8, ms(85)).add(9, ms(95)).add(6, ms(60 + 1500));
+		
+		Correlator correlator = new Correlator(source.reader(), destination.reader(), null, false);
+		PrintStream out = System.out;
+		ByteArrayOutputStream events = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(events));
+		try {
+			correlator.run();
+		} finally {
+			System.setOut(out);
+		}
+		String stats = correlator.generateStats();
+		
+		Matcher m = Pattern.compile("Correlated (\\d+) source and (\\d+) destination packets: (\\d+) received \\(.*\\), (\\d+) lost, (\\d+) duplicated, (\\d+) reordered, (\\d+) unknown").matcher(stats);
+		check(m.find(), "no summary in '%s'", stats);
+		if (m.find(0)) {
+			int[] expected = { 10, 10, 8, 2, 1, 1, 1 };
+			String[] names = { "source", "destination", "received", "lost", "duplicated", "reordered", "unknown" };
+			for (int k = 0; k < expected.length; k++)
+				check(Integer.parseInt(m.group(k + 1)) == expected[k], "%d %s, expected %d", Integer.parseInt(m.group(k + 1)), names[k], expected[k]);
+		}
+		check(stats.contains("1 packets received before being sent (up to 20.000 ms)"), "negative delay not reported in '%s'", stats);
+		String log = events.toString();
+		check(log.split("Lost: ", -1).length == 3, "lost packets not listed in '%s'", log);
+		check(log.contains("Duplicated: ") && log.contains("Reordered: "), "events not listed in '%s'", log);
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
@@ -15,7 +15,7 @@ public class TestFilterFIFO {
 		FilterPrinter printer = new FilterPrinter() {
 			@Override
 			public void filterPrint(MessageFilter filter, String format, Object... args) {
-				System.out.println(String.format(format.replace("%", "%%"), args));
+				System.out.println(String.format(format, args));
 			}
 			
 			@Override
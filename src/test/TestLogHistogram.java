@@ -0,0 +1,87 @@
+package test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import pcap.util.LogHistogram;
+
+public class TestLogHistogram {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/**
+	 * @return The exact percentile of sorted values (nearest rank).
+	 */
+	private static long exactPercentile(long[] sorted, double percentile) {
+		int rank = (int)Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+	
+	/**
+	 * Checks percentiles of a histogram against exact ones, within the histogram precision.
+	 */
+	private static void checkPercentiles(LogHistogram h, long[] values, double precision, String name) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		check(h.getCount() == values.length, "%s: count %d, expected %d", name, h.getCount(), values.length);
+		check(h.getMin() == sorted[0] && h.getMax() == sorted[sorted.length-1], "%s: min %d max %d, expected %d and %d", name, h.getMin(), h.getMax(), sorted[0], sorted[sorted.length-1]);
+		for (double p : new double[] { 0, 1, 10, 50, 90, 99, 99.9, 100 }) {
+			long exact = exactPercentile(sorted, p), value = h.getValueAtPercentile(p);
+			check(Math.abs(value - exact) <= precision * exact, "%s: p%s %d, expected %d", name, p, value, exact);
+		}
+	}
+	
+	public static void main(String[] args) {
+		// Empty histogram
+		LogHistogram h = new LogHistogram(20, 4);
+		check(h.getValueAtPercentile(50) == 0, "empty: p50 %d", h.getValueAtPercentile(50));
+		
+		// Small values are exact
+		for (int v = 0; v < 16; v++)
+			h.record(v);
+		for (int v = 0; v < 16; v++)
+			check(h.getValueAtPercentile(100.0 * (v + 1) / 16) == v, "small values: p%.2f %d, expected %d", 100.0 * (v + 1) / 16, h.getValueAtPercentile(100.0 * (v + 1) / 16), v);
+		
+		// Values spanning several powers of two are within 1/16
+		Random rnd = new Random(42);
+		long[] values = new long[100000];
+		h = new LogHistogram(36, 4);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long)Math.exp(rnd.nextDouble() * 20);
+			h.record(values[i]);
+		}
+		checkPercentiles(h, values, 1.0 / 16, "log-uniform");
+		
+		// Merged histograms are the histogram of all values
+		LogHistogram h1 = new LogHistogram(36, 4), h2 = new LogHistogram(36, 4);
+		for (int i = 0; i < values.length; i++)
+			(i < values.length / 3 ? h1 : h2).record(values[i]);
+		h1.add(h2);
+		checkPercentiles(h1, values, 1.0 / 16, "merged");
+		for (double p : new double[] { 1, 50, 99 })
+			check(h1.getValueAtPercentile(p) == h.getValueAtPercentile(p), "merged: p%s %d, expected %d", p, h1.getValueAtPercentile(p), h.getValueAtPercentile(p));
+		
+		// Out of range values are clamped
+		h = new LogHistogram(10, 4);
+		h.record(-5);
+		h.record(1l << 40);
+		check(h.getMin() == 0 && h.getMax() == 1023, "clamped: min %d max %d", h.getMin(), h.getMax());
+		check(Math.abs(h.getValueAtPercentile(100) - 1023) <= 1023 / 16, "clamped: p100 %d", h.getValueAtPercentile(100));
+		
+		// Cleared histogram
+		h.clear();
+		check(h.getCount() == 0 && h.getValueAtPercentile(99) == 0, "cleared: count %d p99 %d", h.getCount(), h.getValueAtPercentile(99));
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
@@ -0,0 +1,94 @@
+package test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import pcap.util.LongIntHashMap;
+
+public class TestLongIntHashMap {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/**
+	 * Checks that the map holds exactly the expected entries, both through lookups and by
+	 * iterating its slots.
+	 */
+	private static void checkContents(LongIntHashMap map, Map<Long,Integer> exact, String name) {
+		check(map.size() == exact.size(), "%s: size %d, expected %d", name, map.size(), exact.size());
+		for (Map.Entry<Long,Integer> e : exact.entrySet())
+			check(map.get(e.getKey(), -1) == e.getValue(), "%s: key %d has value %d, expected %d", name, e.getKey(), map.get(e.getKey(), -1), e.getValue());
+		int n = 0;
+		for (int s = 0; s < map.capacity(); s++) {
+			if (!map.isUsed(s))
+				continue;
+			n++;
+			Integer v = exact.get(map.keyAt(s));
+			check(v != null && v == map.valueAt(s), "%s: unexpected entry %d=%d in slot %d", name, map.keyAt(s), map.valueAt(s), s);
+		}
+		check(n == exact.size(), "%s: %d used slots, expected %d", name, n, exact.size());
+	}
+	
+	public static void main(String[] args) {
+		// Random insertions and removals in a small table: clusters form, also wrapping around the
+		// end of the table, and removals have to shift entries back to keep them reachable
+		Random rnd = new Random(42);
+		LongIntHashMap map = new LongIntHashMap(8);
+		int capacity = map.capacity();
+		Map<Long,Integer> exact = new HashMap<Long,Integer>();
+		for (int i = 0; i < 200000; i++) {
+			long key = rnd.nextInt(12) * 0x100000001l;
+			if (exact.size() < 9 && rnd.nextBoolean()) {
+				map.put(key, i);
+				exact.put(key, i);
+			} else {
+				boolean removed = map.remove(key);
+				check(removed == (exact.remove(key) != null), "removal of key %d returned %b", key, removed);
+			}
+			if (i % 1000 == 0)
+				checkContents(map, exact, "step "+i);
+		}
+		checkContents(map, exact, "small table");
+		// No tombstones: the table does not grow with removals
+		check(map.capacity() == capacity, "capacity grew from %d to %d", capacity, map.capacity());
+		
+		// Removing every key of a full cluster, in any order
+		for (int order = 0; order < 2; order++) {
+			map = new LongIntHashMap(8);
+			exact.clear();
+			for (int k = 0; k < 9; k++) {
+				map.put(-k, k);
+				exact.put((long)-k, k);
+			}
+			for (int k = 0; k < 9; k++) {
+				long key = (order == 0 ? -k : k - 8);
+				check(map.remove(key), "order %d: key %d not removed", order, key);
+				exact.remove(key);
+				checkContents(map, exact, "order "+order+" removal "+k);
+			}
+			check(!map.remove(0), "order %d: removal from an empty map", order);
+		}
+		
+		// Growth keeps all entries
+		map = new LongIntHashMap();
+		exact.clear();
+		for (int i = 0; i < 10000; i++) {
+			long key = rnd.nextLong();
+			map.put(key, i);
+			exact.put(key, i);
+		}
+		checkContents(map, exact, "grown");
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
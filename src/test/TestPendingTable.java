@@ -0,0 +1,73 @@
+package test;
+
+import java.util.Random;
+
+import pcap.util.PendingTable;
+
+public class TestPendingTable {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	public static void main(String[] args) {
+		// Matching, ambiguous events and removal
+		PendingTable t = new PendingTable(64, 1000);
+		check(t.put(1, 10, 7), "put: key 1 not added");
+		check(!t.put(1, 20, 8), "put: key 1 added twice");
+		int s = t.find(1, 30);
+		check(s >= 0 && t.getTime(s) == 10 && t.getValue(s) == 7 && t.isAmbiguous(s), "find: key 1 slot %d", s);
+		t.removeAt(s);
+		check(t.find(1, 30) < 0 && t.size() == 0, "remove: key 1 still pending, size %d", t.size());
+		
+		// Expiry: entries older than the timeout are not found, and their slot is reused first
+		t = new PendingTable(PendingTable.PROBES, 100);
+		for (int k = 0; k < PendingTable.PROBES; k++)
+			t.put(k, k, 0);
+		check(t.find(3, 99) >= 0 && t.find(3, 103) < 0, "expiry: key 3 found %d at 99 and %d at 103", t.find(3, 99), t.find(3, 103));
+		check(t.put(100, 103, 1), "expiry: key 100 not added");
+		check(t.getEvictions() == 0 && t.size() == PendingTable.PROBES, "expiry: %d evictions, size %d", t.getEvictions(), t.size());
+		for (int k = 4; k < PendingTable.PROBES; k++)
+			check(t.find(k, 103) >= 0, "expiry: key %d no longer pending", k);
+		check(t.find(100, 103) >= 0, "expiry: key 100 not pending");
+		
+		// Eviction: when all slots are pending, the oldest entry is replaced
+		t = new PendingTable(PendingTable.PROBES, 1000);
+		for (int k = 0; k < PendingTable.PROBES; k++)
+			t.put(k, 10 + k, 0);
+		check(t.put(100, 50, 0), "eviction: key 100 not added");
+		check(t.getEvictions() == 1 && t.size() == PendingTable.PROBES, "eviction: %d evictions, size %d", t.getEvictions(), t.size());
+		check(t.find(0, 50) < 0, "eviction: oldest key 0 still pending");
+		for (int k = 1; k < PendingTable.PROBES; k++)
+			check(t.find(k, 50) >= 0, "eviction: key %d no longer pending", k);
+		check(t.find(100, 50) >= 0, "eviction: key 100 not pending");
+		
+		// Flood: memory does not grow and the latest events are still pending
+		Random rnd = new Random(42);
+		t = new PendingTable(1024, 1000000);
+		long[] keys = new long[100000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = rnd.nextLong();
+			t.put(keys[i], i, i);
+		}
+		check(t.capacity() == 1024 && t.size() <= t.capacity(), "flood: capacity %d size %d", t.capacity(), t.size());
+		check(t.getEvictions() >= keys.length - t.capacity(), "flood: %d evictions", t.getEvictions());
+		int found = 0;
+		for (int i = keys.length - 64; i < keys.length; i++)
+			if (t.find(keys[i], keys.length) >= 0)
+				found++;
+		check(found == 64, "flood: %d of the 64 latest events pending", found);
+		t.clear();
+		check(t.size() == 0 && t.getEvictions() == 0 && t.find(keys[keys.length-1], keys.length) < 0, "clear: size %d", t.size());
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
@@ -0,0 +1,170 @@
+package test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import pcap.NetworkFrame;
+import pcap.NetworkFrame.IPv4Frame;
+import pcap.NetworkFrame.UDPFrame;
+import pcap.Packet;
+import pcap.PacketBatch;
+import pcap.filters.MetricsSink;
+import pcap.filters.ShardedFilter;
+import pcap.filters.impl.Sequence;
+
+public class TestSequence {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/**
+	 * Sink keeping the last value of every metric.
+	 */
+	private static class MapSink implements MetricsSink {
+		
+		final Map<String,Number> values = new HashMap<String,Number>();
+		
+		@Override
+		public void beginRecord(long timeMillis, String event, String selector, String code, String name) {
+		}
+		
+		@Override
+		public void metric(String key, long value) {
+			values.put(key, value);
+		}
+		
+		@Override
+		public void metric(String key, double value) {
+			values.put(key, value);
+		}
+		
+		@Override
+		public void metric(String key, String item, long value) {
+		}
+		
+		@Override
+		public void metric(String key, String item, double value) {
+		}
+		
+		@Override
+		public void endRecord() {
+		}
+		
+		@Override
+		public void flush() {
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	/**
+	 * @return A UDP packet from {@code 10.0.0.<src>:5000} to {@code 239.0.0.1:6000} holding a 64-bits
+	 *     little endian counter after 2 bytes.
+	 */
+	private static Packet packet(int src, long counter, int packetNum) throws IOException {
+		ByteBuffer ip = ByteBuffer.allocate(20);
+		ip.put((byte)0x45).put((byte)0).putShort((short)38).putShort((short)packetNum).putShort((short)0);
+		ip.put((byte)64).put((byte)NetworkFrame.PROTOCOL_UDP).putShort((short)0);
+		ip.put(new byte[] { 10, 0, 0, (byte)src }).put(new byte[] { (byte)239, 0, 0, 1 });
+		ip.flip();
+		ByteBuffer udp = ByteBuffer.allocate(8);
+		udp.putShort((short)5000).putShort((short)6000).putShort((short)18).putShort((short)0);
+		udp.flip();
+		ByteBuffer data = ByteBuffer.allocate(10);
+		data.putShort((short)0xabcd).putLong(Long.reverseBytes(counter));
+		return new Packet(null, null, new IPv4Frame(ip), null, new UDPFrame(udp), packetNum, data.array(), 10);
+	}
+	
+	private static Sequence newFilter() {
+		Sequence seq = new Sequence();
+		seq.configure("offset=2,width=64,le,window=64");
+		return seq;
+	}
+	
+	private static void checkMetrics(Sequence seq, String name) {
+		MapSink sink = new MapSink();
+		seq.writeMetrics(sink);
+		checkMetrics(sink, name);
+	}
+	
+	private static void checkMetrics(MapSink sink, String name) {
+		String[] keys = { "flows", "expected", "lost", "duplicated", "reordered", "bad" };
+		long[] expected = { 2, 13, 3, 1, 1, 0 };
+		for (int k = 0; k < keys.length; k++) {
+			Number value = sink.values.get(keys[k]);
+			check(value != null && value.longValue() == expected[k], "%s: %s %s, expected %d", name, keys[k], value, expected[k]);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		// Flow 1 crosses the largest 64-bits counter, with two losses, a late packet and a duplicate.
+		// Flow 2 starts at a large counter and loses one packet.
+		long[][] stream = {
+			{ 1, -3 }, { 2, 1l << 40 }, { 1, -2 }, { 1, 1 }, { 2, (1l << 40) + 1 }, { 1, -1 }, { 1, 2 },
+			{ 2, (1l << 40) + 3 }, { 1, 2 }, { 2, (1l << 40) + 4 }, { 1, 4 },
+		};
+		Packet[] packets = new Packet[stream.length];
+		for (int i = 0; i < stream.length; i++)
+			packets[i] = packet((int)stream[i][0], stream[i][1], i + 1);
+		
+		// Packet by packet
+		Sequence seq = newFilter();
+		for (Packet p : packets)
+			seq.process(p);
+		checkMetrics(seq, "packets");
+		MapSink live = new MapSink();
+		seq.writeLiveMetrics(live);
+		checkMetrics(live, "live");
+		check(live.values.get("packets").longValue() == packets.length - 1, "live: packets %s", live.values.get("packets")); // Duplicate not counted
+		
+		// By batches
+		seq = newFilter();
+		PacketBatch batch = new PacketBatch(4);
+		for (Packet p : packets) {
+			batch.add(p);
+			if (batch.isFull()) {
+				seq.processBatch(batch);
+				batch.clear();
+			}
+		}
+		seq.processBatch(batch);
+		checkMetrics(seq, "batches");
+		
+		// Sharded: flows are combined, live metrics are those published by shards on the previous call
+		ShardedFilter sharded = new ShardedFilter(newFilter(), 2);
+		for (Packet p : packets)
+			sharded.process(p);
+		live = new MapSink();
+		sharded.writeLiveMetrics(live);
+		check(live.values.isEmpty(), "sharded live: metrics before publication %s", live.values);
+		sharded.combine(); // Waits for the shards to publish
+		sharded.writeLiveMetrics(live);
+		checkMetrics(live, "sharded live");
+		check(live.values.get("packets").longValue() == packets.length - 1, "sharded live: packets %s", live.values.get("packets"));
+		sharded.finish();
+		checkMetrics((Sequence)sharded.getFilter(), "sharded");
+		
+		// Invalid parameters
+		for (String params : new String[] { "width=12", "width=72", "offset=-1", "size=3", "window=x" }) {
+			try {
+				new Sequence().configure(params);
+				check(false, "parameters '%s' accepted", params);
+			} catch (IllegalArgumentException e) { }
+		}
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
@@ -0,0 +1,101 @@
+package test;
+
+import pcap.util.SequenceTable;
+
+public class TestSequenceTable {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	private static void checkUpdate(SequenceTable t, int i, long seq, int status, long gap, String name) {
+		int s = t.update(i, seq);
+		check(s == status && t.getLastGap() == gap, "%s: seq %d status %d gap %d, expected %d and %d", name, seq, s, t.getLastGap(), status, gap);
+	}
+	
+	private static void checkCounts(SequenceTable t, int i, long expected, long received, long lost, long duplicates, long reordered, long bad, int restarts, String name) {
+		check(t.getExpected(i) == expected && t.getReceived(i) == received && t.getLost(i) == lost
+				&& t.getDuplicates(i) == duplicates && t.getReordered(i) == reordered && t.getBad(i) == bad && t.getRestarts(i) == restarts,
+				"%s: expected %d received %d lost %d duplicates %d reordered %d bad %d restarts %d, expected %d %d %d %d %d %d %d", name,
+				t.getExpected(i), t.getReceived(i), t.getLost(i), t.getDuplicates(i), t.getReordered(i), t.getBad(i), t.getRestarts(i),
+				expected, received, lost, duplicates, reordered, bad, restarts);
+	}
+	
+	public static void main(String[] args) {
+		// 16-bits sequence wrapping around, with a loss, a late packet and a duplicate
+		SequenceTable t = new SequenceTable(16, 64, 3000);
+		int i = t.index(1);
+		checkUpdate(t, i, 65533, SequenceTable.SEQ_FIRST, 0, "wrap");
+		checkUpdate(t, i, 65534, SequenceTable.SEQ_IN_ORDER, 0, "wrap");
+		checkUpdate(t, i, 65535, SequenceTable.SEQ_IN_ORDER, 0, "wrap");
+		checkUpdate(t, i, 0, SequenceTable.SEQ_IN_ORDER, 0, "wrap");
+		checkUpdate(t, i, 3, SequenceTable.SEQ_GAP, 2, "wrap");
+		checkCounts(t, i, 7, 5, 2, 0, 0, 0, 0, "wrap gap");
+		checkUpdate(t, i, 1, SequenceTable.SEQ_REORDERED, 2, "wrap");
+		checkUpdate(t, i, 1, SequenceTable.SEQ_DUPLICATE, 0, "wrap");
+		checkUpdate(t, i, 65535, SequenceTable.SEQ_DUPLICATE, 0, "wrap");
+		checkCounts(t, i, 7, 6, 1, 2, 1, 0, 0, "wrap late");
+		check(t.getMaxSeq(i) == 3 && t.getMaxGap(i) == 2 && t.getMaxReorder(i) == 2, "wrap: max seq %d gap %d reorder %d", t.getMaxSeq(i), t.getMaxGap(i), t.getMaxReorder(i));
+		
+		// Source restarting: a single bad packet is discarded, two sequential ones restart
+		t = new SequenceTable(16, 64, 3000);
+		i = t.index(2);
+		for (int seq = 100; seq < 110; seq++)
+			t.update(i, seq);
+		checkUpdate(t, i, 40000, SequenceTable.SEQ_BAD, 0, "restart");
+		checkUpdate(t, i, 110, SequenceTable.SEQ_IN_ORDER, 0, "restart");
+		checkUpdate(t, i, 20000, SequenceTable.SEQ_BAD, 0, "restart");
+		checkUpdate(t, i, 20001, SequenceTable.SEQ_RESTART, 0, "restart");
+		checkUpdate(t, i, 20002, SequenceTable.SEQ_IN_ORDER, 0, "restart");
+		checkCounts(t, i, 14, 14, 0, 0, 0, 1, 1, "restart");
+		
+		// Restart on a bad packet equal to 0 (the sequence number following the largest one)
+		t = new SequenceTable(16, 64, 3000);
+		i = t.index(3);
+		t.update(i, 30000);
+		checkUpdate(t, i, 65535, SequenceTable.SEQ_BAD, 0, "restart at 0");
+		checkUpdate(t, i, 0, SequenceTable.SEQ_RESTART, 0, "restart at 0");
+		checkCounts(t, i, 3, 3, 0, 0, 0, 0, 1, "restart at 0");
+		
+		// 64-bits sequence numbers across the largest value, and restart on -1
+		t = new SequenceTable(64, 64, 65536);
+		i = t.index(4);
+		checkUpdate(t, i, -3, SequenceTable.SEQ_FIRST, 0, "64 bits");
+		checkUpdate(t, i, -2, SequenceTable.SEQ_IN_ORDER, 0, "64 bits");
+		checkUpdate(t, i, 1, SequenceTable.SEQ_GAP, 2, "64 bits");
+		checkUpdate(t, i, -1, SequenceTable.SEQ_REORDERED, 2, "64 bits");
+		checkUpdate(t, i, 0, SequenceTable.SEQ_REORDERED, 1, "64 bits");
+		checkCounts(t, i, 5, 5, 0, 0, 2, 0, 0, "64 bits");
+		checkUpdate(t, i, Long.MIN_VALUE + 10, SequenceTable.SEQ_BAD, 0, "64 bits");
+		checkUpdate(t, i, Long.MIN_VALUE + 11, SequenceTable.SEQ_RESTART, 0, "64 bits");
+		checkUpdate(t, i, -2, SequenceTable.SEQ_BAD, 0, "64 bits restart on -1");
+		checkUpdate(t, i, -1, SequenceTable.SEQ_RESTART, 0, "64 bits restart on -1");
+		checkUpdate(t, i, 0, SequenceTable.SEQ_IN_ORDER, 0, "64 bits restart on -1");
+		checkCounts(t, i, 10, 10, 0, 0, 2, 0, 2, "64 bits restarts");
+		
+		// Streams are independent and combined by key
+		t = new SequenceTable(16, 64, 3000);
+		SequenceTable t2 = new SequenceTable(16, 64, 3000);
+		int a = t.index(10), b = t2.index(10), c = t2.index(11);
+		for (int seq = 0; seq < 10; seq += 2)
+			t.update(a, seq);
+		for (int seq = 100; seq < 105; seq++)
+			t2.update(b, seq);
+		t2.update(c, 7);
+		check(t.combine(t2, b) == a, "combine: stream %d not combined with %d", b, a);
+		checkCounts(t, a, 14, 10, 4, 0, 0, 0, 0, "combine");
+		int d = t.combine(t2, c);
+		check(d == 1 && t.getKey(d) == 11 && t.size() == 2, "combine: new stream %d key %d, %d streams", d, t.getKey(d), t.size());
+		checkUpdate(t, d, 8, SequenceTable.SEQ_IN_ORDER, 0, "combined stream");
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}
@@ -0,0 +1,84 @@
+package test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import pcap.util.SpaceSaving;
+
+public class TestSpaceSaving {
+	
+	private static int nErrors = 0;
+	
+	private static void check(boolean ok, String format, Object... args) {
+		if (!ok) {
+			System.out.println("FAILED: "+String.format(format, args));
+			nErrors++;
+		}
+	}
+	
+	/**
+	 * Checks the Space-Saving guarantees against exact counts: every key heavier than
+	 * {@code total / capacity} is kept, and kept counts bound true counts.
+	 */
+	private static void checkGuarantees(SpaceSaving ss, Map<Long,Long> exact, String name) {
+		long total = ss.getTotal();
+		Map<Long,Integer> kept = new HashMap<Long,Integer>();
+		for (int s : ss.top(ss.size()))
+			kept.put(ss.getKey(s), s);
+		for (Map.Entry<Long,Long> e : exact.entrySet()) {
+			Integer s = kept.get(e.getKey());
+			if (s == null) {
+				check(e.getValue() <= total / ss.capacity(), "%s: key %d (count %d > %d) evicted", name, e.getKey(), e.getValue(), total / ss.capacity());
+				check(e.getValue() <= ss.getMinCount(), "%s: key %d (count %d) absent above min count %d", name, e.getKey(), e.getValue(), ss.getMinCount());
+				continue;
+			}
+			long count = ss.getCount(s), error = ss.getError(s);
+			check(count >= e.getValue() && count - error <= e.getValue(), "%s: key %d count %d error %d, true count %d", name, e.getKey(), count, error, e.getValue());
+		}
+	}
+	
+	private static void add(SpaceSaving ss, Map<Long,Long> exact, long key, long weight) {
+		ss.add(key, weight);
+		Long n = exact.get(key);
+		exact.put(key, (n == null ? 0 : n) + weight);
+	}
+	
+	public static void main(String[] args) {
+		// Heavy key followed by light keys: the heavy key should stay
+		SpaceSaving ss = new SpaceSaving(2);
+		Map<Long,Long> exact = new HashMap<Long,Long>();
+		for (int i = 0; i < 100; i++)
+			add(ss, exact, 1, 1);
+		add(ss, exact, 2, 1);
+		add(ss, exact, 3, 1);
+		int top = ss.top(1)[0];
+		check(ss.getKey(top) == 1 && ss.getCount(top) == 100 && ss.getError(top) == 0, "heavy key: key %d count %d error %d", ss.getKey(top), ss.getCount(top), ss.getError(top));
+		check(ss.getMinCount() == 2, "heavy key: min count %d", ss.getMinCount());
+		checkGuarantees(ss, exact, "heavy key");
+		
+		// Skewed random streams, one by one then merged
+		Random rnd = new Random(42);
+		SpaceSaving ss1 = new SpaceSaving(32), ss2 = new SpaceSaving(32);
+		Map<Long,Long> exact1 = new HashMap<Long,Long>(), exact2 = new HashMap<Long,Long>(), exactAll = new HashMap<Long,Long>();
+		for (int i = 0; i < 100000; i++) {
+			long key = (rnd.nextInt(4) == 0 ? rnd.nextInt(8) : rnd.nextInt(5000));
+			long weight = 1 + rnd.nextInt(1500);
+			if (i % 2 == 0)
+				add(ss1, exact1, key, weight);
+			else
+				add(ss2, exact2, key, weight);
+			Long n = exactAll.get(key);
+			exactAll.put(key, (n == null ? 0 : n) + weight);
+		}
+		checkGuarantees(ss1, exact1, "stream 1");
+		checkGuarantees(ss2, exact2, "stream 2");
+		ss1.merge(ss2);
+		checkGuarantees(ss1, exactAll, "merged");
+		
+		System.out.println(nErrors == 0 ? "OK" : nErrors+" checks failed");
+		if (nErrors > 0)
+			System.exit(1);
+	}
+
+}